@@ -0,0 +1,18 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.engine.data.ConnectionDatabaseConnector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link ConnectionDatabaseConnector} that can read documents without blocking the caller.
+ */
+public interface AsyncConnectionDatabaseConnector extends ConnectionDatabaseConnector {
+
+    /**
+     * Asynchronous {@link #getObject(String, Class)}.
+     *
+     * @return the object, or null if there is none, failed if it could not be read
+     */
+    <T> CompletableFuture<T> getObjectAsync(String key, Class<T> clazz);
+}
@@ -0,0 +1,24 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional buffer based entry points for a {@code NetworkSerializer}.  When one is bound, or the
+ * injected serializer also implements this interface, {@link CouchbaseTranscoder} serializes into
+ * and deserializes from reused buffers instead of a new array per object.
+ */
+public interface BufferSerializer {
+
+    /**
+     * Writes the object into the buffer from its position.
+     *
+     * @throws java.nio.BufferOverflowException if the object does not fit; the caller retries with a larger buffer
+     */
+    void serialize(Object object, ByteBuffer buffer);
+
+    /**
+     * Reads an object from the buffer's position up to its limit.  The buffer is reused once this returns,
+     * so the serializer must not keep a reference to it.
+     */
+    Object deserialize(ByteBuffer buffer);
+}
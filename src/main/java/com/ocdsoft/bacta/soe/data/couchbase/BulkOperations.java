@@ -0,0 +1,135 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.couchbase.client.CouchbaseClient;
+import com.ocdsoft.bacta.soe.data.couchbase.client.ClientPool;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Splits large multi-key reads and writes into chunks so a single request never floods the
+ * client's operation queue.
+ */
+final class BulkOperations {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkOperations.class);
+
+    private BulkOperations() {
+    }
+
+    /**
+     * Fetches the stored documents for the given keys, one multi-get per chunk.  All chunks are
+     * in flight at once; keys that do not exist are absent from the result.
+     */
+    static Map<String, CachedData> fetch(final MemcachedClientIF client, final List<String> keys, int chunkSize, long timeoutMillis) {
+        List<BulkFuture<Map<String, CachedData>>> futures = new ArrayList<>(keys.size() / chunkSize + 1);
+        issue(client, keys, chunkSize, futures);
+        return collect(futures, keys.size(), timeoutMillis);
+    }
+
+    /**
+     * Fetches as {@link #fetch(MemcachedClientIF, List, int, long)} does, each key from the client of
+     * the pool that operations on it go to.
+     */
+    static Map<String, CachedData> fetch(final ClientPool pool, final List<String> keys, int chunkSize, long timeoutMillis) {
+        List<BulkFuture<Map<String, CachedData>>> futures = new ArrayList<>(keys.size() / chunkSize + pool.size());
+        for (Map.Entry<CouchbaseClient, List<String>> group : pool.byClient(keys).entrySet()) {
+            issue(group.getKey(), group.getValue(), chunkSize, futures);
+        }
+        return collect(futures, keys.size(), timeoutMillis);
+    }
+
+    private static void issue(final MemcachedClientIF client, final List<String> keys, int chunkSize, List<BulkFuture<Map<String, CachedData>>> futures) {
+        for (int i = 0; i < keys.size(); i += chunkSize) {
+            futures.add(client.asyncGetBulk(keys.subList(i, Math.min(i + chunkSize, keys.size())), CachedDataTranscoder.INSTANCE));
+        }
+    }
+
+    private static Map<String, CachedData> collect(List<BulkFuture<Map<String, CachedData>>> futures, int keys, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Map<String, CachedData> results = new HashMap<>(keys * 4 / 3 + 1);
+
+        for (BulkFuture<Map<String, CachedData>> future : futures) {
+            results.putAll(await(future, deadline));
+        }
+
+        return results;
+    }
+
+    /**
+     * Issues a write per object, waiting for each chunk to complete before the next is issued.  A
+     * write that fails or is still outstanding at the chunk's deadline is counted as not stored and
+     * logged, and the remaining chunks are written regardless.
+     *
+     * @return the number of objects the server stored
+     */
+    static <T> int write(final Iterable<T> objects, final Function<T, Future<Boolean>> writer, int chunkSize, long timeoutMillis) {
+        List<Future<Boolean>> futures = new ArrayList<>(chunkSize);
+        int stored = 0;
+
+        for (T object : objects) {
+            futures.add(writer.apply(object));
+            if (futures.size() == chunkSize) {
+                stored += awaitWrites(futures, timeoutMillis);
+                futures.clear();
+            }
+        }
+
+        return stored + awaitWrites(futures, timeoutMillis);
+    }
+
+    private static int awaitWrites(final List<Future<Boolean>> futures, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int stored = 0;
+
+        int failed = 0;
+        RuntimeException cause = null;
+
+        for (Future<Boolean> future : futures) {
+            try {
+                if (Boolean.TRUE.equals(await(future, deadline))) {
+                    ++stored;
+                }
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                ++failed;
+                cause = e;
+            }
+        }
+
+        if (failed > 0) {
+            logger.warn("Bulk write chunk of " + futures.size() + " objects had " + failed + " failed writes, continuing with the next chunk", cause);
+        }
+
+        return stored;
+    }
+
+    private static <V> V await(final Future<V> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new OperationTimeoutException("Timeout waiting for bulk operation", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for bulk operation", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception waiting for bulk operation", e);
+        }
+    }
+}
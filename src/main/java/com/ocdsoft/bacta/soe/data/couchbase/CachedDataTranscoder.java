@@ -0,0 +1,36 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Passes documents through as stored, so they can be decoded off the client's I/O thread or
+ * copied without being decoded at all.
+ */
+public final class CachedDataTranscoder implements Transcoder<CachedData> {
+
+    public static final CachedDataTranscoder INSTANCE = new CachedDataTranscoder();
+
+    private CachedDataTranscoder() {
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(CachedData o) {
+        return o;
+    }
+
+    @Override
+    public CachedData decode(CachedData d) {
+        return d;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
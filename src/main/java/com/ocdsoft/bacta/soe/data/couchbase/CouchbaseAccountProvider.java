@@ -21,12 +21,13 @@ public class CouchbaseAccountProvider<T extends Account> implements Provider<T>
     @Inject
     private CouchbaseConnectionDatabaseConnector connector;
 
-    private final Class accountClass;
+    private final Class<? extends Account> accountClass;
     private final Constructor<T> accountConstructor;
 
+    @SuppressWarnings("unchecked")
     public CouchbaseAccountProvider(T account) throws NoSuchMethodException {
         accountClass = account.getClass();
-        accountConstructor = accountClass.getConstructor(Integer.TYPE);
+        accountConstructor = (Constructor<T>) accountClass.getConstructor(Integer.TYPE);
     }
 
     public T get() {
@@ -8,10 +8,18 @@ import com.ocdsoft.bacta.engine.data.ConnectionDatabaseConnector;
 import com.ocdsoft.bacta.engine.object.account.Account;
 import com.ocdsoft.bacta.engine.security.authenticator.AccountService;
 import com.ocdsoft.bacta.engine.security.password.PasswordHash;
+import com.ocdsoft.bacta.soe.data.couchbase.async.AsyncExecutors;
+import com.ocdsoft.bacta.soe.data.couchbase.async.BoundedExecutor;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.OperationMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.session.SessionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -24,6 +32,11 @@ public class CouchbaseAccountService<T extends Account> implements AccountServic
 
     private final ConnectionDatabaseConnector connector;
 
+    /**
+     * The connector, when it can read accounts without blocking, otherwise null
+     */
+    private final AsyncConnectionDatabaseConnector asyncConnector;
+
     private final Provider<T> accountProvider;
 
     private final PasswordHash passwordHash;
@@ -32,37 +45,86 @@ public class CouchbaseAccountService<T extends Account> implements AccountServic
 
     private final long authTokenDuration;
 
-    private final Class<? extends Account> accountClazz;
+    private final Class<T> accountClazz;
+
+    private final SessionCache<T> sessionCache;
+
+    private final BoundedExecutor authExecutor;
+
+    /**
+     * Reads accounts for async logins when the connector cannot, so the blocking read stays off
+     * the authentication pool.  Null when the connector is async.
+     */
+    private final ExecutorService fetchExecutor;
+
+    private final OperationMetrics createAccountMetrics;
+    private final OperationMetrics getAccountMetrics;
+    private final OperationMetrics createAuthTokenMetrics;
+    private final OperationMetrics updateAccountMetrics;
+    private final OperationMetrics authenticateMetrics;
+    private final OperationMetrics validateSessionMetrics;
+    private final OperationMetrics passwordHashMetrics;
 
     @Inject
+    @SuppressWarnings("unchecked")
     private CouchbaseAccountService(final BactaConfiguration configuration,
                                     final ConnectionDatabaseConnector connector,
                                     final Provider<T> accountProvider,
                                     final PasswordHash passwordHash,
-                                    final T accountClazz) {
+                                    final T accountClazz,
+                                    final ConnectorMetrics metrics) {
 
         this.connector = connector;
+        this.asyncConnector = connector instanceof AsyncConnectionDatabaseConnector ? (AsyncConnectionDatabaseConnector) connector : null;
         this.accountProvider = accountProvider;
         this.passwordHash = passwordHash;
         secureRandom = new SecureRandom();
 
         authTokenDuration = configuration.getLongWithDefault("Bacta/LoginServer", "AuthTokenTTL", 600) * 1000;
-        this.accountClazz = accountClazz.getClass();
+        this.accountClazz = (Class<T>) accountClazz.getClass();
+
+        sessionCache = new SessionCache<>(
+                configuration.getBooleanWithDefault("Bacta/LoginServer", "SessionCache", false),
+                configuration.getLongWithDefault("Bacta/LoginServer", "SessionSweepInterval", 250),
+                this::clearExpiredTokens);
+
+        authExecutor = new BoundedExecutor("Authentication",
+                configuration.getIntWithDefault("Bacta/LoginServer", "AuthThreads", Runtime.getRuntime().availableProcessors()),
+                configuration.getIntWithDefault("Bacta/LoginServer", "AuthQueueCapacity", 1024));
+        metrics.publish("CouchbaseAccountService", "authExecutor", authExecutor);
+
+        fetchExecutor = asyncConnector == null
+                ? AsyncExecutors.create(
+                        configuration.getStringWithDefault("Bacta/LoginServer", "FetchExecutor", AsyncExecutors.POOL),
+                        "Authentication-Fetch",
+                        configuration.getIntWithDefault("Bacta/LoginServer", "FetchThreads", 4))
+                : null;
+
+        createAccountMetrics = metrics.operation("CouchbaseAccountService", "createAccount");
+        getAccountMetrics = metrics.operation("CouchbaseAccountService", "getAccount");
+        createAuthTokenMetrics = metrics.operation("CouchbaseAccountService", "createAuthToken");
+        updateAccountMetrics = metrics.operation("CouchbaseAccountService", "updateAccount");
+        authenticateMetrics = metrics.operation("CouchbaseAccountService", "authenticate");
+        validateSessionMetrics = metrics.operation("CouchbaseAccountService", "validateSession");
+        passwordHashMetrics = metrics.operation("CouchbaseAccountService", "passwordHash");
     }
 
 
     @Override
     public T createAccount(String username, String password) {
 
+        long start = createAccountMetrics.start();
         T account = accountProvider.get();
         account.setUsername(username);
         try {
 
             account.setPassword(passwordHash.createHash(password));
             connector.createObject(account.getUsername(), account);
+            createAccountMetrics.stop(start, true);
             return account;
 
         } catch (Exception e) {
+            createAccountMetrics.stop(start, false);
             logger.error("Unable to create account", e);
         }
         return null;
@@ -70,45 +132,188 @@ public class CouchbaseAccountService<T extends Account> implements AccountServic
 
     @Override
     public T getAccount(String username) {
-        return (T) connector.getObject(username, accountClazz);
+        long start = getAccountMetrics.start();
+        boolean success = false;
+        try {
+            T account = connector.getObject(username, accountClazz);
+            success = true;
+            return account;
+        } finally {
+            getAccountMetrics.stop(start, success);
+        }
     }
 
     @Override
     public void createAuthToken(T account) {
 
-        String authToken = String.valueOf(Math.abs(secureRandom.nextLong())) + String.valueOf(Math.abs(secureRandom.nextLong()));
-        account.setAuthToken(authToken);
-        account.setAuthExpiration(System.currentTimeMillis() + authTokenDuration);
-        updateAccount(account);
+        long start = createAuthTokenMetrics.start();
+        boolean success = false;
+        try {
+            sessionCache.invalidate(account.getUsername());
+
+            String authToken = String.valueOf(Math.abs(secureRandom.nextLong())) + String.valueOf(Math.abs(secureRandom.nextLong()));
+            account.setAuthToken(authToken);
+            account.setAuthExpiration(System.currentTimeMillis() + authTokenDuration);
+            connector.updateObject(account.getUsername(), account);
+
+            sessionCache.put(account);
+            success = true;
+        } finally {
+            createAuthTokenMetrics.stop(start, success);
+        }
     }
 
     @Override
     public void updateAccount(T account) {
-        connector.updateObject(account.getUsername(), account);
+        long start = updateAccountMetrics.start();
+        boolean success = false;
+        try {
+            connector.updateObject(account.getUsername(), account);
+            sessionCache.refresh(account);
+            success = true;
+        } finally {
+            updateAccountMetrics.stop(start, success);
+        }
     }
 
     @Override
     public boolean authenticate(T account, String password) {
+        long start = authenticateMetrics.start();
         try {
-            return passwordHash.validatePassword(password, account.getPassword());
+            boolean valid = validatePassword(account, password);
+            authenticateMetrics.stop(start, true);
+            return valid;
         } catch (Exception e) {
+            authenticateMetrics.stop(start, false);
             logger.error("Unable to authenticate account", e);
         }
         return false;
     }
 
+    /**
+     * Validates the password on the authentication pool rather than the calling thread.
+     *
+     * @return whether the password is valid, failed with a RejectedExecutionException at once
+     * when the pool already has AuthQueueCapacity logins waiting
+     */
+    public CompletableFuture<Boolean> authenticateAsync(T account, String password) {
+        long start = authenticateMetrics.start();
+        return authenticateMetrics.stop(start, authExecutor.admit(() ->
+                CompletableFuture.supplyAsync(() -> validatePasswordOrFalse(account, password), authExecutor)));
+    }
+
+    /**
+     * Fetches the account and validates the password on the authentication pool, without
+     * blocking the calling thread on either.  Only the password check is admitted to the pool, so
+     * logins waiting on the fetch do not hold its capacity.
+     *
+     * @return the account, or null if there is none or the password is wrong, failed with a
+     * RejectedExecutionException once fetched when the pool already has AuthQueueCapacity logins waiting
+     */
+    public CompletableFuture<T> authenticateAsync(String username, String password) {
+        long start = authenticateMetrics.start();
+        return authenticateMetrics.stop(start, getAccountAsync(username).thenCompose(account -> account == null
+                ? CompletableFuture.<T>completedFuture(null)
+                : authExecutor.admit(() -> CompletableFuture.supplyAsync(
+                        () -> validatePasswordOrFalse(account, password) ? account : null, authExecutor))));
+    }
+
+    /**
+     * Stops the authentication and fetch pools and the session sweeper.
+     */
+    public void shutdown() {
+        authExecutor.shutdown();
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdown();
+        }
+        sessionCache.shutdown();
+    }
+
     @Override
     public T validateSession(String authToken) {
-        T account = (T) connector.lookupSession(authToken, accountClazz);
+        long start = validateSessionMetrics.start();
+        boolean success = false;
+        try {
+            T account = findSession(authToken);
+            success = true;
+            return account;
+        } finally {
+            validateSessionMetrics.stop(start, success);
+        }
+    }
 
-        if(account != null && account.getAuthExpiration() < System.currentTimeMillis()) {
-            account.setAuthToken("");
-            account.setAuthExpiration(System.currentTimeMillis());
-            updateAccount(account);
+    private CompletableFuture<T> getAccountAsync(String username) {
+        if (asyncConnector != null) {
+            return asyncConnector.getObjectAsync(username, accountClazz);
+        }
+        return CompletableFuture.supplyAsync(() -> getAccount(username), fetchExecutor);
+    }
+
+    private boolean validatePassword(T account, String password) throws Exception {
+        long start = passwordHashMetrics.start();
+        boolean success = false;
+        try {
+            boolean valid = passwordHash.validatePassword(password, account.getPassword());
+            success = true;
+            return valid;
+        } finally {
+            passwordHashMetrics.stop(start, success);
+        }
+    }
+
+    private boolean validatePasswordOrFalse(T account, String password) {
+        try {
+            return validatePassword(account, password);
+        } catch (Exception e) {
+            logger.error("Unable to authenticate account", e);
+            return false;
+        }
+    }
 
+    private T findSession(String authToken) {
+        T account = sessionCache.get(authToken);
+        if (account != null) {
+            return account;
+        }
+
+        account = connector.lookupSession(authToken, accountClazz);
+
+        if(account != null && account.getAuthExpiration() < System.currentTimeMillis()) {
+            sessionCache.expire(account);
             return null;
         }
 
+        if(account != null) {
+            sessionCache.put(account);
+        }
+
         return account;
     }
+
+    /**
+     * Clears the tokens of expired sessions, skipping accounts that have been issued a new token since.
+     * Runs on the session sweeper thread.
+     */
+    private void clearExpiredTokens(List<T> expired) {
+        long now = System.currentTimeMillis();
+
+        for (T account : expired) {
+            try {
+                T current = getAccount(account.getUsername());
+                if (current == null
+                        || current.getAuthToken() == null
+                        || !current.getAuthToken().equals(account.getAuthToken())
+                        || current.getAuthExpiration() >= now) {
+                    continue;
+                }
+
+                current.setAuthToken("");
+                current.setAuthExpiration(now);
+                connector.updateObject(current.getUsername(), current);
+
+            } catch (Exception e) {
+                logger.error("Unable to clear expired auth token for " + account.getUsername(), e);
+            }
+        }
+    }
 }
@@ -1,225 +1,638 @@
 package com.ocdsoft.bacta.soe.data.couchbase;
 
 import com.couchbase.client.CouchbaseClient;
-import com.couchbase.client.CouchbaseConnectionFactory;
 import com.couchbase.client.protocol.views.*;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
-import com.ocdsoft.bacta.engine.data.ConnectionDatabaseConnector;
+import com.ocdsoft.bacta.engine.object.NetworkObject;
 import com.ocdsoft.bacta.engine.object.account.Account;
-import net.spy.memcached.ConnectionObserver;
+import com.ocdsoft.bacta.soe.data.couchbase.async.AsyncExecutors;
+import com.ocdsoft.bacta.soe.data.couchbase.async.ClientFutures;
+import com.ocdsoft.bacta.soe.data.couchbase.client.Bootstrap;
+import com.ocdsoft.bacta.soe.data.couchbase.client.ClientPool;
+import com.ocdsoft.bacta.soe.data.couchbase.client.CouchbaseConnectionManager;
+import com.ocdsoft.bacta.soe.data.couchbase.client.Readiness;
+import com.ocdsoft.bacta.soe.data.couchbase.flight.SingleFlight;
+import com.ocdsoft.bacta.soe.data.couchbase.hedge.HedgedReader;
+import com.ocdsoft.bacta.soe.data.couchbase.json.CharacterNames;
+import com.ocdsoft.bacta.soe.data.couchbase.json.JsonCodecs;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.OperationMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceAllocator;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import net.spy.memcached.CachedData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.SocketAddress;
-import java.net.URI;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by kburkhardt on 1/23/15.
  */
 @Singleton
-public final class CouchbaseConnectionDatabaseConnector implements ConnectionDatabaseConnector {
+public final class CouchbaseConnectionDatabaseConnector implements AsyncConnectionDatabaseConnector, SequenceSource {
 
     private static final Logger logger = LoggerFactory.getLogger(CouchbaseConnectionDatabaseConnector.class);
 
-    private final CouchbaseTranscoder transcoder;
-
-    private CouchbaseClient client;
-    private final Gson gson;
-
-    private View usernameView;
-    private View authTokenView;
-    private View characterNamesView;
-
-    @Inject
-    public CouchbaseConnectionDatabaseConnector(BactaConfiguration configuration, CouchbaseTranscoder transcoder) throws Exception {
-        this.transcoder = transcoder;
+    /**
+     * Auth tokens are indexed as AuthToken::&lt;token&gt; -> username documents that expire with the token
+     */
+    private static final String AUTH_TOKEN_PREFIX = "AuthToken::";
 
-        gson = new Gson();
+    /**
+     * Longest key memcached accepts, in bytes
+     */
+    private static final int MAX_KEY_LENGTH = 250;
 
-        Properties systemProperties = System.getProperties();
-        systemProperties.put("net.spy.log.LoggerImpl", "net.spy.memcached.compat.log.SLF4JLogger");
-        System.setProperties(systemProperties);
+    private static final long MAX_RELATIVE_EXPIRATION = 30L * 24 * 60 * 60;
 
-        client = connect(
-                configuration.getStringWithDefault("Bacta/Database/Couchbase", "Address", "127.0.0.1"),
-                configuration.getIntWithDefault("Bacta/Database/Couchbase", "Port", 8091),
-                configuration.getStringWithDefault("Bacta/Database/Couchbase", "ConnectionObjectsBucket", "connectionObjects"));
+    /**
+     * Counters the bucket is given at startup if it has none, with their initial values
+     */
+    private static final Map<String, Long> COUNTERS;
 
-        init(configuration);
+    static {
+        Map<String, Long> counters = new HashMap<>();
+        counters.put("ClusterId", 1L);
+        counters.put("AccountId", 1L);
+        COUNTERS = Collections.unmodifiableMap(counters);
     }
 
-    private void init(BactaConfiguration configuration) {
+    private final CouchbaseTranscoder<NetworkObject> transcoder;
 
-        try {
+    /**
+     * Completes with the bucket's pool, which is released at shutdown
+     */
+    private final CompletableFuture<ClientPool> clients;
 
-            if (client.get("ClusterId") == null) {
-                client.add("ClusterId", String.valueOf(1));
+    private final Readiness readiness;
+    private final JsonCodecs codecs;
+    private final SequenceAllocator sequences;
 
-            }
-            if (client.get("AccountId") == null) {
-                client.add("AccountId", String.valueOf(1));
-            }
+    private final String designDoc;
+    private final String usernameViewName;
+    private final String authTokenViewName;
+    private final String characterNamesViewName;
 
-            String designDoc = configuration.getString("Bacta/Database/Couchbase", "DesignDoc");
-            String userview = configuration.getString("Bacta/Database/Couchbase", "UsernameView");
+    /**
+     * Loaded by the first lookup that needs them, null until then
+     */
+    private volatile Views views;
+    private final Object viewsLock = new Object();
 
-            DesignDocument design;
-            boolean changed = false;
+    private final ConcurrentMap<Integer, ClusterNames> clusterNames = new ConcurrentHashMap<>();
+    private final int characterNamesPageSize;
+    private final long characterNamesRefresh;
 
-            try {
-                design = client.getDesignDoc(designDoc);
-            } catch(Exception e) {
-                design = new DesignDocument(designDoc);
-            }
+    /**
+     * Concurrent reads of a document share one fetch and one decode, and so the same object
+     */
+    private final SingleFlight<String, Fetched> reads;
 
-            try {
-                usernameView = client.getView(designDoc, userview);
-            } catch (InvalidViewException e) {
-                changed = true;
-                String map = "function (doc, meta) {\n" +
-                        "  if(doc.username) {\n" +
-                        "  \temit(meta.id, doc);\n" +
-                        "  }\n" +
-                        "}";
-
-                ViewDesign viewDesign = new ViewDesign(userview, map);
-                design.getViews().add(viewDesign);
-
-                if (client.createDesignDoc(design)) {
-                    usernameView = client.getView(designDoc, userview);
-                } else {
-                    throw new Exception("Unable to create username views");
-                }
-            }
+    private final HedgedReader hedging;
 
-            String authview = configuration.getString("Bacta/Database/Couchbase", "AuthTokenView");
+    private final ExecutorService asyncExecutor;
+    private final long asyncTimeout;
 
-            try {
-                 authTokenView = client.getView(designDoc, authview);
-            } catch (InvalidViewException e) {
-                changed = true;
-                String map = "function (doc, meta) {\n" +
-                        "  if(doc.authToken) {\n" +
-                        "  \temit(doc.authToken, doc);\n" +
-                        "  }\n" +
-                        "}";
+    private final AtomicBoolean shutdown = new AtomicBoolean();
 
-                ViewDesign viewDesign = new ViewDesign(authview, map);
-                design.getViews().add(viewDesign);
+    /**
+     * Until this time, tokens missing from the key-value index are looked up in the auth token
+     * view, so tokens issued before the index existed keep working until they expire.
+     */
+    private final long authTokenViewFallbackUntil;
 
+    private final OperationMetrics reserveMetrics;
+    private final OperationMetrics nextClusterIdMetrics;
+    private final OperationMetrics nextAccountIdMetrics;
+    private final OperationMetrics getMetrics;
+    private final OperationMetrics createMetrics;
+    private final OperationMetrics updateMetrics;
+    private final OperationMetrics lookupSessionMetrics;
+    private final OperationMetrics characterSetMetrics;
 
-            }
+    @Inject
+    public CouchbaseConnectionDatabaseConnector(BactaConfiguration configuration, CouchbaseTranscoder<NetworkObject> transcoder, CouchbaseConnectionManager connections, ConnectorMetrics metrics) throws Exception {
+        this.transcoder = transcoder;
 
-            String characterNamesViewName = configuration.getString("Bacta/Database/Couchbase", "CharacterNamesView");
-
-            try {
-                characterNamesView = client.getView(designDoc, characterNamesViewName);
-            } catch (InvalidViewException e) {
-                changed = true;
-                String map = "function (doc, meta) {\n" +
-                        "  if(doc.type == 'account') {\n" +
-                        "     for( var i=0; i < doc.characterList.length; i++) {\n" +
-                        "  \temit(doc.characterList[i].name, doc.characterList[i].clusterId);\n" +
-                        "     }\n" +
-                        "  }\n" +
-                        "}";
-
-                ViewDesign viewDesign = new ViewDesign(characterNamesViewName, map);
-                design.getViews().add(viewDesign);
+        reserveMetrics = metrics.operation("CouchbaseConnectionDatabaseConnector", "reserve");
+        nextClusterIdMetrics = metrics.operation("CouchbaseConnectionDatabaseConnector", "nextClusterId");
+        nextAccountIdMetrics = metrics.operation("CouchbaseConnectionDatabaseConnector", "nextAccountId");
+        getMetrics = metrics.operationByClass("CouchbaseConnectionDatabaseConnector", "getObject");
+        createMetrics = metrics.operationByClass("CouchbaseConnectionDatabaseConnector", "createObject");
+        updateMetrics = metrics.operationByClass("CouchbaseConnectionDatabaseConnector", "updateObject");
+        lookupSessionMetrics = metrics.operation("CouchbaseConnectionDatabaseConnector", "lookupSession");
+        characterSetMetrics = metrics.operation("CouchbaseConnectionDatabaseConnector", "getClusterCharacterSet");
+
+        codecs = new JsonCodecs(new Gson());
+
+        designDoc = configuration.getString("Bacta/Database/Couchbase", "DesignDoc");
+        usernameViewName = configuration.getString("Bacta/Database/Couchbase", "UsernameView");
+        authTokenViewName = configuration.getString("Bacta/Database/Couchbase", "AuthTokenView");
+        characterNamesViewName = configuration.getStringWithDefault("Bacta/Database/Couchbase", "CharacterNamesByClusterView", "characterNamesByCluster");
+
+        clients = connections.acquireAsync(configuration.getStringWithDefault("Bacta/Database/Couchbase", "ConnectionObjectsBucket", "connectionObjects"));
+
+        long startupTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "StartupTimeout", 30000);
+        readiness = new Readiness("Connection objects bucket", clients.thenCompose(pool -> Bootstrap.ensureCounters(pool, COUNTERS, startupTimeout)), startupTimeout);
+        readiness.whenReady().whenComplete((pool, e) -> {
+            if (e != null) {
+                logger.error("Unable to initialize database", e);
             }
+        });
 
-            if(changed) {
-                if(!client.createDesignDoc(design)) {
-                    throw new Exception("Unable to obtain database views");
-                }
+        characterNamesPageSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "CharacterNamesPageSize", 1000);
+        characterNamesRefresh = configuration.getLongWithDefault("Bacta/Database/Couchbase", "CharacterNamesRefresh", 300) * 1000;
+
+        reads = configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "ReadCoalescing", false) ? new SingleFlight<>() : null;
+
+        if (configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "HedgedReads", false)) {
+            hedging = new HedgedReader(
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "HedgedReadPercentile", 95),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadMinDelay", 1),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadMaxDelay", 100),
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "HedgedReadBudget", 5) / 100.0,
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadWindow", 10000));
+            metrics.publish("CouchbaseConnectionDatabaseConnector", "hedgedReads", hedging);
+        } else {
+            hedging = null;
+        }
 
-                usernameView = client.getView(designDoc, userview);
-                authTokenView = client.getView(designDoc, authview);
-                characterNamesView = client.getView(designDoc, characterNamesViewName);
-            }
+        asyncExecutor = AsyncExecutors.create(
+                configuration.getStringWithDefault("Bacta/Database/Couchbase", "AsyncExecutor", AsyncExecutors.POOL),
+                "ConnectionObjects-Async",
+                configuration.getIntWithDefault("Bacta/Database/Couchbase", "AsyncThreads", Runtime.getRuntime().availableProcessors()));
+        asyncTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "AsyncTimeout", 2500);
+
+        sequences = new SequenceAllocator("ConnectionObjects", this);
+        sequences.register("ClusterId", configuration.getIntWithDefault("Bacta/Database/Couchbase", "ClusterIdBlockSize", 1));
+        sequences.register("AccountId", configuration.getIntWithDefault("Bacta/Database/Couchbase", "AccountIdBlockSize", 1));
+
+        if (configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "AuthTokenViewFallback", true)) {
+            authTokenViewFallbackUntil = System.currentTimeMillis()
+                    + configuration.getLongWithDefault("Bacta/LoginServer", "AuthTokenTTL", 600) * 1000;
+        } else {
+            authTokenViewFallbackUntil = 0;
+        }
+    }
 
-        } catch(Exception e) {
+    /**
+     * @return the views, loading them, and creating any the design document lacks, on first use
+     * @throws IllegalStateException if they could not be loaded, to be tried again on next use
+     */
+    private Views views() {
+        Views loaded = views;
+        if (loaded != null) {
+            return loaded;
+        }
 
-            logger.error("Unable to initialize database", e);
-            System.exit(1);
+        synchronized (viewsLock) {
+            if (views == null) {
+                views = loadViews();
+            }
+            return views;
         }
     }
 
     /**
-     * Connect to the server, or servers given.
-     *
-     * @param serverAddress the server addresses to connect with.
-     * @throws java.io.IOException                 if there is a problem with connecting.
-     * @throws java.net.URISyntaxException
-     * @throws javax.naming.ConfigurationException
+     * Looks the views up at once, then adds any missing to the design document in one update.
      */
-    private CouchbaseClient connect(final String serverAddress, int port, final String bucket) throws Exception {
+    private Views loadViews() {
+        final CouchbaseClient client = client();
+
+        Executor lookups = runnable -> {
+            Thread thread = new Thread(runnable, "CouchbaseConnectionDatabaseConnector-Views");
+            thread.setDaemon(true);
+            thread.start();
+        };
+        CompletableFuture<View> usernameLookup = CompletableFuture.supplyAsync(() -> findView(client, usernameViewName), lookups);
+        CompletableFuture<View> authTokenLookup = CompletableFuture.supplyAsync(() -> findView(client, authTokenViewName), lookups);
+        CompletableFuture<View> characterNamesLookup = CompletableFuture.supplyAsync(() -> findView(client, characterNamesViewName), lookups);
+
+        View usernameView = ClientFutures.join(usernameLookup);
+        View authTokenView = ClientFutures.join(authTokenLookup);
+        View characterNamesView = ClientFutures.join(characterNamesLookup);
+
+        if (usernameView != null && authTokenView != null && characterNamesView != null) {
+            return new Views(authTokenView, characterNamesView);
+        }
 
+        DesignDocument design;
+        try {
+            design = client.getDesignDoc(designDoc);
+        } catch (Exception e) {
+            design = new DesignDocument(designDoc);
+        }
 
-        URI base = new URI(String.format("http://%s:%s/pools", serverAddress, port));
-        List<URI> baseURIs = new ArrayList<URI>();
-        baseURIs.add(base);
-        CouchbaseConnectionFactory cf = new CouchbaseConnectionFactory(baseURIs, bucket, "");
+        if (usernameView == null) {
+            String map = "function (doc, meta) {\n" +
+                    "  if(doc.username) {\n" +
+                    "  \temit(meta.id, doc);\n" +
+                    "  }\n" +
+                    "}";
+            design.getViews().add(new ViewDesign(usernameViewName, map));
+        }
 
-        CouchbaseClient client = new CouchbaseClient(cf);
+        if (authTokenView == null) {
+            String map = "function (doc, meta) {\n" +
+                    "  if(doc.authToken) {\n" +
+                    "  \temit(doc.authToken, doc);\n" +
+                    "  }\n" +
+                    "}";
+            design.getViews().add(new ViewDesign(authTokenViewName, map));
+        }
 
-        client.addObserver(new ConnectionObserver() {
+        if (characterNamesView == null) {
+            String map = "function (doc, meta) {\n" +
+                    "  if(doc.type == 'account' && doc.characterList) {\n" +
+                    "     for( var i=0; i < doc.characterList.length; i++) {\n" +
+                    "  \tvar firstName = doc.characterList[i].name.split(' ')[0].toLowerCase();\n" +
+                    "  \temit([doc.characterList[i].clusterId, firstName], firstName);\n" +
+                    "     }\n" +
+                    "  }\n" +
+                    "}";
+            design.getViews().add(new ViewDesign(characterNamesViewName, map));
+        }
 
-            public void connectionLost(SocketAddress sa) {
-                logger.debug("Connection lost to " + sa.toString() + " '" + bucket + "'");
+        try {
+            if (!client.createDesignDoc(design)) {
+                throw new IllegalStateException("Unable to obtain database views");
             }
+            return new Views(client.getView(designDoc, authTokenViewName), client.getView(designDoc, characterNamesViewName));
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to obtain database views", e);
+        }
+    }
 
-            public void connectionEstablished(SocketAddress sa, int reconnectCount) {
-                logger.debug("Connection established with " + sa.toString() + " '" + bucket + "'");
-                logger.debug("Reconnected count: " + reconnectCount);
-            }
-        });
+    /**
+     * @return the view, or null if the design document does not have it
+     */
+    private View findView(CouchbaseClient client, String viewName) {
+        try {
+            return client.getView(designDoc, viewName);
+        } catch (InvalidViewException e) {
+            return null;
+        }
+    }
 
-        return client;
+    /**
+     * @return the client of the bucket's pool that operations on the key go to
+     */
+    private CouchbaseClient client(String key) {
+        return readiness.pool().next(key);
+    }
+
+    /**
+     * @return the client of the bucket's pool to issue the next operation on no key on
+     */
+    private CouchbaseClient client() {
+        return readiness.pool().next();
+    }
+
+    /**
+     * Operations issued while the bucket is starting wait for it, up to StartupTimeout milliseconds.
+     * The views are not needed to be ready, they are loaded by the first lookup that uses them.
+     *
+     * @return whether the bucket is ready for operations
+     */
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    @Override
+    public long reserve(String key, int count) {
+        long start = reserveMetrics.start();
+        boolean success = false;
+        try {
+            long value = client(key).incr(key, count);
+            if(value < 0) {
+                throw new IllegalStateException("Unable to increment counter: " + key);
+            }
+            success = true;
+            return value;
+        } finally {
+            reserveMetrics.stop(start, success);
+        }
     }
 
     @Override
     public int nextClusterId() {
-        return (int) client.incr("ClusterId", 1);
+        long start = nextClusterIdMetrics.start();
+        boolean success = false;
+        try {
+            int id = sequences.nextInt("ClusterId");
+            success = true;
+            return id;
+        } finally {
+            nextClusterIdMetrics.stop(start, success);
+        }
     }
 
     @Override
     public int nextAccountId() {
-        return (int) client.incr("AccountId", 1);
+        long start = nextAccountIdMetrics.start();
+        boolean success = false;
+        try {
+            int id = sequences.nextInt("AccountId");
+            success = true;
+            return id;
+        } finally {
+            nextAccountIdMetrics.stop(start, success);
+        }
     }
 
     @Override
     public <T> T getObject(String key, Class<T> clazz) {
+        long start = getMetrics.start();
+        boolean success = false;
+        T object = null;
+        try {
+            object = read(key, clazz);
+            success = true;
+            return object;
+        } finally {
+            getMetrics.stop(start, success, object);
+        }
+    }
 
-        Object object = client.get(key);
-        if(object == null) return null;
+    private <T> T read(String key, Class<T> clazz) {
+        if (reads == null) {
+            if (hedging == null) {
+                return client(key).get(key, codecs.transcoder(clazz));
+            }
+            CachedData document = fetch(key);
+            return document != null ? codecs.transcoder(clazz).decode(document) : null;
+        }
+
+        return decodeAs(reads.get(key, () -> fetched(fetch(key), clazz)), clazz);
+    }
 
-        return gson.fromJson(object.toString(), clazz);
+    private CachedData fetch(String key) {
+        return hedging != null
+                ? ClientFutures.join(hedging.get(client(key), key, asyncTimeout))
+                : client(key).get(key, CachedDataTranscoder.INSTANCE);
+    }
+
+    private CompletableFuture<CachedData> fetchAsync(String key) {
+        return hedging != null
+                ? hedging.get(client(key), key, asyncTimeout)
+                : ClientFutures.of(client(key).asyncGet(key, CachedDataTranscoder.INSTANCE), asyncTimeout);
+    }
+
+    /**
+     * Asynchronous {@link #getObject(String, Class)}, decoding on the async executor.
+     */
+    @Override
+    public <T> CompletableFuture<T> getObjectAsync(final String key, final Class<T> clazz) {
+        long start = getMetrics.start();
+
+        if (reads == null) {
+            return getMetrics.stop(start, fetchAsync(key)
+                    .thenApplyAsync(document -> document != null ? codecs.transcoder(clazz).decode(document) : null, asyncExecutor));
+        }
+
+        return getMetrics.stop(start, reads.getAsync(key, () -> fetchAsync(key)
+                        .thenApplyAsync(document -> fetched(document, clazz), asyncExecutor))
+                .thenApply(fetched -> decodeAs(fetched, clazz)));
+    }
+
+    private Fetched fetched(CachedData document, Class<?> clazz) {
+        return document != null ? new Fetched(document, clazz, codecs.transcoder(clazz).decode(document)) : Fetched.MISSING;
+    }
+
+    /**
+     * Readers of the same document as another class decode it themselves.
+     */
+    private <T> T decodeAs(Fetched fetched, Class<T> clazz) {
+        if (fetched.document == null) {
+            return null;
+        }
+        if (fetched.decodedAs == clazz) {
+            return clazz.cast(fetched.decoded);
+        }
+        return codecs.transcoder(clazz).decode(fetched.document);
+    }
+
+    /**
+     * @return read coalescing counters, or null when read coalescing is disabled
+     */
+    public SingleFlight.Stats getReadCoalescingStats() {
+        return reads != null ? reads.getStats() : null;
     }
 
     @Override
     public <T> void updateObject(String key, T object) {
-        client.set(key, gson.toJson(object));
+        long start = updateMetrics.start();
+        boolean success = false;
+        try {
+            byte[] document = codecs.encode(object);
+            updateMetrics.size(document.length, object);
+            forget(key);
+            client(key).set(key, 0, new CachedData(0, document, CachedData.MAX_SIZE), CachedDataTranscoder.INSTANCE)
+                    .addListener(completed -> indexed(completed.getStatus().isSuccess(), object, document));
+            success = true;
+        } finally {
+            updateMetrics.stop(start, success, object);
+        }
     }
 
 
     @Override
     public <T> void createObject(String key, T object) {
-        client.add(key, gson.toJson(object));
+        long start = createMetrics.start();
+        boolean success = false;
+        try {
+            byte[] document = codecs.encode(object);
+            createMetrics.size(document.length, object);
+            forget(key);
+            client(key).add(key, 0, new CachedData(0, document, CachedData.MAX_SIZE), CachedDataTranscoder.INSTANCE)
+                    .addListener(completed -> indexed(completed.getStatus().isSuccess(), object, document));
+            success = true;
+        } finally {
+            createMetrics.stop(start, success, object);
+        }
+    }
+
+    /**
+     * @return a future of whether the object was written
+     */
+    public <T> CompletableFuture<Boolean> updateObjectAsync(String key, T object) {
+        long start = updateMetrics.start();
+        byte[] document = codecs.encode(object);
+        updateMetrics.size(document.length, object);
+        forget(key);
+        CompletableFuture<Boolean> future = ClientFutures.of(
+                client(key).set(key, 0, new CachedData(0, document, CachedData.MAX_SIZE), CachedDataTranscoder.INSTANCE), asyncTimeout)
+                .thenApply(written -> indexed(written, object, document));
+        return updateMetrics.stop(start, future, object);
+    }
+
+    /**
+     * @return a future of whether the object was added
+     */
+    public <T> CompletableFuture<Boolean> createObjectAsync(String key, T object) {
+        long start = createMetrics.start();
+        byte[] document = codecs.encode(object);
+        createMetrics.size(document.length, object);
+        forget(key);
+        CompletableFuture<Boolean> future = ClientFutures.of(
+                client(key).add(key, 0, new CachedData(0, document, CachedData.MAX_SIZE), CachedDataTranscoder.INSTANCE), asyncTimeout)
+                .thenApply(written -> indexed(written, object, document));
+        return createMetrics.stop(start, future, object);
+    }
+
+    /**
+     * Indexes an object once its write has succeeded, so a failed write leaves no token or name
+     * behind for a document the bucket does not hold.  The synchronous writes call this from a
+     * listener on the write, the async ones from its future.
+     */
+    private boolean indexed(Boolean written, Object object, byte[] document) {
+        if (Boolean.TRUE.equals(written)) {
+            indexAuthToken(object);
+            indexCharacterNames(document);
+        }
+        return Boolean.TRUE.equals(written);
+    }
+
+    /**
+     * Writes the token index document for an account holding a live auth token.  The document
+     * expires with the token, so the index never needs cleaning up.  Replaced tokens may still
+     * be indexed until they expire, which lookupSession guards against.
+     */
+    private void indexAuthToken(Object object) {
+        if (!(object instanceof Account)) {
+            return;
+        }
+
+        Account account = (Account) object;
+        String authToken = account.getAuthToken();
+        long ttl = account.getAuthExpiration() - System.currentTimeMillis();
+
+        String key = authTokenKey(authToken);
+        if (key == null || ttl <= 0) {
+            return;
+        }
+
+        // Expirations beyond 30 days are read by the server as absolute unix times
+        long seconds = (ttl + 999) / 1000;
+        int expiration = (int) (seconds <= MAX_RELATIVE_EXPIRATION ? seconds : (account.getAuthExpiration() + 999) / 1000);
+
+        client(key).set(key, expiration, account.getUsername());
+    }
+
+    /**
+     * Tokens come from clients, so anything that could not have been indexed is turned away before
+     * it reaches the client library, which throws on keys over 250 bytes or holding whitespace or
+     * control characters.  Only printable ASCII tokens are indexed or looked up.
+     *
+     * @return the token index key, or null if the token cannot have one
+     */
+    private static String authTokenKey(String authToken) {
+        if (authToken == null || authToken.isEmpty() || AUTH_TOKEN_PREFIX.length() + authToken.length() > MAX_KEY_LENGTH) {
+            return null;
+        }
+
+        for (int i = 0; i < authToken.length(); ++i) {
+            char c = authToken.charAt(i);
+            if (c <= ' ' || c >= 0x7F) {
+                return null;
+            }
+        }
+
+        return AUTH_TOKEN_PREFIX + authToken;
     }
 
     @Override
     public <T extends Account> T lookupSession(String authToken, Class<T> clazz) {
+        long start = lookupSessionMetrics.start();
+        boolean success = false;
+        try {
+            T account = findSession(authToken, clazz);
+            success = true;
+            return account;
+        } finally {
+            lookupSessionMetrics.stop(start, success);
+        }
+    }
+
+    private <T extends Account> T findSession(String authToken, Class<T> clazz) {
+        String key = authTokenKey(authToken);
+        if (key == null) {
+            return null;
+        }
+
+        Object username = client(key).get(key);
+
+        if (username != null) {
+            T account = getObject(username.toString(), clazz);
+            if (account != null && authToken.equals(account.getAuthToken())) {
+                return account;
+            }
+            return null;
+        }
+
+        if (System.currentTimeMillis() < authTokenViewFallbackUntil) {
+            T account = lookupSessionByView(authToken, clazz);
+            if (account != null) {
+                indexAuthToken(account);
+            }
+            return account;
+        }
+
+        return null;
+    }
+
+    /**
+     * Asynchronous {@link #lookupSession(String, Class)}.  The auth token view fallback, while it
+     * is still enabled, runs on the async executor.
+     */
+    public <T extends Account> CompletableFuture<T> lookupSessionAsync(final String authToken, final Class<T> clazz) {
+        long start = lookupSessionMetrics.start();
+        String key = authTokenKey(authToken);
+        if (key == null) {
+            return lookupSessionMetrics.stop(start, CompletableFuture.<T>completedFuture(null));
+        }
+
+        return lookupSessionMetrics.stop(start, ClientFutures.of(client(key).asyncGet(key), asyncTimeout)
+                .thenCompose(username -> {
+                    if (username != null) {
+                        return getObjectAsync(username.toString(), clazz)
+                                .thenApply(account -> account != null && authToken.equals(account.getAuthToken()) ? account : null);
+                    }
+
+                    if (System.currentTimeMillis() < authTokenViewFallbackUntil) {
+                        return CompletableFuture.supplyAsync(() -> {
+                            T account = lookupSessionByView(authToken, clazz);
+                            if (account != null) {
+                                indexAuthToken(account);
+                            }
+                            return account;
+                        }, asyncExecutor);
+                    }
+
+                    return CompletableFuture.<T>completedFuture(null);
+                }));
+    }
+
+    private <T extends Account> T lookupSessionByView(String authToken, Class<T> clazz) {
         Query userQuery = new Query();
         userQuery.setIncludeDocs(true);
         userQuery.setKey("\"" + authToken + "\"");
         userQuery.setStale(Stale.FALSE);
 
-        ViewResponse response = client.query(authTokenView, userQuery);
+        ViewResponse response = client().query(views().authToken, userQuery);
         if(response.size() == 0) {
             return null;
         }
@@ -230,34 +643,188 @@ public final class CouchbaseConnectionDatabaseConnector implements ConnectionDat
         }
 
         String document = response.removeLastElement().getDocument().toString();
-        return gson.fromJson(document, clazz);
+        return codecs.decode(document, clazz);
     }
 
+    /**
+     * Returns the lower case first names of every character on the cluster.
+     *
+     * The names of a cluster are loaded once from the cluster-keyed character names view, then kept
+     * up to date from the accounts written through this connector.  They are reloaded every
+     * {@code CharacterNamesRefresh} seconds to pick up characters created or deleted elsewhere.
+     *
+     * @return a copy of the cluster's names, the caller's to change
+     */
     @Override
     public Set<String> getClusterCharacterSet(int clusterId) {
-        Query userQuery = new Query();
-        userQuery.setIncludeDocs(true);
-        userQuery.setStale(Stale.FALSE);
+        long start = characterSetMetrics.start();
+        boolean success = false;
+        try {
+            ClusterNames names = clusterNames.computeIfAbsent(clusterId, id -> new ClusterNames());
+
+            synchronized (names) {
+                if (names.loadedAt == 0 || System.currentTimeMillis() - names.loadedAt > characterNamesRefresh) {
+                    Set<String> loaded = null;
+                    names.beginLoad();
+                    try {
+                        loaded = loadClusterCharacterNames(clusterId);
+                    } finally {
+                        names.endLoad(loaded);
+                    }
+                }
+            }
 
-        ViewResponse response = client.query(characterNamesView, userQuery);
+            success = true;
+            return new TreeSet<>(names.current());
+        } finally {
+            characterSetMetrics.stop(start, success);
+        }
+    }
 
-        Set<String> characters = new TreeSet<>();
+    private Set<String> loadClusterCharacterNames(int clusterId) {
+        Query query = new Query();
+        query.setIncludeDocs(false);
+        query.setStale(Stale.FALSE);
+        query.setRange(ComplexKey.of(clusterId), ComplexKey.of(clusterId, ComplexKey.emptyObject()));
+
+        Set<String> characters = new HashSet<>();
+
+        Paginator pages = client().paginatedQuery(views().characterNames, query, characterNamesPageSize);
+        while (pages.hasNext()) {
+            for (ViewRow row : pages.next()) {
+                // Values are JSON, so names are unescaped as they were written
+                String firstName;
+                try {
+                    firstName = codecs.decode(row.getValue(), String.class);
+                } catch (RuntimeException e) {
+                    logger.warn("Unreadable character name: Cluster=" + clusterId + " Account: " + row.getId() + " Value: " + row.getValue(), e);
+                    continue;
+                }
+                if (firstName == null) {
+                    continue;
+                }
 
-        Iterator<ViewRow> iterator = response.iterator();
-        while(iterator.hasNext()) {
-            ViewRow row = iterator.next();
-            String name = row.getKey();
-            int myClusterId = Integer.parseInt(row.getValue());
+                if (!characters.add(firstName)) {
+                    logger.error("Duplicate Character name: Cluster=" + clusterId + " Account: " + row.getId() + " Character: " + firstName);
+                }
+            }
+        }
 
-            if(myClusterId == clusterId) {
+        return characters;
+    }
 
-                String firstName = name.indexOf(" ") != -1 ? name.substring(0, name.indexOf(" ")) : name;
-                if(!characters.add(firstName.toLowerCase())) {
-                    logger.error("Duplicate Character name: Cluster=" + clusterId +  " Account: " + row.getId() + " Character: " + firstName);
+    /**
+     * Adds the characters of an account document to any cluster name sets already loaded.  Only the
+     * characterList is read, the rest of the document is skipped.
+     */
+    private void indexCharacterNames(byte[] document) {
+        if (clusterNames.isEmpty()) {
+            return;
+        }
+
+        try {
+            CharacterNames.forEach(codecs, document, (clusterId, firstName) -> {
+                ClusterNames names = clusterNames.get(clusterId);
+                if (names != null) {
+                    names.add(firstName);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to index character names", e);
+        }
+    }
+
+    private void forget(String key) {
+        if (reads != null) {
+            reads.forget(key);
+        }
+    }
+
+    /**
+     * Stops the background sequence reservations and async executor and releases the bucket's
+     * clients.  Only the first call has any effect.
+     */
+    public void shutdown() {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        sequences.shutdown();
+        asyncExecutor.shutdown();
+        clients.thenAccept(ClientPool::release);
+    }
+
+    private static final class Fetched {
+
+        static final Fetched MISSING = new Fetched(null, null, null);
+
+        final CachedData document;
+        final Class<?> decodedAs;
+        final Object decoded;
+
+        Fetched(CachedData document, Class<?> decodedAs, Object decoded) {
+            this.document = document;
+            this.decodedAs = decodedAs;
+            this.decoded = decoded;
+        }
+    }
+
+    private static final class Views {
+
+        final View authToken;
+        final View characterNames;
+
+        Views(View authToken, View characterNames) {
+            this.authToken = authToken;
+            this.characterNames = characterNames;
+        }
+    }
+
+    /**
+     * The names of one cluster.  A reload builds a new set from the view and swaps it in, keeping
+     * names added while the view was being read, which it may have missed.
+     */
+    private static final class ClusterNames {
+
+        private final Object lock = new Object();
+        private volatile Set<String> names = new ConcurrentSkipListSet<>();
+        private Set<String> addedDuringLoad;
+        volatile long loadedAt;
+
+        Set<String> current() {
+            return names;
+        }
+
+        void add(String name) {
+            synchronized (lock) {
+                names.add(name);
+                if (addedDuringLoad != null) {
+                    addedDuringLoad.add(name);
                 }
             }
         }
 
-        return characters;
+        void beginLoad() {
+            synchronized (lock) {
+                addedDuringLoad = new HashSet<>();
+            }
+        }
+
+        /**
+         * @param loaded the names read from the view, or null if they could not be
+         */
+        void endLoad(Set<String> loaded) {
+            Set<String> fresh = loaded != null ? new ConcurrentSkipListSet<>(loaded) : null;
+            synchronized (lock) {
+                if (fresh != null) {
+                    fresh.addAll(addedDuringLoad);
+                    names = fresh;
+                }
+                addedDuringLoad = null;
+            }
+            if (fresh != null) {
+                loadedAt = System.currentTimeMillis();
+            }
+        }
     }
 }
@@ -1,124 +1,942 @@
 package com.ocdsoft.bacta.soe.data.couchbase;
 
 import com.couchbase.client.CouchbaseClient;
-import com.couchbase.client.CouchbaseConnectionFactory;
+import com.couchbase.client.protocol.views.*;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.engine.data.GameDatabaseConnector;
 import com.ocdsoft.bacta.engine.object.NetworkObject;
-import net.spy.memcached.ConnectionObserver;
+import com.ocdsoft.bacta.soe.data.couchbase.async.AsyncExecutors;
+import com.ocdsoft.bacta.soe.data.couchbase.async.ClientFutures;
+import com.ocdsoft.bacta.soe.data.couchbase.cache.NearCache;
+import com.ocdsoft.bacta.soe.data.couchbase.client.Bootstrap;
+import com.ocdsoft.bacta.soe.data.couchbase.client.ClientPool;
+import com.ocdsoft.bacta.soe.data.couchbase.client.CouchbaseConnectionManager;
+import com.ocdsoft.bacta.soe.data.couchbase.client.Readiness;
+import com.ocdsoft.bacta.soe.data.couchbase.flight.SingleFlight;
+import com.ocdsoft.bacta.soe.data.couchbase.hedge.HedgedReader;
+import com.ocdsoft.bacta.soe.data.couchbase.journal.WriteAheadJournal;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.OperationMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.preload.Preloader;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import com.ocdsoft.bacta.soe.data.couchbase.write.WriteBehindQueue;
+import com.ocdsoft.bacta.soe.data.couchbase.write.WriteSuppressor;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.internal.OperationFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.SocketAddress;
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Created by kburkhardt on 2/23/14.
  */
 @Singleton
-public final class CouchbaseGameDatabaseConnector implements GameDatabaseConnector {
+public final class CouchbaseGameDatabaseConnector implements GameDatabaseConnector, SequenceSource {
 
     private static final Logger logger = LoggerFactory.getLogger(CouchbaseGameDatabaseConnector.class);
 
-    private final CouchbaseTranscoder transcoder;
+    private final CouchbaseTranscoder<NetworkObject> transcoder;
 
-    private CouchbaseClient client;
+    /**
+     * Completes with the bucket's pool, which is released at shutdown
+     */
+    private final CompletableFuture<ClientPool> clients;
+
+    private final Readiness readiness;
     private final Gson gson;
 
+    private final WriteBehindQueue<Queued> writeBehind;
+
+    private final WriteAheadJournal<Queued> journal;
+
+    private final WriteSuppressor suppressor;
+
+    /**
+     * Serves documents changed by other servers for up to NearCacheTtl milliseconds after caching them
+     */
+    private final NearCache<NetworkObject> nearCache;
+
+    private final SingleFlight<String, NetworkObject> reads;
+
+    /**
+     * Hedges reads that do not fill the near cache, which needs the CAS only the active node has
+     */
+    private final HedgedReader hedging;
+
+    private final int bulkChunkSize;
+    private final long bulkTimeout;
+
+    private final String preloadDesignDoc;
+    private final String preloadView;
+    private final String preloadIndexPrefix;
+    private final int preloadPageSize;
+    private final int preloadBatchSize;
+    private final int preloadConcurrency;
+    private final int preloadParallelism;
+
+    private final ExecutorService asyncExecutor;
+    private final long asyncTimeout;
+
+    /**
+     * Decodes large bulk reads, so they neither queue behind nor hold up the tasks of the common pool.
+     */
+    private final ForkJoinPool decodePool;
+
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    private final OperationMetrics nextIdMetrics;
+    private final OperationMetrics reserveMetrics;
+    private final OperationMetrics getMetrics;
+    private final OperationMetrics getBulkMetrics;
+    private final OperationMetrics createMetrics;
+    private final OperationMetrics createBulkMetrics;
+    private final OperationMetrics updateMetrics;
+    private final OperationMetrics updateBulkMetrics;
+    private final OperationMetrics preloadMetrics;
+
     @Inject
-    public CouchbaseGameDatabaseConnector(BactaConfiguration configuration, CouchbaseTranscoder transcoder) throws Exception {
+    public CouchbaseGameDatabaseConnector(BactaConfiguration configuration, CouchbaseTranscoder<NetworkObject> transcoder, CouchbaseConnectionManager connections, ConnectorMetrics metrics) throws Exception {
         this.transcoder = transcoder;
 
+        nextIdMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "nextId");
+        reserveMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "reserve");
+        getMetrics = metrics.operationByClass("CouchbaseGameDatabaseConnector", "getNetworkObject");
+        getBulkMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "getNetworkObjects");
+        createMetrics = metrics.operationByClass("CouchbaseGameDatabaseConnector", "createNetworkObject");
+        createBulkMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "createNetworkObjects");
+        updateMetrics = metrics.operationByClass("CouchbaseGameDatabaseConnector", "updateNetworkObject");
+        updateBulkMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "updateNetworkObjects");
+        preloadMetrics = metrics.operation("CouchbaseGameDatabaseConnector", "preload");
+
         gson = new Gson();
 
-        Properties systemProperties = System.getProperties();
-        systemProperties.put("net.spy.log.LoggerImpl", "net.spy.memcached.compat.log.SLF4JLogger");
-        System.setProperties(systemProperties);
+        clients = connections.acquireAsync(configuration.getString("Bacta/Database/Couchbase", "GameObjectsBucket"));
+
+        long startupTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "StartupTimeout", 30000);
+        readiness = new Readiness("Game objects bucket", clients.thenCompose(pool ->
+                Bootstrap.ensureCounters(pool, Collections.singletonMap("NetworkId", 4294967296L), startupTimeout)), startupTimeout);
+        readiness.whenReady().whenComplete((pool, e) -> {
+            if (e != null) {
+                logger.error("Unable to initialize database", e);
+            }
+        });
+
+        bulkChunkSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "BulkChunkSize", 1000);
+        bulkTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "BulkTimeout", 10000);
+
+        preloadDesignDoc = configuration.getStringWithDefault("Bacta/Database/Couchbase", "PreloadDesignDoc", "gameObjects");
+        preloadView = configuration.getStringWithDefault("Bacta/Database/Couchbase", "PreloadView", "objectsByScene");
+        preloadIndexPrefix = configuration.getStringWithDefault("Bacta/Database/Couchbase", "PreloadIndexPrefix", null);
+        preloadPageSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "PreloadPageSize", 10000);
+        preloadBatchSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "PreloadBatchSize", bulkChunkSize);
+        preloadConcurrency = configuration.getIntWithDefault("Bacta/Database/Couchbase", "PreloadConcurrency", 4);
+        preloadParallelism = configuration.getIntWithDefault("Bacta/Database/Couchbase", "PreloadParallelism", Runtime.getRuntime().availableProcessors());
+
+        asyncExecutor = AsyncExecutors.create(
+                configuration.getStringWithDefault("Bacta/Database/Couchbase", "AsyncExecutor", AsyncExecutors.POOL),
+                "GameObjects-Async",
+                configuration.getIntWithDefault("Bacta/Database/Couchbase", "AsyncThreads", Runtime.getRuntime().availableProcessors()));
+        asyncTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "AsyncTimeout", 2500);
+
+        decodePool = new ForkJoinPool(
+                configuration.getIntWithDefault("Bacta/Database/Couchbase", "DecodeThreads", Runtime.getRuntime().availableProcessors()),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    private final AtomicInteger threads = new AtomicInteger();
+
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("GameObjects-Decode-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, null, false);
+
+        if (configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "NearCache", false)) {
+            nearCache = new NearCache<>(
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "NearCacheMaxEntries", 100000),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "NearCacheMaxWeight", 64L * 1024 * 1024),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "NearCacheTtl", NearCache.DEFAULT_TTL_MILLIS));
+        } else {
+            nearCache = null;
+        }
+
+        reads = configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "ReadCoalescing", false) ? new SingleFlight<>() : null;
+
+        if (configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "HedgedReads", false)) {
+            hedging = new HedgedReader(
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "HedgedReadPercentile", 95),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadMinDelay", 1),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadMaxDelay", 100),
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "HedgedReadBudget", 5) / 100.0,
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "HedgedReadWindow", 10000));
+            metrics.publish("CouchbaseGameDatabaseConnector", "hedgedReads", hedging);
+        } else {
+            hedging = null;
+        }
+
+        if (configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "Journal", false)) {
+            journal = new WriteAheadJournal<>(
+                    Paths.get(configuration.getStringWithDefault("Bacta/Database/Couchbase", "JournalDirectory", "journal")),
+                    queued -> queued.networkId,
+                    new WriteAheadJournal.Codec<Queued>() {
+                        @Override
+                        public int encode(Queued queued, ByteBuffer target) {
+                            target.put(queued.document.getData());
+                            return queued.document.getFlags();
+                        }
+
+                        @Override
+                        public Queued decode(int flags, ByteBuffer payload) {
+                            byte[] data = new byte[payload.remaining()];
+                            payload.duplicate().get(data);
+                            NetworkObject object = transcoder.decode(flags, payload);
+                            return new Queued(object, new CachedData(flags, data, CachedData.MAX_SIZE));
+                        }
+                    },
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "JournalSegmentSize", 64 * 1024 * 1024),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "JournalSyncInterval", 1000));
+        } else {
+            journal = null;
+        }
+
+        suppressor = configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "WriteSuppression", false)
+                ? new WriteSuppressor(4 * Runtime.getRuntime().availableProcessors())
+                : null;
+
+        // The journal is drained through the write behind queue
+        if (journal != null || configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "WriteBehind", false)) {
+            writeBehind = new WriteBehindQueue<>(
+                    queued -> queued.networkId,
+                    journal != null ? this::storeJournaled : queued -> orSuppressed(storeChanged(queued.object, queued.document)),
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "WriteBehindBatchSize", 500),
+                    configuration.getIntWithDefault("Bacta/Database/Couchbase", "WriteBehindCapacity", 100000),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "WriteBehindInterval", 100),
+                    configuration.getLongWithDefault("Bacta/Database/Couchbase", "WriteBehindTimeout", 5000));
 
-        client = connect(
-                configuration.getString("Bacta/Database/Couchbase", "Address"),
-                configuration.getInt("Bacta/Database/Couchbase", "Port"),
-                configuration.getString("Bacta/Database/Couchbase", "GameObjectsBucket"));
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "WriteBehind-Shutdown"));
 
-        init(configuration);
+            if (journal != null) {
+                journal.replay(queued -> {
+                    queued.sequence = journal.latest(queued.networkId);
+                    writeBehind.offer(queued);
+                });
+            }
+        } else {
+            writeBehind = null;
+        }
     }
 
-    private void init(BactaConfiguration configuration) {
+    @Override
+    public long nextId() {
+        long start = nextIdMetrics.start();
+        boolean success = false;
+        try {
+            long id = client("NetworkId").incr("NetworkId", 1);
+            success = true;
+            return id;
+        } finally {
+            nextIdMetrics.stop(start, success);
+        }
+    }
 
+    public CompletableFuture<Long> nextIdAsync() {
+        long start = nextIdMetrics.start();
+        return nextIdMetrics.stop(start, ClientFutures.of(client("NetworkId").asyncIncr("NetworkId", 1), asyncTimeout));
+    }
+
+    /**
+     * @return the client of the bucket's pool that operations on the key go to
+     */
+    private CouchbaseClient client(String key) {
+        return readiness.pool().next(key);
+    }
+
+    /**
+     * @return the client of the bucket's pool to issue the next operation on no key on
+     */
+    private CouchbaseClient client() {
+        return readiness.pool().next();
+    }
+
+    /**
+     * Operations issued while the bucket is starting wait for it, up to StartupTimeout milliseconds.
+     *
+     * @return whether the bucket is ready for operations
+     */
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    @Override
+    public long reserve(String key, int count) {
+        long start = reserveMetrics.start();
+        boolean success = false;
         try {
-            if (client.get("NetworkId") == null) {
-                client.add("NetworkId", String.valueOf(4294967296L));
+            long value = client(key).incr(key, count);
+            if(value < 0) {
+                throw new IllegalStateException("Unable to increment counter: " + key);
             }
+            success = true;
+            return value;
+        } finally {
+            reserveMetrics.stop(start, success);
+        }
+    }
 
-        } catch(Exception e) {
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends NetworkObject> T getNetworkObject(String key) {
+        long start = getMetrics.start();
+        boolean success = false;
+        NetworkObject object = null;
+        try {
+            object = read(key);
+            success = true;
+            return (T) object;
+        } finally {
+            getMetrics.stop(start, success, object);
+        }
+    }
 
-            logger.error("Unable to initialize database", e);
-            System.exit(1);
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends NetworkObject> T getNetworkObject(long key) {
+        long start = getMetrics.start();
+        boolean success = false;
+        NetworkObject object = null;
+        try {
+            object = read(key);
+            success = true;
+            return (T) object;
+        } finally {
+            getMetrics.stop(start, success, object);
         }
     }
 
     /**
-     * Connect to the server, or servers given.
-     *
-     * @param serverAddress the server addresses to connect with.
-     * @throws java.io.IOException                 if there is a problem with connecting.
-     * @throws java.net.URISyntaxException
-     * @throws javax.naming.ConfigurationException
+     * Keys that are network ids are read as {@link #read(long)} reads them, so they see queued
+     * updates and the near cache.
      */
-    private CouchbaseClient connect(final String serverAddress, int port, final String bucket) throws Exception {
+    private NetworkObject read(String key) {
+        long networkId = networkIdOf(key);
+        return networkId != -1 ? read(networkId) : fetchShared(key);
+    }
+
+    private NetworkObject read(long key) {
+        NetworkObject pending = pending(key);
+        if (pending != null) {
+            return pending;
+        }
+
+        if (nearCache == null) {
+            return fetchShared(String.valueOf(key));
+        }
 
+        NetworkObject cached = nearCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
 
-        URI base = new URI(String.format("http://%s:%s/pools", serverAddress, port));
-        List<URI> baseURIs = new ArrayList<URI>();
-        baseURIs.add(base);
-        CouchbaseConnectionFactory cf = new CouchbaseConnectionFactory(baseURIs, bucket, "");
+        return reads != null ? reads.get(String.valueOf(key), () -> fetchCached(key)) : fetchCached(key);
+    }
 
-        CouchbaseClient client = new CouchbaseClient(cf);
+    @SuppressWarnings("unchecked")
+    public <T extends NetworkObject> CompletableFuture<T> getNetworkObjectAsync(String key) {
+        long networkId = networkIdOf(key);
+        if (networkId != -1) {
+            return getNetworkObjectAsync(networkId);
+        }
+
+        long start = getMetrics.start();
+        CompletableFuture<NetworkObject> future = reads != null ? reads.getAsync(key, () -> fetchAsync(key)) : fetchAsync(key);
+        return (CompletableFuture<T>) getMetrics.stop(start, future);
+    }
 
-        client.addObserver(new ConnectionObserver() {
+    /**
+     * Asynchronous {@link #getNetworkObject(long)}.  Pending and near cached objects complete
+     * immediately, fetched documents are decoded on the async executor.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends NetworkObject> CompletableFuture<T> getNetworkObjectAsync(final long key) {
+        long start = getMetrics.start();
+        NetworkObject known = pending(key);
+        if (known == null && nearCache != null) {
+            known = nearCache.get(key);
+        }
+
+        CompletableFuture<NetworkObject> future;
+        if (known != null) {
+            future = CompletableFuture.completedFuture(known);
+        } else if (nearCache == null) {
+            future = reads != null
+                    ? reads.getAsync(String.valueOf(key), () -> fetchAsync(String.valueOf(key)))
+                    : fetchAsync(String.valueOf(key));
+        } else {
+            future = reads != null
+                    ? reads.getAsync(String.valueOf(key), () -> fetchCachedAsync(key))
+                    : fetchCachedAsync(key);
+        }
+
+        return (CompletableFuture<T>) getMetrics.stop(start, future);
+    }
+
+    private NetworkObject fetchShared(String key) {
+        return reads != null ? reads.get(key, () -> fetch(key)) : fetch(key);
+    }
 
-            public void connectionLost(SocketAddress sa) {
-                logger.debug("Connection lost to " + sa.toString() + " '" + bucket + "'");
+    /**
+     * @return the latest update of the object still queued or being written, or null if the bucket has it
+     */
+    private NetworkObject pending(long networkId) {
+        Queued queued = writeBehind != null ? writeBehind.getPending(networkId) : null;
+        return queued != null ? queued.object : null;
+    }
+
+    /**
+     * @return the network id a key names, or -1 if it is not one
+     */
+    private static long networkIdOf(String key) {
+        int length = key.length();
+        if (length == 0 || length > 19) {
+            return -1;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
+        }
+
+        try {
+            return Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private NetworkObject fetch(String key) {
+        if (hedging == null) {
+            return client(key).get(key, transcoder);
+        }
+
+        CachedData document = ClientFutures.join(hedging.get(client(key), key, asyncTimeout));
+        return document != null ? transcoder.decode(document) : null;
+    }
+
+    private CompletableFuture<NetworkObject> fetchAsync(String key) {
+        CompletableFuture<CachedData> fetched = hedging != null
+                ? hedging.get(client(key), key, asyncTimeout)
+                : ClientFutures.of(client(key).asyncGet(key, CachedDataTranscoder.INSTANCE), asyncTimeout);
 
-            public void connectionEstablished(SocketAddress sa, int reconnectCount) {
-                logger.debug("Connection established with " + sa.toString() + " '" + bucket + "'");
-                logger.debug("Reconnected count: " + reconnectCount);
+        return fetched.thenApplyAsync(document -> document != null ? transcoder.decode(document) : null, asyncExecutor);
+    }
+
+    /**
+     * Fetches with the CAS the near cache needs to order this read against writes.
+     */
+    private NetworkObject fetchCached(long key) {
+        return cache(key, client(String.valueOf(key)).gets(String.valueOf(key), CachedDataTranscoder.INSTANCE));
+    }
+
+    private CompletableFuture<NetworkObject> fetchCachedAsync(final long key) {
+        return ClientFutures.of(client(String.valueOf(key)).asyncGets(String.valueOf(key), CachedDataTranscoder.INSTANCE), asyncTimeout)
+                .thenApplyAsync(document -> cache(key, document), asyncExecutor);
+    }
+
+    private NetworkObject cache(long key, CASValue<CachedData> document) {
+        if (document == null) {
+            return null;
+        }
+
+        NetworkObject object = transcoder.decode(document.getValue());
+        nearCache.put(key, object, document.getCas(), document.getValue().getData().length);
+        return object;
+    }
+
+    /**
+     * Loads many objects with one multi-get per {@code BulkChunkSize} keys rather than a round trip
+     * per object.  Large results are decoded in parallel.
+     *
+     * @return the objects found, keyed by network id
+     */
+    public <T extends NetworkObject> Map<Long, T> getNetworkObjects(Collection<Long> keys) {
+        long start = getBulkMetrics.start();
+        boolean success = false;
+        try {
+            Map<Long, T> objects = readAll(keys);
+            success = true;
+            return objects;
+        } finally {
+            getBulkMetrics.stop(start, success);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends NetworkObject> Map<Long, T> readAll(Collection<Long> keys) {
+        Map<Long, T> objects = new ConcurrentHashMap<>(keys.size() * 4 / 3 + 1);
+        List<String> fetch = new ArrayList<>(keys.size());
+
+        for (Long key : keys) {
+            NetworkObject known = pending(key);
+            if (known == null && nearCache != null) {
+                known = nearCache.get(key);
             }
-        });
 
-        return client;
+            if (known != null) {
+                objects.put(key, (T) known);
+            } else {
+                fetch.add(String.valueOf(key));
+            }
+        }
+
+        if (fetch.isEmpty()) {
+            return objects;
+        }
+
+        Map<String, CachedData> documents = BulkOperations.fetch(readiness.pool(), fetch, bulkChunkSize, bulkTimeout);
+
+        if (documents.size() >= 64) {
+            // A parallel stream run inside the pool splits across its threads
+            decodePool.submit(() -> documents.entrySet().parallelStream().forEach(entry -> decodeInto(entry, objects))).join();
+        } else {
+            documents.entrySet().forEach(entry -> decodeInto(entry, objects));
+        }
+
+        return objects;
     }
 
-    @Override
-    public long nextId() {
-        return client.incr("NetworkId", 1);
+    @SuppressWarnings("unchecked")
+    private <T extends NetworkObject> void decodeInto(Map.Entry<String, CachedData> entry, Map<Long, T> objects) {
+        long key = Long.parseLong(entry.getKey());
+        T object = (T) transcoder.decode(entry.getValue());
+        if (object == null) {
+            logger.warn("Unable to decode network object " + key + ", leaving it out of the bulk read");
+            return;
+        }
+
+        if (nearCache != null) {
+            // Multi-get does not return CAS, so these never replace a cached entry
+            nearCache.put(key, object, 0, entry.getValue().getData().length);
+        }
+        objects.put(key, object);
     }
 
-    @Override
-    public <T extends NetworkObject> T getNetworkObject(String key) {
-        return (T) client.get(key, transcoder);
+    /**
+     * Loads the objects of a scene before its zone opens, handing each to the sink, and returns
+     * once all are handed over.  The sink is called from several threads at once.
+     *
+     * The scene's network ids are read from the Bacta/Database/Couchbase PreloadView of
+     * PreloadDesignDoc, keyed by scene name, or when PreloadIndexPrefix is set from the JSON array
+     * stored under the prefix and scene name.  They are fetched PreloadBatchSize at a time with at
+     * most PreloadConcurrency batches in flight, and decoded on PreloadParallelism threads.  Objects
+     * queued for writing are handed over in place of their documents, and the near cache is filled.
+     */
+    public Preloader.Result preload(String scene, Consumer<? super NetworkObject> sink) throws InterruptedException {
+        long start = preloadMetrics.start();
+        boolean success = false;
+        try {
+            Preloader<NetworkObject> preloader = new Preloader<>(
+                    this::fetchBulkAsync,
+                    this::decodePreloaded,
+                    preloadBatchSize, preloadConcurrency, preloadParallelism);
+
+            Preloader.Result result = preloader.load(sceneKeys(scene), sink);
+            logger.info("Preloaded scene " + scene + ": " + result);
+            success = true;
+            return result;
+        } finally {
+            preloadMetrics.stop(start, success);
+        }
     }
 
-    @Override
-    public <T extends NetworkObject> T getNetworkObject(long key) {
-        return getNetworkObject(String.valueOf(key));
+    /**
+     * Multi-gets the keys, each from the client operations on it go to.
+     */
+    private CompletableFuture<Map<String, CachedData>> fetchBulkAsync(List<String> keys) {
+        Map<CouchbaseClient, List<String>> groups = readiness.pool().byClient(keys);
+        if (groups.size() == 1) {
+            Map.Entry<CouchbaseClient, List<String>> group = groups.entrySet().iterator().next();
+            return ClientFutures.of(group.getKey().asyncGetBulk(group.getValue(), CachedDataTranscoder.INSTANCE), bulkTimeout);
+        }
+
+        List<CompletableFuture<Map<String, CachedData>>> fetches = new ArrayList<>(groups.size());
+        for (Map.Entry<CouchbaseClient, List<String>> group : groups.entrySet()) {
+            fetches.add(ClientFutures.of(group.getKey().asyncGetBulk(group.getValue(), CachedDataTranscoder.INSTANCE), bulkTimeout));
+        }
+
+        return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).thenApply(fetched -> {
+            Map<String, CachedData> documents = new HashMap<>(keys.size() * 4 / 3 + 1);
+            for (CompletableFuture<Map<String, CachedData>> fetch : fetches) {
+                documents.putAll(fetch.join());
+            }
+            return documents;
+        });
+    }
+
+    private Iterator<String> sceneKeys(String scene) {
+        if (preloadIndexPrefix != null) {
+            Object index = client(preloadIndexPrefix + scene).get(preloadIndexPrefix + scene);
+            if (index == null) {
+                return Collections.emptyIterator();
+            }
+            return Arrays.stream(gson.fromJson(index.toString(), long[].class)).mapToObj(String::valueOf).iterator();
+        }
+
+        Query query = new Query();
+        query.setIncludeDocs(false);
+        query.setKey(gson.toJson(scene));
+        query.setStale(Stale.FALSE);
+
+        final Paginator pages = client().paginatedQuery(client().getView(preloadDesignDoc, preloadView), query, preloadPageSize);
+
+        // Pages are queried as the preloader reads on
+        return new Iterator<String>() {
+            private Iterator<ViewRow> rows = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!rows.hasNext() && pages.hasNext()) {
+                    rows = pages.next().iterator();
+                }
+                return rows.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return rows.next().getId();
+            }
+        };
+    }
+
+    private NetworkObject decodePreloaded(String key, CachedData document) {
+        long networkId = Long.parseLong(key);
+
+        NetworkObject pending = pending(networkId);
+        if (pending != null) {
+            return pending;
+        }
+
+        NetworkObject object = transcoder.decode(document);
+        if (nearCache != null && object != null) {
+            nearCache.put(networkId, object, 0, document.getData().length);
+        }
+        return object;
+    }
+
+    /**
+     * Adds many objects, waiting for each chunk of {@code BulkChunkSize} writes before issuing the next.
+     *
+     * @return the number of objects added
+     */
+    public <T extends NetworkObject> int createNetworkObjects(Collection<T> objects) {
+        long start = createBulkMetrics.start();
+        boolean success = false;
+        try {
+            int written = BulkOperations.write(objects, object -> store(object, true), bulkChunkSize, bulkTimeout);
+            success = true;
+            return written;
+        } finally {
+            createBulkMetrics.stop(start, success);
+        }
     }
 
+    /**
+     * Sets many objects, waiting for each chunk of {@code BulkChunkSize} writes before issuing the next.
+     * With write behind enabled the objects are queued instead.
+     *
+     * @return the number of objects written or queued
+     */
+    public <T extends NetworkObject> int updateNetworkObjects(Collection<T> objects) {
+        long start = updateBulkMetrics.start();
+        boolean success = false;
+        try {
+            int written;
+            if (writeBehind != null) {
+                for (T object : objects) {
+                    update(object);
+                }
+                written = objects.size();
+            } else {
+                written = BulkOperations.write(objects, object -> orSuppressed(storeChanged(object)), bulkChunkSize, bulkTimeout);
+            }
+            success = true;
+            return written;
+        } finally {
+            updateBulkMetrics.stop(start, success);
+        }
+    }
 
     @Override
     public <T extends NetworkObject> void createNetworkObject(T object) {
-        client.add(String.valueOf(object.getNetworkId()), 0, object, transcoder);
+        long start = createMetrics.start();
+        boolean success = false;
+        try {
+            store(object, true);
+            success = true;
+        } finally {
+            createMetrics.stop(start, success, object);
+        }
     }
 
     @Override
     public <T extends NetworkObject> void updateNetworkObject(T object) {
-        client.set(String.valueOf(object.getNetworkId()), 0, object, transcoder);
+        long start = updateMetrics.start();
+        boolean success = false;
+        try {
+            update(object);
+            success = true;
+        } finally {
+            updateMetrics.stop(start, success, object);
+        }
+    }
+
+    /**
+     * Queued updates are serialized here, on the thread updating the object, and the flusher writes
+     * that snapshot, so it never reads an object a game thread is changing.  Journaled updates are
+     * queued without waiting for the queue to have room, as the journal already holds them and game
+     * threads must never wait on the bucket.
+     */
+    private void update(NetworkObject object) {
+        if (writeBehind == null) {
+            storeChanged(object);
+            return;
+        }
+
+        Queued queued = new Queued(object, transcoder.encode(object));
+
+        boolean journaled = false;
+        if (journal != null) {
+            try {
+                queued.sequence = journal.append(queued);
+                journaled = true;
+            } catch (RuntimeException e) {
+                logger.error("Unable to journal update of network object " + object.getNetworkId(), e);
+            }
+        }
+
+        if (reads != null) {
+            reads.forget(String.valueOf(object.getNetworkId()));
+        }
+        if (nearCache != null) {
+            nearCache.putWritten(object.getNetworkId(), object, -1);
+        }
+        if (journaled) {
+            writeBehind.offer(queued);
+        } else {
+            writeBehind.enqueue(queued);
+        }
+    }
+
+    /**
+     * @return a future of whether the object was added
+     */
+    public <T extends NetworkObject> CompletableFuture<Boolean> createNetworkObjectAsync(T object) {
+        long start = createMetrics.start();
+        return createMetrics.stop(start, ClientFutures.of(store(object, true), asyncTimeout), object);
+    }
+
+    /**
+     * With write behind enabled the object is queued and the future completes once it is.
+     *
+     * @return a future of whether the object was written
+     */
+    public <T extends NetworkObject> CompletableFuture<Boolean> updateNetworkObjectAsync(T object) {
+        if (writeBehind != null) {
+            updateNetworkObject(object);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        long start = updateMetrics.start();
+        OperationFuture<Boolean> future = storeChanged(object);
+        if (future == null) {
+            updateMetrics.stop(start, true, object);
+            return CompletableFuture.completedFuture(true);
+        }
+        return updateMetrics.stop(start, ClientFutures.of(future, asyncTimeout), object);
+    }
+
+    /**
+     * @return near cache counters, or null when the near cache is disabled
+     */
+    public NearCache.Stats getNearCacheStats() {
+        return nearCache != null ? nearCache.getStats() : null;
+    }
+
+    /**
+     * @return read coalescing counters, or null when read coalescing is disabled
+     */
+    public SingleFlight.Stats getReadCoalescingStats() {
+        return reads != null ? reads.getStats() : null;
+    }
+
+    /**
+     * @return counters of updates skipped because the bucket already had them, or null when write
+     * suppression is disabled
+     */
+    public WriteSuppressor.Stats getWriteSuppressionStats() {
+        return suppressor != null ? suppressor.getStats() : null;
+    }
+
+    private OperationFuture<Boolean> store(final NetworkObject object, boolean add) {
+        if (nearCache == null) {
+            final String key = String.valueOf(object.getNetworkId());
+            if (reads != null) {
+                reads.forget(key);
+            }
+            return add ? client(key).add(key, 0, object, transcoder) : client(key).set(key, 0, object, transcoder);
+        }
+
+        return store(object, transcoder.encode(object), add);
+    }
+
+    /**
+     * Sets the object unless the bucket already has the document it encodes to.
+     *
+     * @return a future of whether the bucket took the object, or null if the write was suppressed
+     */
+    private OperationFuture<Boolean> storeChanged(final NetworkObject object) {
+        if (suppressor == null) {
+            return store(object, false);
+        }
+        return storeChanged(object, transcoder.encode(object));
+    }
+
+    private OperationFuture<Boolean> storeChanged(final NetworkObject object, final CachedData document) {
+        if (suppressor == null) {
+            return store(object, document, false);
+        }
+
+        final WriteSuppressor.Write write = suppressor.begin(object.getNetworkId(), document);
+        if (write == null) {
+            return null;
+        }
+
+        OperationFuture<Boolean> future = store(object, document, false);
+        future.addListener(completed -> write.complete(completed.getStatus().isSuccess()));
+        return future;
+    }
+
+    private static Future<Boolean> orSuppressed(OperationFuture<Boolean> future) {
+        return future != null ? future : CompletableFuture.completedFuture(true);
+    }
+
+    private OperationFuture<Boolean> store(final NetworkObject object, final CachedData document, boolean add) {
+        final String key = String.valueOf(object.getNetworkId());
+
+        if (reads != null) {
+            reads.forget(key);
+        }
+
+        if (nearCache == null) {
+            return add
+                    ? client(key).add(key, 0, document, CachedDataTranscoder.INSTANCE)
+                    : client(key).set(key, 0, document, CachedDataTranscoder.INSTANCE);
+        }
+
+        final long networkId = object.getNetworkId();
+        final int weight = document.getData().length;
+
+        nearCache.putWritten(networkId, object, weight);
+
+        OperationFuture<Boolean> future = add
+                ? client(key).add(key, 0, document, CachedDataTranscoder.INSTANCE)
+                : client(key).set(key, 0, document, CachedDataTranscoder.INSTANCE);
+
+        future.addListener(completed -> {
+            if (completed.getStatus().isSuccess()) {
+                nearCache.confirmWrite(networkId, object, completed.getCas(), weight);
+            } else {
+                nearCache.invalidate(networkId, object);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Writes a queued update, committing its journal record, and any older ones of the object, once
+     * the bucket has it.
+     */
+    private Future<Boolean> storeJournaled(Queued queued) {
+        final long networkId = queued.networkId;
+        final long sequence = queued.sequence;
+
+        OperationFuture<Boolean> future = storeChanged(queued.object, queued.document);
+        if (future == null) {
+            journal.commit(networkId, sequence);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        future.addListener(completed -> {
+            if (completed.getStatus().isSuccess()) {
+                journal.commit(networkId, sequence);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes any queued updates and releases the bucket's clients.  Only the first call has any effect.
+     * Journaled updates the bucket did not take are kept for the next start.
+     */
+    public void shutdown() {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        asyncExecutor.shutdown();
+        decodePool.shutdown();
+        clients.thenAccept(ClientPool::release);
+    }
+
+    /**
+     * An update waiting to be written: the object, and the document it was serialized to when it was
+     * updated, which is what the bucket and the journal get.
+     */
+    private static final class Queued {
+
+        final long networkId;
+        final NetworkObject object;
+        final CachedData document;
+
+        /**
+         * The journal record of the update, or 0 when it is not journaled
+         */
+        long sequence;
+
+        Queued(NetworkObject object, CachedData document) {
+            this.networkId = object.getNetworkId();
+            this.object = object;
+            this.document = document;
+        }
     }
 }
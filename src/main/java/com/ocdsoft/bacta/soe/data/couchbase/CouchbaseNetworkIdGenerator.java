@@ -2,24 +2,58 @@ package com.ocdsoft.bacta.soe.data.couchbase;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.engine.data.GameDatabaseConnector;
 import com.ocdsoft.bacta.engine.object.NetworkIdGenerator;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceAllocator;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by kburkhardt on 2/23/14.
+ *
+ * When Bacta/Database/Couchbase NetworkIdBlockSize is greater than 1, ids are leased from the
+ * server in blocks of that size rather than incremented one at a time.  Ids left in a block when
+ * the server stops are never handed out.  Leasing needs a connector that is also a
+ * {@link SequenceSource}, as both of this module's are; with any other, ids come from
+ * {@link GameDatabaseConnector#nextId()} one at a time.
  */
 @Singleton
 public class CouchbaseNetworkIdGenerator implements NetworkIdGenerator {
 
-    private final GameDatabaseConnector gameDatabaseConnector;
+    private static final Logger logger = LoggerFactory.getLogger(CouchbaseNetworkIdGenerator.class);
+
+    static final String KEY = "NetworkId";
+
+    private final SequenceAllocator allocator;
 
     @Inject
-    public CouchbaseNetworkIdGenerator(GameDatabaseConnector gameDatabaseConnector) {
-        this.gameDatabaseConnector = gameDatabaseConnector;
+    public CouchbaseNetworkIdGenerator(BactaConfiguration configuration, GameDatabaseConnector gameDatabaseConnector) {
+        this(gameDatabaseConnector, configuration.getIntWithDefault("Bacta/Database/Couchbase", "NetworkIdBlockSize", 1));
+    }
+
+    private CouchbaseNetworkIdGenerator(GameDatabaseConnector gameDatabaseConnector, int blockSize) {
+        this(gameDatabaseConnector instanceof SequenceSource
+                        ? (SequenceSource) gameDatabaseConnector
+                        : (key, count) -> gameDatabaseConnector.nextId(),
+                gameDatabaseConnector instanceof SequenceSource ? blockSize : unleased(gameDatabaseConnector, blockSize));
+    }
+
+    CouchbaseNetworkIdGenerator(SequenceSource source, int blockSize) {
+        allocator = new SequenceAllocator(KEY, source);
+        allocator.register(KEY, blockSize);
     }
 
     public long next() {
-        return gameDatabaseConnector.nextId();
+        return allocator.next(KEY);
+    }
+
+    private static int unleased(GameDatabaseConnector gameDatabaseConnector, int blockSize) {
+        if (blockSize > 1) {
+            logger.warn("NetworkIdBlockSize is ignored, " + gameDatabaseConnector.getClass().getSimpleName() + " cannot reserve blocks");
+        }
+        return 1;
     }
 
 }
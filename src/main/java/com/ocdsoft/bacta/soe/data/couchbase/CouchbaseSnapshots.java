@@ -0,0 +1,403 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.protocol.views.*;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.soe.data.couchbase.client.ClientPool;
+import com.ocdsoft.bacta.soe.data.couchbase.client.CouchbaseConnectionManager;
+import com.ocdsoft.bacta.soe.data.couchbase.snapshot.SnapshotReader;
+import com.ocdsoft.bacta.soe.data.couchbase.snapshot.SnapshotWriter;
+import net.spy.memcached.CachedData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exports the game objects bucket to a snapshot file and imports it back, copying each document's
+ * stored bytes and flags without decoding them.
+ *
+ * Export lists every key through the Bacta/Database/Couchbase SnapshotView of SnapshotDesignDoc,
+ * which must emit each document's id as its key, and fetches the documents a page at a time with
+ * multi-gets.  Records are written in view order, so an interrupted export resumes after the last
+ * key of the snapshot's last complete block.
+ *
+ * Import reads blocks in order and writes each on one of SnapshotImportThreads threads, with
+ * BulkChunkSize writes in flight per thread.  The count of leading blocks fully written is kept
+ * beside the snapshot, so an interrupted import resumes after them.  Writes overwrite existing
+ * documents, so a block imported twice does no harm.
+ *
+ * Progress is logged every SnapshotProgressInterval milliseconds.
+ */
+@Singleton
+public final class CouchbaseSnapshots {
+
+    private static final Logger logger = LoggerFactory.getLogger(CouchbaseSnapshots.class);
+
+    private static final String CHECKPOINT_SUFFIX = ".imported";
+
+    private final ClientPool clients;
+    private final Gson gson = new Gson();
+
+    private final String designDoc;
+    private final String viewName;
+    private final int pageSize;
+    private final int blockSize;
+    private final int compressionLevel;
+    private final int importThreads;
+    private final int bulkChunkSize;
+    private final long bulkTimeout;
+    private final long progressInterval;
+
+    @Inject
+    public CouchbaseSnapshots(BactaConfiguration configuration, CouchbaseConnectionManager connections) throws IOException {
+        clients = connections.acquire(configuration.getString("Bacta/Database/Couchbase", "GameObjectsBucket"));
+
+        designDoc = configuration.getStringWithDefault("Bacta/Database/Couchbase", "SnapshotDesignDoc", "gameObjects");
+        viewName = configuration.getStringWithDefault("Bacta/Database/Couchbase", "SnapshotView", "allObjects");
+        pageSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "SnapshotPageSize", 10000);
+        blockSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "SnapshotBlockSize", 1024 * 1024);
+        compressionLevel = configuration.getIntWithDefault("Bacta/Database/Couchbase", "SnapshotCompressionLevel", 1);
+        importThreads = configuration.getIntWithDefault("Bacta/Database/Couchbase", "SnapshotImportThreads", 4);
+        bulkChunkSize = configuration.getIntWithDefault("Bacta/Database/Couchbase", "BulkChunkSize", 1000);
+        bulkTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "BulkTimeout", 10000);
+        progressInterval = configuration.getLongWithDefault("Bacta/Database/Couchbase", "SnapshotProgressInterval", 5000);
+    }
+
+    /**
+     * Writes every document of the bucket to the file.
+     *
+     * @param resume carry on from the end of an existing snapshot instead of replacing it
+     */
+    public Result exportTo(Path file, boolean resume) throws IOException {
+        CouchbaseClient client = clients.next();
+
+        try (SnapshotWriter writer = resume
+                ? SnapshotWriter.resume(file, blockSize, compressionLevel)
+                : SnapshotWriter.create(file, blockSize, compressionLevel);
+             Progress progress = new Progress("Exported", writer.getRecordCount(), writer.getRawBytes())) {
+
+            String lastKey = writer.getLastKey();
+            if (lastKey != null) {
+                logger.info("Resuming export to " + file + " after " + writer.getRecordCount() + " objects, at key " + lastKey);
+            }
+
+            Query query = new Query();
+            query.setIncludeDocs(false);
+            query.setStale(Stale.FALSE);
+            if (lastKey != null) {
+                query.setRangeStart(gson.toJson(lastKey));
+            }
+
+            Paginator pages = client.paginatedQuery(client.getView(designDoc, viewName), query, pageSize);
+            List<String> keys = new ArrayList<>(pageSize);
+
+            while (pages.hasNext()) {
+                keys.clear();
+                for (ViewRow row : pages.next()) {
+                    // The range starts at the last key written
+                    if (lastKey == null || !lastKey.equals(row.getId())) {
+                        keys.add(row.getId());
+                    }
+                }
+
+                Map<String, CachedData> documents = BulkOperations.fetch(client, keys, bulkChunkSize, bulkTimeout);
+                for (String key : keys) {
+                    CachedData document = documents.get(key);
+                    if (document == null) {
+                        // Deleted since it was listed
+                        progress.missing.increment();
+                        continue;
+                    }
+
+                    writer.append(key, document.getFlags(), document.getData());
+                    progress.add(1, 2 + key.getBytes(StandardCharsets.UTF_8).length + 8 + document.getData().length);
+                }
+            }
+
+            writer.flush();
+            return progress.finish(writer.getFileSize());
+        }
+    }
+
+    /**
+     * Writes every document of the snapshot to the bucket, replacing documents that exist.
+     *
+     * @param resume skip the blocks an earlier import of the file completed
+     */
+    public Result importFrom(Path file, boolean resume) throws IOException, InterruptedException {
+        final Path checkpoint = file.resolveSibling(file.getFileName() + CHECKPOINT_SUFFIX);
+
+        try (SnapshotReader reader = SnapshotReader.open(file);
+             Progress progress = new Progress("Imported", 0, 0)) {
+
+            if (!resume) {
+                Files.deleteIfExists(checkpoint);
+            }
+
+            long first = 0;
+            if (resume && Files.exists(checkpoint)) {
+                first = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+                long skipped = reader.skip(first);
+                logger.info("Resuming import of " + file + " after " + skipped + " blocks");
+                first = skipped;
+            }
+
+            final Completion completion = new Completion(first, checkpoint);
+            final Semaphore permits = new Semaphore(importThreads * 2);
+
+            ExecutorService workers = Executors.newFixedThreadPool(importThreads, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Snapshot-Import-" + ++count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            try {
+                long index = first;
+                SnapshotReader.Block block;
+                while ((block = reader.next()) != null) {
+                    permits.acquire();
+                    final SnapshotReader.Block current = block;
+                    final long blockIndex = index++;
+
+                    workers.execute(() -> {
+                        try {
+                            completion.done(blockIndex, importBlock(current, progress));
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            } finally {
+                workers.shutdown();
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+
+            if (reader.isDamaged()) {
+                logger.warn("Imported " + file + " up to a damaged block at " + reader.getValidLength() + " of " + reader.getSize() + " bytes");
+            }
+
+            return progress.finish(reader.getValidLength());
+        }
+    }
+
+    public void shutdown() {
+        clients.release();
+    }
+
+    /**
+     * @return whether every record of the block was stored
+     */
+    private boolean importBlock(SnapshotReader.Block block, Progress progress) {
+        final List<Map.Entry<String, CachedData>> documents = new ArrayList<>(block.getRecordCount());
+
+        try {
+            block.forEach((key, flags, data) -> documents.add(new AbstractMap.SimpleImmutableEntry<>(key, new CachedData(flags, data, CachedData.MAX_SIZE))));
+        } catch (IOException e) {
+            logger.error("Unable to read snapshot block", e);
+            progress.failed.add(block.getRecordCount());
+            return false;
+        }
+
+        final CouchbaseClient client = clients.next();
+
+        int stored;
+        try {
+            stored = BulkOperations.write(documents, document -> client.set(document.getKey(), 0, document.getValue(), CachedDataTranscoder.INSTANCE), bulkChunkSize, bulkTimeout);
+        } catch (RuntimeException e) {
+            logger.error("Unable to write snapshot block", e);
+            progress.failed.add(documents.size());
+            return false;
+        }
+
+        progress.add(stored, block.getRawLength());
+        progress.failed.add(documents.size() - stored);
+        return stored == documents.size();
+    }
+
+    /**
+     * Tracks which blocks are imported and records how many leading blocks are, so a resumed import
+     * skips only blocks known to be complete.
+     */
+    private static final class Completion {
+
+        private final Path checkpoint;
+        private final Set<Long> completed = new HashSet<>();
+        private long next;
+        private boolean failed;
+
+        Completion(long first, Path checkpoint) {
+            this.next = first;
+            this.checkpoint = checkpoint;
+        }
+
+        synchronized void done(long block, boolean success) {
+            if (!success) {
+                failed = true;
+            }
+            if (failed) {
+                return;
+            }
+
+            completed.add(block);
+            long advanced = next;
+            while (completed.remove(advanced)) {
+                ++advanced;
+            }
+
+            if (advanced != next) {
+                next = advanced;
+                try {
+                    Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+                    Files.write(temporary, Long.toString(next).getBytes(StandardCharsets.US_ASCII));
+                    Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    logger.warn("Unable to record import progress in " + checkpoint, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts records and bytes, logging the totals and rates every progress interval.
+     */
+    private final class Progress implements AutoCloseable {
+
+        private final String action;
+        private final long start = System.nanoTime();
+        private final long initialRecords;
+        private final long initialBytes;
+
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder missing = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        private final ScheduledExecutorService reporter;
+
+        Progress(String action, long initialRecords, long initialBytes) {
+            this.action = action;
+            this.initialRecords = initialRecords;
+            this.initialBytes = initialBytes;
+
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Snapshot-Progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (progressInterval > 0) {
+                reporter.scheduleAtFixedRate(this::report, progressInterval, progressInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void add(long count, long size) {
+            records.add(count);
+            bytes.add(size);
+        }
+
+        Result finish(long fileSize) {
+            Result result = new Result(initialRecords + records.sum(), records.sum(), bytes.sum(), missing.sum(), failed.sum(),
+                    fileSize, System.nanoTime() - start);
+            logger.info(action + " " + result);
+            return result;
+        }
+
+        private void report() {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            logger.info(String.format("%s %d objects, %.1f MB (%.0f objects/s, %.1f MB/s)",
+                    action, initialRecords + records.sum(), (initialBytes + bytes.sum()) / 1048576.0,
+                    records.sum() / seconds, bytes.sum() / 1048576.0 / seconds));
+        }
+
+        @Override
+        public void close() {
+            reporter.shutdownNow();
+        }
+    }
+
+    public static final class Result {
+
+        private final long totalRecords;
+        private final long records;
+        private final long rawBytes;
+        private final long missing;
+        private final long failed;
+        private final long fileSize;
+        private final long elapsedNanos;
+
+        Result(long totalRecords, long records, long rawBytes, long missing, long failed, long fileSize, long elapsedNanos) {
+            this.totalRecords = totalRecords;
+            this.records = records;
+            this.rawBytes = rawBytes;
+            this.missing = missing;
+            this.failed = failed;
+            this.fileSize = fileSize;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return records in the snapshot for an export, including any written before it resumed
+         */
+        public long getTotalRecords() {
+            return totalRecords;
+        }
+
+        /**
+         * @return records exported or imported by this run
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        /**
+         * @return keys listed for export whose documents were deleted before they were fetched
+         */
+        public long getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return records that could not be imported; resuming the import retries from the first block holding one
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos > 0 ? records * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d objects (%d total), %.1f MB raw, %.1f MB file, in %dms (%.0f objects/s), %d missing, %d failed",
+                    records, totalRecords, rawBytes / 1048576.0, fileSize / 1048576.0, getElapsedMillis(), getRecordsPerSecond(), missing, failed);
+        }
+    }
+}
@@ -1,16 +1,36 @@
 package com.ocdsoft.bacta.soe.data.couchbase;
 
 import com.google.inject.Inject;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
 import com.ocdsoft.bacta.engine.object.NetworkObject;
 import com.ocdsoft.bacta.engine.serialize.NetworkSerializer;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.OperationMetrics;
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.BaseSerializingTranscoder;
 import net.spy.memcached.transcoders.Transcoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
 /**
  * Created by kburkhardt on 7/25/14.
+ *
+ * Documents carry their format version and codec in the flags, see {@link DocumentFormat}.
+ * Serialized objects of at least Bacta/Database/Couchbase CompressionThreshold bytes are deflated
+ * at CompressionLevel, and kept compressed only if that saves at least an eighth of their size.
+ *
+ * A {@link BufferSerializer} is driven through reused per thread buffers, so encoding allocates only
+ * the stored payload and decoding only the object itself.  One is used if bound, since the engine's
+ * serializer cannot implement an interface of this module, or else if the injected
+ * {@code NetworkSerializer} implements it too.
+ *
+ * Encode and decode times and stored payload sizes are recorded per object class in
+ * {@link ConnectorMetrics} when metrics are enabled.
  */
 
 public class CouchbaseTranscoder<T extends NetworkObject> extends BaseSerializingTranscoder implements Transcoder<T> {
@@ -20,35 +40,247 @@ public class CouchbaseTranscoder<T extends NetworkObject> extends BaseSerializin
     @Inject
     private NetworkSerializer networkSerializer;
 
+    private BufferSerializer boundBufferSerializer;
+
+    private static final int MAX_SERIALIZED_SIZE = 1 << 30;
+
+    private int compressionLevel = Deflater.BEST_SPEED;
+
+    private OperationMetrics encodeMetrics;
+    private OperationMetrics decodeMetrics;
+
     public CouchbaseTranscoder() {
         this(CachedData.MAX_SIZE);
     }
 
     public CouchbaseTranscoder(int max) {
         super(max);
+        setMetrics(ConnectorMetrics.DISABLED);
+    }
+
+    @Inject
+    public void configure(BactaConfiguration configuration) {
+        setCompressionThreshold(configuration.getIntWithDefault("Bacta/Database/Couchbase", "CompressionThreshold", DEFAULT_COMPRESSION_THRESHOLD));
+        compressionLevel = configuration.getIntWithDefault("Bacta/Database/Couchbase", "CompressionLevel", Deflater.BEST_SPEED);
+    }
+
+    @Inject(optional = true)
+    public void setBufferSerializer(BufferSerializer bufferSerializer) {
+        this.boundBufferSerializer = bufferSerializer;
+    }
+
+    @Inject
+    public void setMetrics(ConnectorMetrics metrics) {
+        encodeMetrics = metrics.operationByClass("CouchbaseTranscoder", "encode");
+        decodeMetrics = metrics.operationByClass("CouchbaseTranscoder", "decode");
     }
 
     @Override
     public CachedData encode(T networkObject) {
-        logger.trace("Serializing type: " + networkObject.getClass());
+        long start = encodeMetrics.start();
+        CachedData document = null;
+        try {
+            document = encodeDocument(networkObject);
+            return document;
+        } finally {
+            if (start != 0) {
+                encodeMetrics.stop(start, document != null, networkObject);
+                if (document != null) {
+                    encodeMetrics.size(document.getData().length, networkObject);
+                }
+            }
+        }
+    }
+
+    private CachedData encodeDocument(T networkObject) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Serializing type: {}", networkObject.getClass());
+        }
 
-        int flags = 0;
-        byte[] data = networkSerializer.serialize(networkObject);
+        BufferSerializer bufferSerializer = bufferSerializer();
+        byte[] data;
+        int length;
 
-        // Flags of some sort?
+        if (bufferSerializer != null) {
+            ByteBuffer buffer = serialize(bufferSerializer, networkObject);
+            data = buffer.array();
+            length = buffer.limit();
+        } else {
+            data = networkSerializer.serialize(networkObject);
+            length = data.length;
+        }
+
+        if (length >= compressionThreshold) {
+            byte[] compressed = DocumentFormat.deflate(data, 0, length, compressionLevel, length - length / 8 - 1);
+            if (compressed != null) {
+                return new CachedData(DocumentFormat.flags(DocumentFormat.VERSION_1, DocumentFormat.CODEC_DEFLATE), compressed, getMaxSize());
+            }
+        }
+
+        if (bufferSerializer != null) {
+            data = Arrays.copyOf(data, length);
+        }
+
+        return new CachedData(DocumentFormat.flags(DocumentFormat.VERSION_1, DocumentFormat.CODEC_NONE), data, getMaxSize());
+    }
 
-        return new CachedData(flags, data, CachedData.MAX_SIZE);
+    /**
+     * Writes the document payload of the object into the target buffer from its position, advancing it.
+     *
+     * @return the flags the payload is stored with
+     * @throws java.nio.BufferOverflowException if the payload does not fit
+     */
+    public int encode(T networkObject, ByteBuffer target) {
+        long start = encodeMetrics.start();
+        int position = target.position();
+        boolean success = false;
+        try {
+            int flags = encodePayload(networkObject, target);
+            success = true;
+            return flags;
+        } finally {
+            if (start != 0) {
+                encodeMetrics.stop(start, success, networkObject);
+                if (success) {
+                    encodeMetrics.size(target.position() - position, networkObject);
+                }
+            }
+        }
+    }
+
+    private int encodePayload(T networkObject, ByteBuffer target) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Serializing type: {}", networkObject.getClass());
+        }
+
+        BufferSerializer bufferSerializer = bufferSerializer();
+        byte[] data;
+        int length;
+
+        if (bufferSerializer != null) {
+            ByteBuffer buffer = serialize(bufferSerializer, networkObject);
+            data = buffer.array();
+            length = buffer.limit();
+        } else {
+            data = networkSerializer.serialize(networkObject);
+            length = data.length;
+        }
+
+        if (length >= compressionThreshold
+                && DocumentFormat.deflate(data, 0, length, compressionLevel, length - length / 8 - 1, target) >= 0) {
+            return DocumentFormat.flags(DocumentFormat.VERSION_1, DocumentFormat.CODEC_DEFLATE);
+        }
+
+        target.put(data, 0, length);
+        return DocumentFormat.flags(DocumentFormat.VERSION_1, DocumentFormat.CODEC_NONE);
     }
 
     @Override
     public T decode(CachedData d) {
+        byte[] data = d.getData();
+        return decode(d.getFlags(), data, 0, data.length);
+    }
+
+    /**
+     * Reads an object from a document payload between the buffer's position and limit, as written
+     * by {@link #encode(NetworkObject, ByteBuffer)}.  The buffer's position is left unchanged.
+     */
+    public T decode(int flags, ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return decode(flags, payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        }
+
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return decode(flags, data, 0, data.length);
+    }
+
+    private T decode(int flags, byte[] payload, int offset, int length) {
+        long start = decodeMetrics.start();
+        boolean success = false;
+        T object = null;
+        try {
+            object = decodePayload(flags, payload, offset, length);
+            success = true;
+            return object;
+        } finally {
+            if (start != 0) {
+                decodeMetrics.stop(start, success, object);
+                decodeMetrics.size(length, object);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T decodePayload(int flags, byte[] payload, int offset, int length) {
+        int codec;
+
+        switch (DocumentFormat.version(flags)) {
+            case DocumentFormat.VERSION_LEGACY:
+                codec = DocumentFormat.CODEC_NONE;
+                break;
+            case DocumentFormat.VERSION_1:
+                codec = DocumentFormat.codec(flags);
+                break;
+            default:
+                throw new IllegalStateException("Unknown document format version in flags " + flags);
+        }
 
-        T object = (T) networkSerializer.deserialize(d.getData());
+        BufferSerializer bufferSerializer = bufferSerializer();
+        T object;
 
-        logger.trace("Deserializing type: " + object.getClass());
+        switch (codec) {
+            case DocumentFormat.CODEC_NONE:
+                if (bufferSerializer != null) {
+                    object = (T) bufferSerializer.deserialize(ByteBuffer.wrap(payload, offset, length));
+                } else if (offset == 0 && length == payload.length) {
+                    object = (T) networkSerializer.deserialize(payload);
+                } else {
+                    object = (T) networkSerializer.deserialize(Arrays.copyOfRange(payload, offset, offset + length));
+                }
+                break;
+            case DocumentFormat.CODEC_DEFLATE:
+                if (bufferSerializer != null) {
+                    object = (T) bufferSerializer.deserialize(DocumentFormat.inflateToScratch(payload, offset, length));
+                } else {
+                    object = (T) networkSerializer.deserialize(DocumentFormat.inflate(payload, offset, length));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown document codec " + codec);
+        }
 
-        // Perhaps use flags of some sort?
+        if (logger.isTraceEnabled() && object != null) {
+            logger.trace("Deserializing type: {}", object.getClass());
+        }
 
         return object;
     }
+
+    private BufferSerializer bufferSerializer() {
+        if (boundBufferSerializer != null) {
+            return boundBufferSerializer;
+        }
+        return networkSerializer instanceof BufferSerializer ? (BufferSerializer) networkSerializer : null;
+    }
+
+    /**
+     * Serializes into this thread's scratch buffer, doubling it until the object fits.
+     */
+    private static ByteBuffer serialize(BufferSerializer serializer, Object object) {
+        int capacity = 0;
+        while (true) {
+            ByteBuffer buffer = DocumentFormat.scratch(capacity);
+            try {
+                serializer.serialize(object, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= MAX_SERIALIZED_SIZE) {
+                    throw new IllegalArgumentException("Serialized " + object.getClass().getName() + " exceeds " + MAX_SERIALIZED_SIZE + " bytes");
+                }
+                capacity = buffer.capacity() * 2;
+            }
+        }
+    }
 }
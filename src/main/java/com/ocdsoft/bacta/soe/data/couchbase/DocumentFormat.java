@@ -0,0 +1,226 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Layout of the flags stored with each network object document, and the payload codecs they name.
+ *
+ * <pre>
+ * bits 0-7   format version, 0 for documents written before flags were used
+ * bits 8-15  codec the serialized object is stored with
+ * </pre>
+ *
+ * Version 0 documents are raw {@code NetworkSerializer} output.  A version 1 deflate payload is
+ * the serialized length as a 4 byte big endian int followed by the deflate stream.  The length is
+ * checked before anything is allocated for it: it must be at most {@link #MAX_INFLATED_LENGTH} and
+ * no more than deflate's best ratio of {@link #MAX_DEFLATE_RATIO} to one allows for the stream.
+ *
+ * Each thread reuses one deflater, one inflater and a growable scratch buffer, so the codecs only
+ * allocate the arrays they return.  Scratch space is only kept up to {@link #MAX_RETAINED_SCRATCH}
+ * bytes; a larger document gets a buffer of its own that is dropped once the call returns.
+ */
+final class DocumentFormat {
+
+    static final int VERSION_LEGACY = 0;
+    static final int VERSION_1 = 1;
+
+    static final int CODEC_NONE = 0;
+    static final int CODEC_DEFLATE = 1;
+
+    static final int MAX_RETAINED_SCRATCH = 1 << 20;
+
+    static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+    static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_SCRATCH = 8 * 1024;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private DocumentFormat() {
+    }
+
+    static int flags(int version, int codec) {
+        return (version & 0xFF) | ((codec & 0xFF) << 8);
+    }
+
+    static int version(int flags) {
+        return flags & 0xFF;
+    }
+
+    static int codec(int flags) {
+        return (flags >>> 8) & 0xFF;
+    }
+
+    static byte[] deflate(byte[] data, int level) {
+        return deflate(data, 0, data.length, level, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the deflate payload, or null if it would be larger than maxSize bytes
+     */
+    static byte[] deflate(byte[] data, int offset, int length, int level, int maxSize) {
+        Scratch scratch = SCRATCH.get();
+        int size = deflateToScratch(scratch, data, offset, length, level, maxSize);
+        byte[] deflated = size < 0 ? null : Arrays.copyOf(scratch.deflated, size);
+        scratch.trim();
+        return deflated;
+    }
+
+    /**
+     * Writes the deflate payload into the target buffer from its position, advancing it.
+     *
+     * @return the number of bytes written, or -1 if the payload would be larger than maxSize bytes
+     */
+    static int deflate(byte[] data, int offset, int length, int level, int maxSize, ByteBuffer target) {
+        Scratch scratch = SCRATCH.get();
+        int size = deflateToScratch(scratch, data, offset, length, level, maxSize);
+        if (size >= 0) {
+            target.put(scratch.deflated, 0, size);
+        }
+        scratch.trim();
+        return size;
+    }
+
+    static byte[] inflate(byte[] payload) {
+        return inflate(payload, 0, payload.length);
+    }
+
+    static byte[] inflate(byte[] payload, int offset, int length) {
+        int inflatedLength = inflatedLength(payload, offset, length);
+        byte[] data = new byte[inflatedLength];
+        inflate(payload, offset, length, data, inflatedLength);
+        return data;
+    }
+
+    /**
+     * Inflates into this thread's scratch buffer.  The returned buffer is only valid until the
+     * thread next asks for the scratch buffer.
+     */
+    static ByteBuffer inflateToScratch(byte[] payload, int offset, int length) {
+        int inflatedLength = inflatedLength(payload, offset, length);
+        ByteBuffer buffer = scratch(inflatedLength);
+        inflate(payload, offset, length, buffer.array(), inflatedLength);
+        buffer.limit(inflatedLength);
+        return buffer;
+    }
+
+    /**
+     * @return this thread's scratch buffer, cleared, with room for at least the given number of bytes,
+     *         or a new buffer if more than {@link #MAX_RETAINED_SCRATCH} bytes are asked for
+     */
+    static ByteBuffer scratch(int capacity) {
+        if (capacity > MAX_RETAINED_SCRATCH) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        if (scratch.buffer.capacity() < capacity) {
+            scratch.buffer = ByteBuffer.allocate(Integer.highestOneBit(capacity - 1) << 1);
+        }
+        scratch.buffer.clear();
+        return scratch.buffer;
+    }
+
+    private static int deflateToScratch(Scratch scratch, byte[] data, int offset, int length, int level, int maxSize) {
+        Deflater deflater = scratch.deflater;
+        deflater.reset();
+        if (scratch.level != level) {
+            deflater.setLevel(level);
+            scratch.level = level;
+        }
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        byte[] out = scratch.deflated(Math.min(length / 2 + 64, maxSize));
+        out[0] = (byte) (length >>> 24);
+        out[1] = (byte) (length >>> 16);
+        out[2] = (byte) (length >>> 8);
+        out[3] = (byte) length;
+
+        int size = HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (size >= maxSize) {
+                return -1;
+            }
+            if (size == out.length) {
+                out = scratch.grow();
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+
+        return size <= maxSize ? size : -1;
+    }
+
+    private static int inflatedLength(byte[] payload, int offset, int length) {
+        if (length < HEADER_LENGTH) {
+            throw new IllegalStateException("Truncated deflate payload");
+        }
+        int inflatedLength = ((payload[offset] & 0xFF) << 24) | ((payload[offset + 1] & 0xFF) << 16)
+                | ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+
+        if (inflatedLength < 0 || inflatedLength > MAX_INFLATED_LENGTH
+                || inflatedLength > (long) (length - HEADER_LENGTH) * MAX_DEFLATE_RATIO) {
+            throw new IllegalStateException("Deflate payload of " + length + " bytes claims an inflated length of " + inflatedLength);
+        }
+        return inflatedLength;
+    }
+
+    private static void inflate(byte[] payload, int offset, int length, byte[] data, int inflatedLength) {
+        Inflater inflater = SCRATCH.get().inflater;
+        inflater.reset();
+        inflater.setInput(payload, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+
+        try {
+            int position = 0;
+            while (position < inflatedLength) {
+                int count = inflater.inflate(data, position, inflatedLength - position);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                position += count;
+            }
+
+            if (position != inflatedLength) {
+                throw new IllegalStateException("Deflate payload inflated to " + position + " of " + inflatedLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt deflate payload", e);
+        }
+    }
+
+    private static final class Scratch {
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final Inflater inflater = new Inflater();
+        int level = Deflater.DEFAULT_COMPRESSION;
+
+        byte[] deflated = new byte[INITIAL_SCRATCH];
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SCRATCH);
+
+        byte[] deflated(int capacity) {
+            if (deflated.length < capacity) {
+                deflated = new byte[Integer.highestOneBit(Math.max(capacity, HEADER_LENGTH + 1) - 1) << 1];
+            }
+            return deflated;
+        }
+
+        byte[] grow() {
+            deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            return deflated;
+        }
+
+        /**
+         * Lets go of a deflate buffer that grew past what a thread should hold on to.
+         */
+        void trim() {
+            if (deflated.length > MAX_RETAINED_SCRATCH) {
+                deflated = new byte[INITIAL_SCRATCH];
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that async continuations, such as decoding fetched documents, run on.
+ *
+ * <pre>
+ * virtual  a virtual thread per task, when the runtime has them, otherwise a pool
+ * pool     a fixed pool of daemon threads
+ * </pre>
+ *
+ * Virtual threads are looked up reflectively so the connectors still run on Java 8.  Callers
+ * already on virtual threads can equally use the blocking connector methods, since the client
+ * waits on latches rather than monitors and so does not pin the carrier.
+ */
+public final class AsyncExecutors {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncExecutors.class);
+
+    public static final String VIRTUAL = "virtual";
+    public static final String POOL = "pool";
+
+    private AsyncExecutors() {
+    }
+
+    public static ExecutorService create(String mode, String name, int poolThreads) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            logger.warn("Virtual threads are not available on this runtime, using a pool of " + poolThreads + " threads for " + name);
+        } else if (!POOL.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Unknown async executor: " + mode);
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(poolThreads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static boolean isVirtualThreadAvailable() {
+        return virtualThreadFactory() != null;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        Method factory = virtualThreadFactory();
+        if (factory == null) {
+            return null;
+        }
+
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Unable to create a virtual thread executor", e);
+            return null;
+        }
+    }
+
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
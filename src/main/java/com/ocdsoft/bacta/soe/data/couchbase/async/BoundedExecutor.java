@@ -0,0 +1,133 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A fixed pool of daemon threads for CPU bound work, such as hashing passwords, that admits only
+ * so much work at once.
+ *
+ * Work is admitted through {@link #admit}, which fails it at once with a
+ * {@link RejectedExecutionException} when capacity tasks are already in flight, rather than
+ * letting the queue, and the time callers wait on it, grow without bound.  Stages of admitted
+ * work run on the pool through {@link #execute}; admission bounds how many can be queued.
+ */
+public final class BoundedExecutor implements Executor, BoundedExecutorMXBean {
+
+    private final String name;
+    private final int threads;
+    private final int capacity;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore admissions;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param queueCapacity tasks that may wait for a thread, on top of those running
+     */
+    public BoundedExecutor(String name, int threads, int queueCapacity) {
+        if (threads <= 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid " + name + " executor: " + threads + " threads, queue of " + queueCapacity);
+        }
+
+        this.name = name;
+        this.threads = threads;
+        this.capacity = threads + queueCapacity;
+        this.admissions = new Semaphore(capacity);
+
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the work if there is capacity for it, holding its place until the future it returns
+     * completes.
+     *
+     * @return the future of the work, failed with a {@link RejectedExecutionException} without
+     * starting it when the executor is at capacity
+     */
+    public <V> CompletableFuture<V> admit(Supplier<? extends CompletableFuture<V>> work) {
+        if (!admissions.tryAcquire()) {
+            rejected.increment();
+            return failed(new RejectedExecutionException(name + " is at capacity of " + capacity));
+        }
+
+        CompletableFuture<V> future;
+        try {
+            future = work.get();
+        } catch (RuntimeException e) {
+            admissions.release();
+            return failed(e);
+        }
+
+        return future.whenComplete((result, error) -> admissions.release());
+    }
+
+    /**
+     * Runs a stage of admitted work on the pool.
+     */
+    @Override
+    public void execute(Runnable command) {
+        pool.execute(command);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getInFlight() {
+        return capacity - admissions.availablePermits();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return pool.getCompletedTaskCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private static <V> CompletableFuture<V> failed(Throwable error) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
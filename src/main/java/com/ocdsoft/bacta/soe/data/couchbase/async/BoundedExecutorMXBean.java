@@ -0,0 +1,30 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+/**
+ * JMX view of a {@link BoundedExecutor}.
+ */
+public interface BoundedExecutorMXBean {
+
+    int getThreads();
+
+    /**
+     * @return tasks admitted at once, running or waiting, before new ones are rejected
+     */
+    int getCapacity();
+
+    /**
+     * @return tasks admitted and not yet complete
+     */
+    int getInFlight();
+
+    /**
+     * @return tasks waiting for a thread
+     */
+    int getQueueDepth();
+
+    int getActiveCount();
+
+    long getCompletedCount();
+
+    long getRejectedCount();
+}
@@ -0,0 +1,109 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+import com.couchbase.client.internal.ReplicaGetFuture;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.OperationTimeoutException;
+
+import java.util.concurrent.*;
+
+/**
+ * Adapts client futures to {@link CompletableFuture} through their completion listeners, so no
+ * thread waits on an operation in flight.
+ *
+ * The adapted future completes on the client's listener threads, or fails with an
+ * {@link OperationTimeoutException} if the operation has not completed within the timeout.
+ * Cancelling it cancels the client operation.
+ */
+public final class ClientFutures {
+
+    private static final ScheduledThreadPoolExecutor timeouts;
+
+    static {
+        timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ClientFutures-Timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    private ClientFutures() {
+    }
+
+    public static <T> CompletableFuture<T> of(OperationFuture<T> source, long timeoutMillis) {
+        CompletableFuture<T> future = watch(source, timeoutMillis);
+        source.addListener(completed -> complete(future, source));
+        return future;
+    }
+
+    public static <T> CompletableFuture<T> of(GetFuture<T> source, long timeoutMillis) {
+        CompletableFuture<T> future = watch(source, timeoutMillis);
+        source.addListener(completed -> complete(future, source));
+        return future;
+    }
+
+    public static <T> CompletableFuture<T> of(BulkFuture<T> source, long timeoutMillis) {
+        CompletableFuture<T> future = watch(source, timeoutMillis);
+        source.addListener(completed -> complete(future, source));
+        return future;
+    }
+
+    public static <T> CompletableFuture<T> of(ReplicaGetFuture<T> source, long timeoutMillis) {
+        CompletableFuture<T> future = watch(source, timeoutMillis);
+        source.addListener(completed -> complete(future, source));
+        return future;
+    }
+
+    /**
+     * Waits for the future, throwing what it failed with as the blocking client methods would.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> watch(Future<T> source, long timeoutMillis) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (future.completeExceptionally(new OperationTimeoutException("Timed out waiting for operation after " + timeoutMillis + "ms"))) {
+                source.cancel(false);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (future.isCancelled()) {
+                source.cancel(false);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Called once the source is done, so get returns without waiting.
+     */
+    private static <T> void complete(CompletableFuture<T> future, Future<T> source) {
+        try {
+            future.complete(source.get());
+        } catch (ExecutionException e) {
+            future.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+        } catch (CancellationException e) {
+            future.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.ocdsoft.bacta.soe.data.couchbase.cache;
+
+/**
+ * Count-min sketch of 4-bit access counters used by {@link NearCache} to decide which of two
+ * entries is more worth keeping.  Counters are halved periodically so old popularity fades.
+ * Not thread safe; each cache segment owns one under its lock.
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final byte[] counters;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        width = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+        counters = new byte[width * DEPTH];
+        sampleSize = Math.max(10 * capacity, 160);
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; ++row) {
+            int index = indexOf(key, row);
+            if (counters[index] < MAX_COUNT) {
+                ++counters[index];
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(long key) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; ++row) {
+            frequency = Math.min(frequency, counters[indexOf(key, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; ++i) {
+            counters[i] >>= 1;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(long key, int row) {
+        long hash = (key + SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 29;
+        return row * width + ((int) hash & (width - 1));
+    }
+}
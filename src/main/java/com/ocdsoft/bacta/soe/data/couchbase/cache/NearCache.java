@@ -0,0 +1,628 @@
+package com.ocdsoft.bacta.soe.data.couchbase.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-process cache of decoded documents keyed by primitive network id.
+ *
+ * Eviction follows W-TinyLFU: new entries land in a small LRU window, and when the cache is full
+ * the oldest window entry only displaces the weakest entry of the main segmented LRU if it has
+ * been accessed more often, as estimated by a {@link FrequencySketch}.  The cache is bounded both
+ * by entry count and by total weight (the encoded size of each document).
+ *
+ * Each entry carries the CAS of the document it was decoded from.  Values read from the server
+ * never replace an entry with an equal or newer CAS, and values written locally are held with
+ * {@link #PENDING_CAS} until the server acknowledges the write, so a slow read cannot overwrite a
+ * newer local write.
+ *
+ * Entries are never revalidated against the server, so a document changed by another process is
+ * seen only once the local entry expires or is evicted.  The TTL is therefore the staleness bound
+ * for writes from elsewhere: an entry is served for at most that long after it was stored.  Writes
+ * made through this cache are always seen immediately.
+ *
+ * The cache is split into independently locked segments, so bounds are enforced per segment.
+ */
+public final class NearCache<V> {
+
+    /**
+     * CAS held by a locally written value until its write is acknowledged
+     */
+    public static final long PENDING_CAS = Long.MAX_VALUE;
+
+    /**
+     * Default TTL, and so the default bound on how stale a document written elsewhere can be
+     */
+    public static final long DEFAULT_TTL_MILLIS = 5000;
+
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder staleReads = new LongAdder();
+
+    /**
+     * @param maxEntries maximum number of entries
+     * @param maxWeight  maximum total weight of entries
+     * @param ttlMillis  how long an entry may be served after it was stored, 0 for no limit, which is
+     *                   only safe if no other process writes the documents cached here
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public NearCache(int maxEntries, long maxWeight, long ttlMillis) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("Invalid near cache bounds: entries=" + maxEntries + " weight=" + maxWeight);
+        }
+
+        int segmentCount = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4));
+        while (segmentCount > 1 && maxEntries / segmentCount < 16) {
+            segmentCount >>= 1;
+        }
+
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; ++i) {
+            segments[i] = new Segment<>((maxEntries + segmentCount - 1) / segmentCount, Math.max(1, maxWeight / segmentCount));
+        }
+
+        segmentMask = segmentCount - 1;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    public V get(long key) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+        V value;
+
+        segment.lock.lock();
+        try {
+            value = segment.get(key, hash, ttlNanos);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Stores a value read from the server.  An existing entry is only replaced when the value's
+     * CAS is newer; a CAS of 0 means unknown and never replaces an existing entry.
+     */
+    public void put(long key, V value, long cas, int weight) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int index = segment.find(key, hash);
+            if (index >= 0) {
+                long current = segment.cas[index];
+                if (current == PENDING_CAS || cas <= current) {
+                    staleReads.increment();
+                    return;
+                }
+                segment.update(index, value, cas, weight);
+            } else {
+                segment.insert(key, hash, value, cas, weight);
+            }
+            segment.evict(this);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a value that is being written to the server, replacing whatever is cached.
+     *
+     * @param weight the encoded size, or a negative value to keep the weight already recorded
+     */
+    public void putWritten(long key, V value, int weight) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int index = segment.find(key, hash);
+            if (index >= 0) {
+                segment.update(index, value, PENDING_CAS, weight >= 0 ? weight : segment.weights[index]);
+            } else {
+                segment.insert(key, hash, value, PENDING_CAS, weight >= 0 ? weight : segment.averageWeight());
+            }
+            segment.evict(this);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Records the CAS the server assigned to a write, if the written value is still cached.
+     */
+    public void confirmWrite(long key, V value, long cas, int weight) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int index = segment.find(key, hash);
+            if (index >= 0 && segment.values[index] == value) {
+                segment.update(index, value, cas, weight);
+                segment.evict(this);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void invalidate(long key) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int index = segment.find(key, hash);
+            if (index >= 0) {
+                segment.remove(index);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry only if it still holds the given value.
+     */
+    public void invalidate(long key, V value) {
+        int hash = hash(key);
+        Segment<V> segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int index = segment.find(key, hash);
+            if (index >= 0 && segment.values[index] == value) {
+                segment.remove(index);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.lock.lock();
+            try {
+                while (segment.count > 0) {
+                    int index = segment.windowTail >= 0 ? segment.windowTail
+                            : segment.probationTail >= 0 ? segment.probationTail : segment.protectedTail;
+                    segment.remove(index);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public Stats getStats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment<V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.count;
+                weight += segment.weight;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), staleReads.sum(), size, weight);
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[(hash >>> 24) & segmentMask];
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public static final class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long rejections;
+        private final long staleReads;
+        private final long size;
+        private final long weight;
+
+        Stats(long hits, long misses, long evictions, long rejections, long staleReads, long size, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.staleReads = staleReads;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return entries removed from the main segment to make room
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return new entries dropped because they were accessed less often than the entry they would replace
+         */
+        public long getRejections() {
+            return rejections;
+        }
+
+        /**
+         * @return reads not cached because a newer value was already cached
+         */
+        public long getStaleReads() {
+            return staleReads;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "NearCache{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", rejections=" + rejections + ", staleReads=" + staleReads + ", size=" + size + ", weight=" + weight + "}";
+        }
+    }
+
+    /**
+     * Fixed capacity open addressed table of entries threaded onto three intrusive LRU lists.
+     * All access is under {@link #lock}.
+     */
+    private static final class Segment<V> {
+
+        private static final byte WINDOW = 0;
+        private static final byte PROBATION = 1;
+        private static final byte PROTECTED = 2;
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final int capacity;
+        final long maxWeight;
+        final long maxWindowWeight;
+        final int maxWindowCount;
+        final long maxProtectedWeight;
+
+        final int[] table;
+        final int tableMask;
+
+        final long[] keys;
+        final Object[] values;
+        final long[] cas;
+        final int[] weights;
+        final long[] stamps;
+        final int[] prev;
+        final int[] next;
+        final byte[] queues;
+
+        final int[] free;
+        int freeCount;
+
+        final FrequencySketch sketch;
+
+        int count;
+        long weight;
+        long windowWeight;
+        int windowCount;
+        long protectedWeight;
+
+        int windowHead = -1;
+        int windowTail = -1;
+        int probationHead = -1;
+        int probationTail = -1;
+        int protectedHead = -1;
+        int protectedTail = -1;
+
+        Segment(int capacity, long maxWeight) {
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+            this.maxWindowWeight = Math.max(1, maxWeight / 100);
+            this.maxWindowCount = Math.max(1, capacity / 100);
+            this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 4 / 5;
+
+            // One spare slot, entries are inserted before the segment is brought back within bounds
+            int slots = capacity + 1;
+            table = new int[Integer.highestOneBit(slots) << 2];
+            tableMask = table.length - 1;
+
+            keys = new long[slots];
+            values = new Object[slots];
+            cas = new long[slots];
+            weights = new int[slots];
+            stamps = new long[slots];
+            prev = new int[slots];
+            next = new int[slots];
+            queues = new byte[slots];
+
+            free = new int[slots];
+            for (int i = 0; i < slots; ++i) {
+                free[i] = slots - 1 - i;
+            }
+            freeCount = slots;
+
+            sketch = new FrequencySketch(capacity);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key, int hash, long ttlNanos) {
+            sketch.increment(key);
+
+            int index = find(key, hash);
+            if (index < 0) {
+                return null;
+            }
+
+            if (ttlNanos > 0 && System.nanoTime() - stamps[index] > ttlNanos) {
+                remove(index);
+                return null;
+            }
+
+            onAccess(index);
+            return (V) values[index];
+        }
+
+        int find(long key, int hash) {
+            for (int slot = hash & tableMask; ; slot = (slot + 1) & tableMask) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                if (keys[entry - 1] == key) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        void insert(long key, int hash, V value, long casValue, int entryWeight) {
+            int index = free[--freeCount];
+            keys[index] = key;
+            values[index] = value;
+            cas[index] = casValue;
+            weights[index] = entryWeight;
+            stamps[index] = System.nanoTime();
+
+            int slot = hash & tableMask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & tableMask;
+            }
+            table[slot] = index + 1;
+
+            ++count;
+            weight += entryWeight;
+            windowWeight += entryWeight;
+            ++windowCount;
+            linkHead(index, WINDOW);
+        }
+
+        void update(int index, V value, long casValue, int entryWeight) {
+            int delta = entryWeight - weights[index];
+            values[index] = value;
+            cas[index] = casValue;
+            weights[index] = entryWeight;
+            stamps[index] = System.nanoTime();
+
+            weight += delta;
+            if (queues[index] == WINDOW) {
+                windowWeight += delta;
+            } else if (queues[index] == PROTECTED) {
+                protectedWeight += delta;
+            }
+            onAccess(index);
+        }
+
+        void remove(int index) {
+            unlink(index);
+            if (queues[index] == WINDOW) {
+                windowWeight -= weights[index];
+                --windowCount;
+            } else if (queues[index] == PROTECTED) {
+                protectedWeight -= weights[index];
+            }
+
+            removeFromTable(keys[index]);
+            weight -= weights[index];
+            values[index] = null;
+            --count;
+            free[freeCount++] = index;
+        }
+
+        int averageWeight() {
+            return count == 0 ? 1 : (int) Math.max(1, weight / count);
+        }
+
+        /**
+         * Brings the segment back within its bounds.  While over capacity the oldest window entry
+         * and the weakest main entry are compared and the less frequently used one is dropped,
+         * then any window overflow moves on to probation.
+         */
+        void evict(NearCache<?> cache) {
+            while (count > capacity || weight > maxWeight) {
+                int victim = probationTail >= 0 ? probationTail : protectedTail;
+                int candidate = windowTail;
+
+                if (victim >= 0 && candidate >= 0) {
+                    if (sketch.frequency(keys[candidate]) > sketch.frequency(keys[victim])) {
+                        remove(victim);
+                        cache.evictions.increment();
+                    } else {
+                        remove(candidate);
+                        cache.rejections.increment();
+                    }
+                } else if (victim >= 0) {
+                    remove(victim);
+                    cache.evictions.increment();
+                } else {
+                    remove(candidate);
+                    cache.rejections.increment();
+                }
+            }
+
+            while ((windowWeight > maxWindowWeight || windowCount > maxWindowCount) && windowTail != windowHead) {
+                int index = windowTail;
+                unlink(index);
+                windowWeight -= weights[index];
+                --windowCount;
+                linkHead(index, PROBATION);
+            }
+        }
+
+        private void onAccess(int index) {
+            switch (queues[index]) {
+                case WINDOW:
+                    unlink(index);
+                    linkHead(index, WINDOW);
+                    break;
+                case PROBATION:
+                    unlink(index);
+                    linkHead(index, PROTECTED);
+                    protectedWeight += weights[index];
+                    while (protectedWeight > maxProtectedWeight && protectedTail != index) {
+                        int demoted = protectedTail;
+                        unlink(demoted);
+                        protectedWeight -= weights[demoted];
+                        linkHead(demoted, PROBATION);
+                    }
+                    break;
+                default:
+                    unlink(index);
+                    linkHead(index, PROTECTED);
+                    break;
+            }
+        }
+
+        private void linkHead(int index, byte queue) {
+            queues[index] = queue;
+            prev[index] = -1;
+
+            int head;
+            switch (queue) {
+                case WINDOW:
+                    head = windowHead;
+                    windowHead = index;
+                    if (windowTail < 0) {
+                        windowTail = index;
+                    }
+                    break;
+                case PROBATION:
+                    head = probationHead;
+                    probationHead = index;
+                    if (probationTail < 0) {
+                        probationTail = index;
+                    }
+                    break;
+                default:
+                    head = protectedHead;
+                    protectedHead = index;
+                    if (protectedTail < 0) {
+                        protectedTail = index;
+                    }
+                    break;
+            }
+
+            next[index] = head;
+            if (head >= 0) {
+                prev[head] = index;
+            }
+        }
+
+        private void unlink(int index) {
+            int before = prev[index];
+            int after = next[index];
+
+            if (before >= 0) {
+                next[before] = after;
+            } else {
+                setHead(queues[index], after);
+            }
+
+            if (after >= 0) {
+                prev[after] = before;
+            } else {
+                setTail(queues[index], before);
+            }
+        }
+
+        private void setHead(byte queue, int index) {
+            if (queue == WINDOW) {
+                windowHead = index;
+            } else if (queue == PROBATION) {
+                probationHead = index;
+            } else {
+                protectedHead = index;
+            }
+        }
+
+        private void setTail(byte queue, int index) {
+            if (queue == WINDOW) {
+                windowTail = index;
+            } else if (queue == PROBATION) {
+                probationTail = index;
+            } else {
+                protectedTail = index;
+            }
+        }
+
+        private void removeFromTable(long key) {
+            int slot = hash(key) & tableMask;
+            while (keys[table[slot] - 1] != key) {
+                slot = (slot + 1) & tableMask;
+            }
+
+            // Backward shift deletion keeps probe sequences intact without tombstones
+            int gap = slot;
+            for (;;) {
+                slot = (slot + 1) & tableMask;
+                int entry = table[slot];
+                if (entry == 0) {
+                    break;
+                }
+
+                int ideal = hash(keys[entry - 1]) & tableMask;
+                boolean movable = slot > gap ? (ideal <= gap || ideal > slot) : (ideal <= gap && ideal > slot);
+                if (movable) {
+                    table[gap] = entry;
+                    gap = slot;
+                }
+            }
+            table[gap] = 0;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Startup work a connector does on its bucket before it is ready.
+ */
+public final class Bootstrap {
+
+    private Bootstrap() {
+    }
+
+    /**
+     * Creates each counter the bucket does not have yet with its initial value, checking them all
+     * at once, each on a thread of its own.  Counters the bucket already has are left as they are.
+     *
+     * @return a future of the pool, once every counter exists
+     */
+    public static CompletableFuture<ClientPool> ensureCounters(final ClientPool pool, Map<String, Long> initialValues, final long timeoutMillis) {
+        List<CompletableFuture<Void>> checks = new ArrayList<>(initialValues.size());
+
+        for (final Map.Entry<String, Long> counter : initialValues.entrySet()) {
+            checks.add(CompletableFuture.runAsync(() -> {
+                CouchbaseClient client = pool.next(counter.getKey());
+                if (client.get(counter.getKey()) != null) {
+                    return;
+                }
+
+                try {
+                    client.add(counter.getKey(), 0, String.valueOf(counter.getValue())).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    throw new CompletionException("Unable to create counter " + counter.getKey(), e);
+                }
+            }, runnable -> {
+                Thread thread = new Thread(runnable, "Bootstrap-" + counter.getKey());
+                thread.setDaemon(true);
+                thread.start();
+            }));
+        }
+
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).thenApply(checked -> pool);
+    }
+}
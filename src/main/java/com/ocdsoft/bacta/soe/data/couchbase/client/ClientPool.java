@@ -0,0 +1,162 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseClient;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The clients connected to one bucket.  Every operation asks for a client, so load is spread
+ * across the connections of all of them.
+ *
+ * Operations on a key always go to the same client, chosen by the key's hash, so they reach the
+ * server over one connection in the order they were issued: a read never overtakes the write of
+ * the same key before it.  Only operations on no key, such as view queries, are spread by the
+ * pool's {@link Selection}.
+ */
+public final class ClientPool {
+
+    public enum Selection {
+        /**
+         * Each operation on no key takes the next client in turn
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Each operation on no key takes the client with the fewest operations queued or awaiting a response
+         */
+        LEAST_OUTSTANDING
+    }
+
+    private final CouchbaseConnectionManager manager;
+    private final String bucket;
+    private final CouchbaseClient[] clients;
+    private final TrackingConnectionFactory[] factories;
+    private final Selection selection;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger references = new AtomicInteger();
+
+    ClientPool(CouchbaseConnectionManager manager, String bucket, CouchbaseClient[] clients, TrackingConnectionFactory[] factories, Selection selection) {
+        this.manager = manager;
+        this.bucket = bucket;
+        this.clients = clients;
+        this.factories = factories;
+        this.selection = selection;
+    }
+
+    /**
+     * @return the client every operation on the key goes to
+     */
+    public CouchbaseClient next(String key) {
+        if (clients.length == 1) {
+            return clients[0];
+        }
+        return clients[indexOf(key)];
+    }
+
+    /**
+     * Groups keys by the client operations on them go to, for multi-key operations.
+     *
+     * @return the keys of each client that has any, in the order given
+     */
+    public Map<CouchbaseClient, List<String>> byClient(Collection<String> keys) {
+        if (clients.length == 1) {
+            return Collections.singletonMap(clients[0], keys instanceof List ? (List<String>) keys : new ArrayList<>(keys));
+        }
+
+        Map<CouchbaseClient, List<String>> groups = new IdentityHashMap<>(clients.length);
+        for (String key : keys) {
+            groups.computeIfAbsent(clients[indexOf(key)], client -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * @return a client for an operation on no key, such as a view query
+     */
+    public CouchbaseClient next() {
+        if (clients.length == 1) {
+            return clients[0];
+        }
+
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        if (selection == Selection.ROUND_ROBIN) {
+            return clients[start % clients.length];
+        }
+
+        // Starting from the round robin position spreads ties
+        int best = start % clients.length;
+        int fewest = factories[best].outstanding();
+        for (int i = 1; i < clients.length && fewest > 0; ++i) {
+            int index = (start + i) % clients.length;
+            int outstanding = factories[index].outstanding();
+            if (outstanding < fewest) {
+                best = index;
+                fewest = outstanding;
+            }
+        }
+
+        return clients[best];
+    }
+
+    private int indexOf(String key) {
+        int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % clients.length;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public int size() {
+        return clients.length;
+    }
+
+    /**
+     * @return operations queued or awaiting a response across all clients
+     */
+    public int getOutstanding() {
+        int count = 0;
+        for (TrackingConnectionFactory factory : factories) {
+            count += factory.outstanding();
+        }
+        return count;
+    }
+
+    /**
+     * Gives up this user's hold on the pool.  The clients are shut down once no user holds it.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            manager.remove(this);
+        }
+    }
+
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count < 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the pool closed if it is unused, so it can no longer be retained.
+     */
+    boolean close() {
+        return references.compareAndSet(0, -1);
+    }
+
+    void shutdown(long timeout, TimeUnit unit) {
+        references.set(-1);
+        for (CouchbaseClient client : clients) {
+            client.shutdown(timeout, unit);
+        }
+    }
+}
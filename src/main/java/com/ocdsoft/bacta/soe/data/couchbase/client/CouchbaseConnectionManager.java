@@ -0,0 +1,244 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.CouchbaseConnectionFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import net.spy.memcached.ConnectionObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the Couchbase clients of the process.  Connectors acquire the pool of a bucket and release
+ * it when they shut down, so connectors on the same bucket share its clients for the life of the
+ * process, and the clients are shut down once the last of them is done.
+ *
+ * Each bucket gets Bacta/Database/Couchbase ClientsPerBucket clients.  Operations on a key go to
+ * the client its hash picks; operations on no key are spread by ClientSelection, either
+ * round-robin or least-outstanding.
+ *
+ * Clients are created by a {@link ClientFactory}, which connects to the cluster unless another is
+ * given, as benchmarks do to run against in-process fakes.  Each bucket connects on a thread of its
+ * own, so buckets acquired together connect concurrently.
+ */
+@Singleton
+public final class CouchbaseConnectionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(CouchbaseConnectionManager.class);
+
+    private final List<URI> baseURIs;
+    private final int clientsPerBucket;
+    private final ClientPool.Selection selection;
+    private final long shutdownTimeout;
+    private final ClientFactory clientFactory;
+
+    private final Map<String, ClientPool> pools = new HashMap<>();
+
+    /**
+     * Buckets being connected, shared by everyone acquiring them meanwhile
+     */
+    private final Map<String, CompletableFuture<ClientPool>> connecting = new HashMap<>();
+    private boolean shutdown;
+
+    @Inject
+    public CouchbaseConnectionManager(BactaConfiguration configuration) {
+        this(configuration, CouchbaseClient::new);
+    }
+
+    public CouchbaseConnectionManager(BactaConfiguration configuration, ClientFactory clientFactory) {
+        this.clientFactory = clientFactory;
+
+        System.setProperty("net.spy.log.LoggerImpl", "net.spy.memcached.compat.log.SLF4JLogger");
+
+        baseURIs = baseURIs(
+                configuration.getStringWithDefault("Bacta/Database/Couchbase", "Address", "127.0.0.1"),
+                configuration.getIntWithDefault("Bacta/Database/Couchbase", "Port", 8091));
+
+        clientsPerBucket = Math.max(1, configuration.getIntWithDefault("Bacta/Database/Couchbase", "ClientsPerBucket", 1));
+        selection = ClientPool.Selection.valueOf(configuration.getStringWithDefault("Bacta/Database/Couchbase", "ClientSelection", "round-robin")
+                .trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        shutdownTimeout = configuration.getLongWithDefault("Bacta/Database/Couchbase", "ShutdownTimeout", 10000);
+    }
+
+    /**
+     * @return the pool of the bucket, connecting it if no one holds it yet
+     */
+    public ClientPool acquire(String bucket) throws IOException {
+        try {
+            return acquireAsync(bucket).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous {@link #acquire(String)}, connecting the bucket on a thread of its own if no one
+     * holds it yet.
+     *
+     * @return a future of the pool, already retained once it completes
+     */
+    public synchronized CompletableFuture<ClientPool> acquireAsync(final String bucket) {
+        if (shutdown) {
+            CompletableFuture<ClientPool> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Connection manager is shut down"));
+            return failed;
+        }
+
+        ClientPool pool = pools.get(bucket);
+        if (pool != null && pool.retain()) {
+            return CompletableFuture.completedFuture(pool);
+        }
+
+        CompletableFuture<ClientPool> connection = connecting.get(bucket);
+        if (connection == null) {
+            connection = CompletableFuture
+                    .supplyAsync(() -> {
+                        try {
+                            return connect(bucket);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, runnable -> {
+                        Thread thread = new Thread(runnable, "CouchbaseConnectionManager-" + bucket);
+                        thread.setDaemon(true);
+                        thread.start();
+                    })
+                    .handle((connected, e) -> connected(bucket, connected, e));
+            if (!connection.isDone()) {
+                connecting.put(bucket, connection);
+            }
+        }
+
+        return connection.thenApply(connected -> {
+            if (!connected.retain()) {
+                throw new IllegalStateException("Connection manager is shut down");
+            }
+            return connected;
+        });
+    }
+
+    private synchronized ClientPool connected(String bucket, ClientPool pool, Throwable failure) {
+        connecting.remove(bucket);
+
+        if (failure != null) {
+            throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+        }
+
+        if (shutdown) {
+            pool.shutdown(shutdownTimeout, TimeUnit.MILLISECONDS);
+            throw new IllegalStateException("Connection manager is shut down");
+        }
+
+        pools.put(bucket, pool);
+        return pool;
+    }
+
+    /**
+     * Shuts down every client, whether or not its pool is still held.  Buckets still connecting are
+     * shut down once they connect.
+     */
+    public void shutdown() {
+        List<ClientPool> open;
+        synchronized (this) {
+            shutdown = true;
+            open = new ArrayList<>(pools.values());
+            pools.clear();
+        }
+
+        for (ClientPool pool : open) {
+            pool.shutdown(shutdownTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void remove(ClientPool pool) {
+        synchronized (this) {
+            if (pools.get(pool.getBucket()) != pool || !pool.close()) {
+                return;
+            }
+            pools.remove(pool.getBucket());
+        }
+
+        pool.shutdown(shutdownTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private ClientPool connect(final String bucket) throws IOException {
+        CouchbaseClient[] clients = new CouchbaseClient[clientsPerBucket];
+        TrackingConnectionFactory[] factories = new TrackingConnectionFactory[clientsPerBucket];
+
+        try {
+            for (int i = 0; i < clientsPerBucket; ++i) {
+                factories[i] = new TrackingConnectionFactory(baseURIs, bucket, "");
+                clients[i] = clientFactory.create(factories[i]);
+                clients[i].addObserver(new ConnectionObserver() {
+
+                    public void connectionLost(SocketAddress sa) {
+                        logger.debug("Connection lost to " + sa.toString() + " '" + bucket + "'");
+                    }
+
+                    public void connectionEstablished(SocketAddress sa, int reconnectCount) {
+                        logger.debug("Connection established with " + sa.toString() + " '" + bucket + "'");
+                        logger.debug("Reconnected count: " + reconnectCount);
+                    }
+                });
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CouchbaseClient client : clients) {
+                if (client != null) {
+                    client.shutdown(0, TimeUnit.MILLISECONDS);
+                }
+            }
+            throw e;
+        }
+
+        logger.info("Connected " + clientsPerBucket + " client(s) to '" + bucket + "' with " + selection + " selection");
+        return new ClientPool(this, bucket, clients, factories, selection);
+    }
+
+    /**
+     * Creates a client of a bucket from its connection factory.
+     */
+    public interface ClientFactory {
+
+        CouchbaseClient create(CouchbaseConnectionFactory connectionFactory) throws IOException;
+    }
+
+    /**
+     * @param addresses one or more comma separated server addresses
+     */
+    private static List<URI> baseURIs(String addresses, int port) {
+        List<URI> baseURIs = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            if (address.trim().isEmpty()) {
+                continue;
+            }
+
+            try {
+                baseURIs.add(new URI(String.format("http://%s:%s/pools", address.trim(), port)));
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid Couchbase address: " + address, e);
+            }
+        }
+
+        if (baseURIs.isEmpty()) {
+            throw new IllegalArgumentException("No Couchbase address configured");
+        }
+
+        return baseURIs;
+    }
+}
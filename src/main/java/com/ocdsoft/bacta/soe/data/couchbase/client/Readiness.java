@@ -0,0 +1,101 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Whether a connector's bucket is ready for key-value operations: starting while it connects and
+ * its counters are checked, then ready, or failed for good with the cause.
+ *
+ * Connectors are constructed without waiting for their bucket, so buckets connect concurrently
+ * and the server starts while they do.  Operations issued while the bucket is starting wait for it,
+ * up to the startup timeout; operations issued after it failed throw.
+ */
+public final class Readiness {
+
+    public enum State {
+        STARTING,
+        READY,
+        FAILED
+    }
+
+    private final String name;
+    private final CompletableFuture<ClientPool> startup;
+    private final long timeoutMillis;
+
+    private volatile ClientPool pool;
+
+    /**
+     * @param startup completes with the bucket's pool once it can take operations
+     */
+    public Readiness(String name, CompletableFuture<ClientPool> startup, long timeoutMillis) {
+        this.name = name;
+        this.startup = startup;
+        this.timeoutMillis = timeoutMillis;
+
+        startup.thenAccept(ready -> pool = ready);
+    }
+
+    public State getState() {
+        if (!startup.isDone()) {
+            return State.STARTING;
+        }
+        return startup.isCompletedExceptionally() ? State.FAILED : State.READY;
+    }
+
+    /**
+     * @return why startup failed, or null if it has not
+     */
+    public Throwable getFailure() {
+        if (!startup.isCompletedExceptionally()) {
+            return null;
+        }
+
+        try {
+            startup.join();
+            return null;
+        } catch (CompletionException | CancellationException e) {
+            return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return a future of the pool, completing when the bucket is ready
+     */
+    public CompletableFuture<ClientPool> whenReady() {
+        return startup;
+    }
+
+    /**
+     * @return the bucket's pool, waiting for it to be ready if it is still starting
+     * @throws IllegalStateException if startup failed, or did not finish within the timeout
+     */
+    public ClientPool pool() {
+        ClientPool ready = pool;
+        if (ready != null) {
+            return ready;
+        }
+
+        try {
+            return startup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(name + " failed to start", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(name + " is still starting after " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + name + " to start", e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException(name + " failed to start", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getState();
+    }
+}
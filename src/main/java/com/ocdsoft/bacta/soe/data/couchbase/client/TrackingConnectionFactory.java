@@ -0,0 +1,66 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseConnectionFactory;
+import net.spy.memcached.ops.Operation;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the operation queues the client creates for each node, so the operations a client has
+ * queued, being written or awaiting a response can be counted without touching every call site.
+ *
+ * The queues are held weakly, as only their node needs them: once a reconfiguration drops a node
+ * and the node is collected, its queues are dropped from the count too.
+ */
+final class TrackingConnectionFactory extends CouchbaseConnectionFactory {
+
+    private final ConcurrentLinkedQueue<WeakReference<BlockingQueue<Operation>>> queues = new ConcurrentLinkedQueue<>();
+
+    TrackingConnectionFactory(List<URI> baseList, String bucketName, String password) throws IOException {
+        super(baseList, bucketName, password);
+    }
+
+    @Override
+    public BlockingQueue<Operation> createOperationQueue() {
+        return track(super.createOperationQueue());
+    }
+
+    @Override
+    public BlockingQueue<Operation> createReadOperationQueue() {
+        return track(super.createReadOperationQueue());
+    }
+
+    @Override
+    public BlockingQueue<Operation> createWriteOperationQueue() {
+        return track(super.createWriteOperationQueue());
+    }
+
+    /**
+     * Queues of nodes dropped by a reconfiguration are empty once their operations have been
+     * redistributed, and are forgotten here once collected.
+     */
+    int outstanding() {
+        int count = 0;
+        for (Iterator<WeakReference<BlockingQueue<Operation>>> iterator = queues.iterator(); iterator.hasNext(); ) {
+            BlockingQueue<Operation> queue = iterator.next().get();
+            if (queue == null) {
+                iterator.remove();
+            } else {
+                count += queue.size();
+            }
+        }
+        return count;
+    }
+
+    private BlockingQueue<Operation> track(BlockingQueue<Operation> queue) {
+        queues.removeIf(reference -> reference.get() == null);
+        queues.add(new WeakReference<>(queue));
+        return queue;
+    }
+}
@@ -0,0 +1,269 @@
+package com.ocdsoft.bacta.soe.data.couchbase.embedded;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.object.account.Account;
+import com.ocdsoft.bacta.soe.data.couchbase.AsyncConnectionDatabaseConnector;
+import com.ocdsoft.bacta.soe.data.couchbase.json.CharacterNames;
+import com.ocdsoft.bacta.soe.data.couchbase.json.JsonCodecs;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import net.spy.memcached.CachedData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Accounts and other connection documents held in process by an {@link OffHeapStore}, the
+ * counterpart of {@link EmbeddedGameDatabaseConnector}.
+ *
+ * Documents are stored as the JSON the bucket would hold.  The views the bucket is queried through
+ * are kept as in memory indexes instead: auth token to document key, and the first names of each
+ * cluster's characters.  Both are built from the documents at start and kept up to date from every
+ * write, so, unlike the bucket, lookups never see a stale index.
+ */
+@Singleton
+public final class EmbeddedConnectionDatabaseConnector implements AsyncConnectionDatabaseConnector, SequenceSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedConnectionDatabaseConnector.class);
+
+    private final JsonCodecs codecs;
+    private final OffHeapStore store;
+    private final Path snapshot;
+
+    /**
+     * Auth token to the key of the document holding it
+     */
+    private final ConcurrentMap<String, String> authTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Cluster id to first name to the number of characters with it
+     */
+    private final ConcurrentMap<Integer, ConcurrentMap<String, Integer>> clusterNames = new ConcurrentHashMap<>();
+
+    /**
+     * Key to what its document last added to the indexes, to be taken out when it is replaced.
+     * Guards the indexes, and the store writes they follow.
+     */
+    private final Map<String, Indexed> indexed = new HashMap<>();
+
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    @Inject
+    public EmbeddedConnectionDatabaseConnector(BactaConfiguration configuration) throws IOException {
+        codecs = new JsonCodecs(new Gson());
+
+        String file = configuration.getStringWithDefault("Bacta/Database/Embedded", "ConnectionObjectsSnapshot", "");
+        snapshot = file.isEmpty() ? null : Paths.get(file);
+
+        store = OffHeapStore.open(snapshot,
+                configuration.getIntWithDefault("Bacta/Database/Embedded", "SegmentSize", 16 * 1024 * 1024));
+        store.addCounter("ClusterId", 1);
+        store.addCounter("AccountId", 1);
+
+        synchronized (indexed) {
+            store.forEachDocument((key, document) -> index(key, document.getData()));
+        }
+        logger.info("Indexed " + authTokens.size() + " auth tokens and the characters of " + clusterNames.size() + " clusters");
+
+        long interval = configuration.getLongWithDefault("Bacta/Database/Embedded", "SnapshotInterval", 300000);
+        if (snapshot != null && interval > 0) {
+            store.snapshotEvery(snapshot, interval);
+        }
+
+        if (snapshot != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "ConnectionObjects-Snapshot"));
+        }
+    }
+
+    @Override
+    public long reserve(String key, int count) {
+        return store.incr(key, count);
+    }
+
+    @Override
+    public int nextClusterId() {
+        return (int) store.incr("ClusterId", 1);
+    }
+
+    @Override
+    public int nextAccountId() {
+        return (int) store.incr("AccountId", 1);
+    }
+
+    @Override
+    public <T> T getObject(String key, Class<T> clazz) {
+        CachedData document = store.get(key);
+        if (document == null) {
+            return null;
+        }
+
+        byte[] data = document.getData();
+        return codecs.decode(data, 0, data.length, clazz);
+    }
+
+    /**
+     * Reads the document in process, so the future is already complete when it is returned.
+     */
+    @Override
+    public <T> CompletableFuture<T> getObjectAsync(String key, Class<T> clazz) {
+        try {
+            return CompletableFuture.completedFuture(getObject(key, clazz));
+        } catch (RuntimeException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public <T> void updateObject(String key, T object) {
+        byte[] document = codecs.encode(object);
+        synchronized (indexed) {
+            store.put(key, new CachedData(0, document, CachedData.MAX_SIZE));
+            index(key, document);
+        }
+    }
+
+    @Override
+    public <T> void createObject(String key, T object) {
+        byte[] document = codecs.encode(object);
+        synchronized (indexed) {
+            if (store.add(key, new CachedData(0, document, CachedData.MAX_SIZE))) {
+                index(key, document);
+            }
+        }
+    }
+
+    @Override
+    public <T extends Account> T lookupSession(String authToken, Class<T> clazz) {
+        String key = authTokens.get(authToken);
+        if (key == null) {
+            return null;
+        }
+
+        T account = getObject(key, clazz);
+        return account != null && authToken.equals(account.getAuthToken()) ? account : null;
+    }
+
+    /**
+     * @return a copy of the lower case first names of the cluster's characters, the caller's to change
+     */
+    @Override
+    public Set<String> getClusterCharacterSet(int clusterId) {
+        return new TreeSet<>(names(clusterId).keySet());
+    }
+
+    public OffHeapStore.Stats getStoreStats() {
+        return store.getStats();
+    }
+
+    /**
+     * Snapshots the store, when a snapshot file is configured, and frees it.  Only the first call
+     * has any effect.  With a snapshot file this is also run by a shutdown hook, so a normal stop
+     * of the process saves the store.
+     */
+    public void shutdown() {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (snapshot != null) {
+            try {
+                store.snapshot(snapshot);
+            } catch (IOException e) {
+                logger.error("Unable to snapshot connection objects to " + snapshot, e);
+            }
+        }
+
+        store.close();
+    }
+
+    /**
+     * Replaces what the key's previous document added to the indexes with what this one adds.
+     * Called holding the indexed lock.
+     */
+    private void index(String key, byte[] document) {
+        Indexed previous = indexed.remove(key);
+        if (previous != null) {
+            if (previous.authToken != null) {
+                authTokens.remove(previous.authToken, key);
+            }
+            for (int i = 0; i < previous.clusterIds.size(); ++i) {
+                names(previous.clusterIds.get(i)).computeIfPresent(previous.firstNames.get(i), (name, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+
+        Indexed current = scan(key, document);
+        if (current == null) {
+            return;
+        }
+
+        if (current.authToken != null) {
+            authTokens.put(current.authToken, key);
+        }
+        for (int i = 0; i < current.clusterIds.size(); ++i) {
+            names(current.clusterIds.get(i)).merge(current.firstNames.get(i), 1, Integer::sum);
+        }
+        indexed.put(key, current);
+    }
+
+    /**
+     * @return the auth token and characters of a document, or null if it has neither
+     */
+    private Indexed scan(String key, byte[] document) {
+        Indexed found = new Indexed();
+
+        try {
+            JsonReader reader = codecs.newReader(document, 0, document.length);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                JsonToken token = reader.peek();
+
+                if ("authToken".equals(field) && token == JsonToken.STRING) {
+                    String authToken = reader.nextString();
+                    found.authToken = authToken.isEmpty() ? null : authToken;
+                } else if ("characterList".equals(field) && token == JsonToken.BEGIN_ARRAY) {
+                    CharacterNames.readList(reader, (clusterId, firstName) -> {
+                        found.clusterIds.add(clusterId);
+                        found.firstNames.add(firstName);
+                    });
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to index document " + key, e);
+            return null;
+        }
+
+        return found.authToken != null || !found.clusterIds.isEmpty() ? found : null;
+    }
+
+    private ConcurrentMap<String, Integer> names(int clusterId) {
+        return clusterNames.computeIfAbsent(clusterId, id -> new ConcurrentHashMap<>());
+    }
+
+    private static final class Indexed {
+
+        String authToken;
+        final List<Integer> clusterIds = new ArrayList<>(2);
+        final List<String> firstNames = new ArrayList<>(2);
+    }
+}
@@ -0,0 +1,128 @@
+package com.ocdsoft.bacta.soe.data.couchbase.embedded;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.data.GameDatabaseConnector;
+import com.ocdsoft.bacta.engine.object.NetworkObject;
+import com.ocdsoft.bacta.soe.data.couchbase.CouchbaseTranscoder;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import net.spy.memcached.CachedData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Game objects held in process by an {@link OffHeapStore}, for single node servers and for
+ * benchmarks that should measure the server rather than the cluster.
+ *
+ * Objects are stored as the {@link CouchbaseTranscoder} encodes them for the bucket, so they cost
+ * the same to write and read as they would over the network, without the round trip.  With a
+ * {@code GameObjectsSnapshot} file configured the store is loaded from it at start, snapshotted to
+ * it every {@code SnapshotInterval} milliseconds and once more at shutdown.
+ */
+@Singleton
+public final class EmbeddedGameDatabaseConnector implements GameDatabaseConnector, SequenceSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedGameDatabaseConnector.class);
+
+    private final CouchbaseTranscoder<NetworkObject> transcoder;
+    private final OffHeapStore store;
+    private final Path snapshot;
+
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    @Inject
+    public EmbeddedGameDatabaseConnector(BactaConfiguration configuration, CouchbaseTranscoder<NetworkObject> transcoder) throws IOException {
+        this.transcoder = transcoder;
+
+        String file = configuration.getStringWithDefault("Bacta/Database/Embedded", "GameObjectsSnapshot", "");
+        snapshot = file.isEmpty() ? null : Paths.get(file);
+
+        store = OffHeapStore.open(snapshot,
+                configuration.getIntWithDefault("Bacta/Database/Embedded", "SegmentSize", 16 * 1024 * 1024));
+        store.addCounter("NetworkId", 4294967296L);
+
+        long interval = configuration.getLongWithDefault("Bacta/Database/Embedded", "SnapshotInterval", 300000);
+        if (snapshot != null && interval > 0) {
+            store.snapshotEvery(snapshot, interval);
+        }
+
+        if (snapshot != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "GameObjects-Snapshot"));
+        }
+    }
+
+    @Override
+    public long nextId() {
+        return store.incr("NetworkId", 1);
+    }
+
+    @Override
+    public long reserve(String key, int count) {
+        return store.incr(key, count);
+    }
+
+    /**
+     * Keys that are network ids share the index of {@link #getNetworkObject(long)}.
+     */
+    @Override
+    public <T extends NetworkObject> T getNetworkObject(String key) {
+        long networkId;
+        try {
+            networkId = Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return decode(store.get(key));
+        }
+        return getNetworkObject(networkId);
+    }
+
+    @Override
+    public <T extends NetworkObject> T getNetworkObject(long key) {
+        return decode(store.get(key));
+    }
+
+    @Override
+    public <T extends NetworkObject> void createNetworkObject(T object) {
+        store.add(object.getNetworkId(), transcoder.encode(object));
+    }
+
+    @Override
+    public <T extends NetworkObject> void updateNetworkObject(T object) {
+        store.put(object.getNetworkId(), transcoder.encode(object));
+    }
+
+    public OffHeapStore.Stats getStoreStats() {
+        return store.getStats();
+    }
+
+    /**
+     * Snapshots the store, when a snapshot file is configured, and frees it.  Only the first call
+     * has any effect.  With a snapshot file this is also run by a shutdown hook, so a normal stop
+     * of the process saves the store.
+     */
+    public void shutdown() {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (snapshot != null) {
+            try {
+                store.snapshot(snapshot);
+            } catch (IOException e) {
+                logger.error("Unable to snapshot game objects to " + snapshot, e);
+            }
+        }
+
+        store.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends NetworkObject> T decode(CachedData document) {
+        return document != null ? (T) transcoder.decode(document) : null;
+    }
+}
@@ -0,0 +1,121 @@
+package com.ocdsoft.bacta.soe.data.couchbase.embedded;
+
+/**
+ * An open addressed map of long keys to non-negative long values held in primitive arrays,
+ * about 16 bytes an entry plus the free slots.  Not thread safe.
+ */
+final class LongIndex {
+
+    static final long MISSING = -1;
+
+    interface Visitor {
+        void visit(long key, long value);
+    }
+
+    // Key 0 marks a free slot, so an entry for key 0 is kept on the side
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private long zeroValue = MISSING;
+
+    LongIndex(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 4 / 3) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    private LongIndex(LongIndex index) {
+        keys = index.keys.clone();
+        values = index.values.clone();
+        size = index.size;
+        zeroValue = index.zeroValue;
+    }
+
+    /**
+     * @return an independent copy of the index
+     */
+    LongIndex copy() {
+        return new LongIndex(this);
+    }
+
+    /**
+     * @return the value of the key, or {@link #MISSING}
+     */
+    long get(long key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+
+        int slot = slot(keys, key);
+        return keys[slot] == key ? values[slot] : MISSING;
+    }
+
+    /**
+     * @return the value the key had, or {@link #MISSING}
+     */
+    long put(long key, long value) {
+        if (key == 0) {
+            long previous = zeroValue;
+            zeroValue = value;
+            return previous;
+        }
+
+        int slot = slot(keys, key);
+        if (keys[slot] == key) {
+            long previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+            slot = slot(keys, key);
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        ++size;
+        return MISSING;
+    }
+
+    int size() {
+        return zeroValue != MISSING ? size + 1 : size;
+    }
+
+    void forEach(Visitor visitor) {
+        if (zeroValue != MISSING) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slot(long[] keys, long key) {
+        long hash = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        int mask = keys.length - 1;
+        int slot = (int) hash & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,768 @@
+package com.ocdsoft.bacta.soe.data.couchbase.embedded;
+
+import net.spy.memcached.CachedData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Documents held off the heap, keyed by network id or by string, and counters, so the connectors
+ * can run without a cluster.
+ *
+ * Documents are appended, as their flags, length, key and bytes, to direct buffers of segmentSize
+ * bytes, and indexed by address: the segment in the high 32 bits and the offset in the low.
+ * Network ids are indexed by a {@link LongIndex}, about 16 bytes of heap an object.  Records are
+ * never changed once written.  Replacing a document leaves its old bytes behind, and a segment
+ * left with no live documents is dropped straight away.  While more bytes are dead than live,
+ * each write also compacts the segment with the fewest live bytes, moving its live documents to
+ * the current segment, so no write copies more than one segment.
+ *
+ * {@link #snapshot} writes the whole store to a file through memory mapped windows, and
+ * {@link #open} reads it back.  Snapshots are written aside and moved over the previous one, so a
+ * snapshot cut short leaves the last complete one in place.  A snapshot only holds the lock while
+ * it copies the indexes; the records they point at are written out afterwards, alongside reads
+ * and writes, from the segments as they were when it started.
+ */
+public final class OffHeapStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapStore.class);
+
+    static final int MAGIC = 0x4253544f;
+    static final int VERSION = 1;
+
+    /**
+     * Flags, length and key length, which is -1 for a network id
+     */
+    private static final int RECORD_HEADER = 12;
+
+    private static final long WINDOW = 64L * 1024 * 1024;
+
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Held by a snapshot while it writes its temporary file
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Segments by number, null where a dropped segment's number is free to be reused
+     */
+    private List<ByteBuffer> segments = new ArrayList<>();
+    private long[] segmentLive = new long[16];
+    private ByteBuffer current;
+    private int currentSegment = -1;
+
+    private LongIndex objects = new LongIndex(1024);
+    private final Map<String, Long> documents = new HashMap<>();
+    private final Map<String, Long> counters = new HashMap<>();
+
+    private long liveBytes;
+    private long deadBytes;
+    private long compactions;
+    private boolean closed;
+
+    private ScheduledExecutorService snapshotter;
+
+    public OffHeapStore(int segmentSize) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segments of " + segmentSize + " bytes are too small");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param file snapshot to load, if it exists, or null for an empty store
+     */
+    public static OffHeapStore open(Path file, int segmentSize) throws IOException {
+        OffHeapStore store = new OffHeapStore(segmentSize);
+        if (file != null && Files.exists(file)) {
+            store.load(file);
+        }
+        return store;
+    }
+
+    public CachedData get(long key) {
+        lock.readLock().lock();
+        try {
+            long address = objects.get(key);
+            return address != LongIndex.MISSING ? read(segments, address) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public CachedData get(String key) {
+        lock.readLock().lock();
+        try {
+            Long address = documents.get(key);
+            return address != null ? read(segments, address) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(long key, CachedData document) {
+        lock.writeLock().lock();
+        try {
+            release(objects.put(key, append(key, document.getFlags(), ByteBuffer.wrap(document.getData()))));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void put(String key, CachedData document) {
+        lock.writeLock().lock();
+        try {
+            Long previous = documents.put(key, append(key, document.getFlags(), ByteBuffer.wrap(document.getData())));
+            release(previous != null ? previous : LongIndex.MISSING);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false, storing nothing, if the key already has a document
+     */
+    public boolean add(long key, CachedData document) {
+        lock.writeLock().lock();
+        try {
+            if (objects.get(key) != LongIndex.MISSING) {
+                return false;
+            }
+            objects.put(key, append(key, document.getFlags(), ByteBuffer.wrap(document.getData())));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false, storing nothing, if the key already has a document
+     */
+    public boolean add(String key, CachedData document) {
+        lock.writeLock().lock();
+        try {
+            if (documents.containsKey(key)) {
+                return false;
+            }
+            documents.put(key, append(key, document.getFlags(), ByteBuffer.wrap(document.getData())));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the counter already exists
+     */
+    public boolean addCounter(String key, long value) {
+        lock.writeLock().lock();
+        try {
+            return counters.putIfAbsent(key, value) == null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Advances the counter, which starts from 0 if it does not exist.
+     *
+     * @return the value after it has been advanced
+     */
+    public long incr(String key, long by) {
+        lock.writeLock().lock();
+        try {
+            long value = counters.getOrDefault(key, 0L) + by;
+            counters.put(key, value);
+            return value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hands every string keyed document to the consumer, holding off writes until done.
+     */
+    public void forEachDocument(BiConsumer<String, CachedData> consumer) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Long> entry : documents.entrySet()) {
+                consumer.accept(entry.getKey(), read(segments, entry.getValue()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Stats getStats() {
+        lock.readLock().lock();
+        try {
+            long allocated = 0;
+            for (ByteBuffer segment : segments) {
+                if (segment != null) {
+                    allocated += segment.capacity();
+                }
+            }
+            return new Stats(objects.size(), documents.size(), liveBytes, deadBytes, allocated, compactions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the store to the file, replacing it once the snapshot is complete.
+     */
+    public void snapshot(Path file) throws IOException {
+        synchronized (snapshotLock) {
+            writeSnapshot(file);
+        }
+    }
+
+    /**
+     * Snapshots the store to the file every interval, on a daemon thread, until it is closed.
+     */
+    public synchronized void snapshotEvery(final Path file, long intervalMillis) {
+        if (snapshotter != null) {
+            throw new IllegalStateException("Already snapshotting");
+        }
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "OffHeapStore-Snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(file);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Unable to snapshot store to " + file, e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops snapshotting and drops every document.  The direct buffers are freed once collected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                snapshotter = null;
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            segments = new ArrayList<>();
+            segmentLive = new long[16];
+            current = null;
+            currentSegment = -1;
+            objects = new LongIndex(16);
+            documents.clear();
+            counters.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeSnapshot(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+
+        // Records are never changed in place, and segments stay reachable from this copy after
+        // they are dropped, so only the indexes need copying before the lock is let go
+        final List<ByteBuffer> segments;
+        final Map<String, Long> counters;
+        final Map<String, Long> documents;
+        final LongIndex objects;
+
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Store is closed");
+            }
+            segments = new ArrayList<>(this.segments);
+            counters = new HashMap<>(this.counters);
+            documents = new HashMap<>(this.documents);
+            objects = this.objects.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedOutput out = new MappedOutput(channel, snapshotSize(segments, counters, documents, objects));
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(counters.size());
+            out.putInt(documents.size());
+            out.putInt(objects.size());
+
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                out.putKey(counter.getKey());
+                out.putLong(counter.getValue());
+            }
+
+            for (Map.Entry<String, Long> document : documents.entrySet()) {
+                out.putKey(document.getKey());
+                putRecord(out, segments, document.getValue());
+            }
+
+            objects.forEach((key, address) -> {
+                out.putLong(key);
+                putRecord(out, segments, address);
+            });
+
+            out.force();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the record at the address as its flags, length and bytes, the snapshot's record layout.
+     */
+    private static void putRecord(MappedOutput out, List<ByteBuffer> segments, long address) {
+        ByteBuffer segment = segments.get((int) (address >>> 32));
+        int offset = (int) address;
+        out.putInt(segment.getInt(offset));
+        out.putInt(segment.getInt(offset + 4));
+        out.put(data(segment, offset));
+    }
+
+    private void load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedInput in = new MappedInput(channel);
+            if (channel.size() < 20 || in.getInt() != MAGIC) {
+                throw new IOException(file + " is not a store snapshot");
+            }
+
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a version " + version + " snapshot, expected " + VERSION);
+            }
+
+            int counterCount = in.getInt();
+            int documentCount = in.getInt();
+            int objectCount = in.getInt();
+
+            for (int i = 0; i < counterCount; ++i) {
+                counters.put(in.getKey(), in.getLong());
+            }
+
+            for (int i = 0; i < documentCount; ++i) {
+                String key = in.getKey();
+                documents.put(key, copy(key, in));
+            }
+
+            objects = new LongIndex(objectCount);
+            for (int i = 0; i < objectCount; ++i) {
+                long key = in.getLong();
+                objects.put(key, copy(key, in));
+            }
+        }
+
+        logger.info("Loaded " + objects.size() + " objects, " + documents.size() + " documents and "
+                + counters.size() + " counters from " + file);
+    }
+
+    /**
+     * @return the address of a record of the given size, with the current segment positioned to write it
+     */
+    private long allocate(int size) {
+        if (current == null || current.remaining() < size) {
+            if (current != null && segmentLive[currentSegment] == 0) {
+                drop(currentSegment);
+            }
+
+            current = ByteBuffer.allocateDirect(Math.max(segmentSize, size));
+            currentSegment = segments.indexOf(null);
+            if (currentSegment < 0) {
+                currentSegment = segments.size();
+                segments.add(current);
+            } else {
+                segments.set(currentSegment, current);
+            }
+            if (currentSegment >= segmentLive.length) {
+                segmentLive = Arrays.copyOf(segmentLive, segmentLive.length * 2);
+            }
+            segmentLive[currentSegment] = 0;
+        }
+        liveBytes += size;
+        segmentLive[currentSegment] += size;
+        return ((long) currentSegment << 32) | current.position();
+    }
+
+    private long append(long key, int flags, ByteBuffer data) {
+        long address = allocate(RECORD_HEADER + 8 + data.remaining());
+        current.putInt(flags).putInt(data.remaining()).putInt(-1).putLong(key).put(data);
+        return address;
+    }
+
+    private long append(String key, int flags, ByteBuffer data) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        long address = allocate(RECORD_HEADER + bytes.length + data.remaining());
+        current.putInt(flags).putInt(data.remaining()).putInt(bytes.length).put(bytes).put(data);
+        return address;
+    }
+
+    private long copy(long key, MappedInput in) throws IOException {
+        int flags = in.getInt();
+        int length = length(in);
+        long address = allocate(RECORD_HEADER + 8 + length);
+        current.putInt(flags).putInt(length).putInt(-1).putLong(key);
+        in.get(current, length);
+        return address;
+    }
+
+    private long copy(String key, MappedInput in) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int flags = in.getInt();
+        int length = length(in);
+        long address = allocate(RECORD_HEADER + bytes.length + length);
+        current.putInt(flags).putInt(length).putInt(bytes.length).put(bytes);
+        in.get(current, length);
+        return address;
+    }
+
+    private static int length(MappedInput in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            throw new IOException("Snapshot record has a length of " + length);
+        }
+        return length;
+    }
+
+    private static CachedData read(List<ByteBuffer> segments, long address) {
+        ByteBuffer segment = segments.get((int) (address >>> 32));
+        int offset = (int) address;
+        byte[] data = new byte[segment.getInt(offset + 4)];
+        data(segment, offset).get(data);
+        return new CachedData(segment.getInt(offset), data, Math.max(CachedData.MAX_SIZE, data.length));
+    }
+
+    /**
+     * @return the document bytes of the record at the offset, as a buffer of their own
+     */
+    private static ByteBuffer data(ByteBuffer segment, int offset) {
+        int keyLength = segment.getInt(offset + 8);
+        int start = offset + RECORD_HEADER + (keyLength < 0 ? 8 : keyLength);
+        ByteBuffer data = segment.duplicate();
+        data.limit(start + segment.getInt(offset + 4)).position(start);
+        return data;
+    }
+
+    private static int size(ByteBuffer segment, int offset) {
+        int keyLength = segment.getInt(offset + 8);
+        return RECORD_HEADER + (keyLength < 0 ? 8 : keyLength) + segment.getInt(offset + 4);
+    }
+
+    private void release(long address) {
+        if (address == LongIndex.MISSING) {
+            return;
+        }
+
+        int number = (int) (address >>> 32);
+        int size = size(segments.get(number), (int) address);
+        liveBytes -= size;
+        deadBytes += size;
+        segmentLive[number] -= size;
+
+        if (segmentLive[number] == 0 && number != currentSegment) {
+            drop(number);
+        } else if (deadBytes > liveBytes && deadBytes >= segmentSize) {
+            compactOne();
+        }
+    }
+
+    /**
+     * Moves the live records of the segment with the fewest live bytes to the current segment and
+     * drops it.
+     */
+    private void compactOne() {
+        int victim = -1;
+        for (int number = 0; number < segments.size(); ++number) {
+            if (number != currentSegment && segments.get(number) != null
+                    && (victim < 0 || segmentLive[number] < segmentLive[victim])) {
+                victim = number;
+            }
+        }
+
+        if (victim < 0) {
+            return;
+        }
+
+        ByteBuffer segment = segments.get(victim);
+        int end = segment.position();
+        for (int offset = 0; offset < end && segmentLive[victim] > 0; ) {
+            int keyLength = segment.getInt(offset + 8);
+            int size = size(segment, offset);
+            long address = ((long) victim << 32) | offset;
+            ByteBuffer data = data(segment, offset);
+
+            if (keyLength < 0) {
+                long key = segment.getLong(offset + RECORD_HEADER);
+                if (objects.get(key) == address) {
+                    objects.put(key, append(key, segment.getInt(offset), data));
+                    moved(victim, size);
+                }
+            } else {
+                byte[] bytes = new byte[keyLength];
+                ByteBuffer keyBytes = segment.duplicate();
+                keyBytes.position(offset + RECORD_HEADER);
+                keyBytes.get(bytes);
+                String key = new String(bytes, StandardCharsets.UTF_8);
+                Long indexed = documents.get(key);
+                if (indexed != null && indexed == address) {
+                    documents.put(key, append(key, segment.getInt(offset), data));
+                    moved(victim, size);
+                }
+            }
+
+            offset += size;
+        }
+
+        drop(victim);
+    }
+
+    /**
+     * Counts a record copied out of a segment being compacted as dead where it was.
+     */
+    private void moved(int number, int size) {
+        liveBytes -= size;
+        deadBytes += size;
+        segmentLive[number] -= size;
+    }
+
+    /**
+     * Drops a segment holding no live records, counting every byte written to it as reclaimed.
+     */
+    private void drop(int number) {
+        deadBytes -= segments.get(number).position();
+        segments.set(number, null);
+        ++compactions;
+    }
+
+    private static long snapshotSize(List<ByteBuffer> segments, Map<String, Long> counters, Map<String, Long> documents, LongIndex objects) {
+        long size = 5 * 4;
+        for (String key : counters.keySet()) {
+            size += 2 + key.getBytes(StandardCharsets.UTF_8).length + 8;
+        }
+        for (Map.Entry<String, Long> document : documents.entrySet()) {
+            long address = document.getValue();
+            size += 2 + document.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + 8 + segments.get((int) (address >>> 32)).getInt((int) address + 4);
+        }
+        final long[] objectBytes = new long[1];
+        objects.forEach((key, address) -> objectBytes[0] += 8 + 8 + segments.get((int) (address >>> 32)).getInt((int) address + 4));
+        return size + objectBytes[0];
+    }
+
+    /**
+     * Writes through windows of a file mapped in turn.  IO failures are thrown unchecked, so it can
+     * be written to from the index visitor.
+     */
+    private static final class MappedOutput {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedOutput(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        void putInt(int value) {
+            ensure(4).putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(8).putLong(value);
+        }
+
+        void putKey(String key) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff) {
+                throw new IllegalArgumentException("Key too long: " + key);
+            }
+            ensure(2).putShort((short) bytes.length);
+            put(ByteBuffer.wrap(bytes));
+        }
+
+        void put(ByteBuffer source) {
+            while (source.hasRemaining()) {
+                ByteBuffer target = ensure(1);
+                int length = Math.min(source.remaining(), target.remaining());
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + length);
+                target.put(part);
+                source.position(source.position() + length);
+            }
+        }
+
+        void force() {
+            if (window != null) {
+                window.force();
+            }
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (window == null || window.remaining() < bytes) {
+                long position = window == null ? 0 : windowStart + window.position();
+                if (position + bytes > size) {
+                    throw new IllegalStateException("Snapshot outgrew its " + size + " bytes");
+                }
+                try {
+                    force();
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW, size - position));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                windowStart = position;
+            }
+            return window;
+        }
+    }
+
+    private static final class MappedInput {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        String getKey() throws IOException {
+            byte[] bytes = new byte[ensure(2).getShort() & 0xffff];
+            ByteBuffer target = ByteBuffer.wrap(bytes);
+            get(target, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void get(ByteBuffer target, int length) throws IOException {
+            while (length > 0) {
+                ByteBuffer source = ensure(1);
+                int part = Math.min(length, source.remaining());
+                ByteBuffer slice = source.duplicate();
+                slice.limit(slice.position() + part);
+                target.put(slice);
+                source.position(source.position() + part);
+                length -= part;
+            }
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (window == null || window.remaining() < bytes) {
+                long position = window == null ? 0 : windowStart + window.position();
+                if (position + bytes > size) {
+                    throw new IOException("Snapshot ends after " + size + " bytes, in the middle of a record");
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                windowStart = position;
+            }
+            return window;
+        }
+    }
+
+    public static final class Stats {
+
+        private final long objects;
+        private final long documents;
+        private final long liveBytes;
+        private final long deadBytes;
+        private final long allocatedBytes;
+        private final long compactions;
+
+        Stats(long objects, long documents, long liveBytes, long deadBytes, long allocatedBytes, long compactions) {
+            this.objects = objects;
+            this.documents = documents;
+            this.liveBytes = liveBytes;
+            this.deadBytes = deadBytes;
+            this.allocatedBytes = allocatedBytes;
+            this.compactions = compactions;
+        }
+
+        /**
+         * @return documents keyed by network id
+         */
+        public long getObjects() {
+            return objects;
+        }
+
+        /**
+         * @return documents keyed by string
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        public long getLiveBytes() {
+            return liveBytes;
+        }
+
+        /**
+         * @return bytes of replaced documents not yet compacted away
+         */
+        public long getDeadBytes() {
+            return deadBytes;
+        }
+
+        /**
+         * @return direct memory held by the segments
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getCompactions() {
+            return compactions;
+        }
+
+        @Override
+        public String toString() {
+            return "OffHeapStore{objects=" + objects + ", documents=" + documents + ", liveBytes=" + liveBytes
+                    + ", deadBytes=" + deadBytes + ", allocatedBytes=" + allocatedBytes + ", compactions=" + compactions + "}";
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.ocdsoft.bacta.soe.data.couchbase.flight;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads, and callers arriving while
+ * that load is in flight wait for and share its result, including its failure.
+ *
+ * A write to a key must {@link #forget} it before it is issued.  Loads starting after that never
+ * join a flight that began before the write, while callers already waiting may still receive the
+ * value read before it, as they would have without coalescing.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder forgotten = new LongAdder();
+
+    /**
+     * Loads the key on the calling thread, or waits for the load already in flight.
+     */
+    public V get(K key, Supplier<V> loader) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+
+        if (existing != null) {
+            coalesced.increment();
+            return join(existing);
+        }
+
+        loads.increment();
+        try {
+            V value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Starts an asynchronous load of the key, or shares the load already in flight.  Each caller
+     * gets its own future, so cancelling one does not cancel the load for the others.
+     */
+    public CompletableFuture<V> getAsync(final K key, Supplier<CompletableFuture<V>> loader) {
+        final CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+
+        if (existing != null) {
+            coalesced.increment();
+            return existing.thenApply(Function.identity());
+        }
+
+        loads.increment();
+        try {
+            loader.get().whenComplete((value, error) -> {
+                flights.remove(key, flight);
+                if (error != null) {
+                    flight.completeExceptionally(error);
+                } else {
+                    flight.complete(value);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+
+        return flight.thenApply(Function.identity());
+    }
+
+    /**
+     * Detaches any load in flight for the key, so later loads start afresh.
+     */
+    public void forget(K key) {
+        if (flights.remove(key) != null) {
+            forgotten.increment();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(loads.sum(), coalesced.sum(), forgotten.sum(), flights.size());
+    }
+
+    private static <V> V join(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    public static final class Stats {
+
+        private final long loads;
+        private final long coalesced;
+        private final long forgotten;
+        private final int inFlight;
+
+        Stats(long loads, long coalesced, long forgotten, int inFlight) {
+            this.loads = loads;
+            this.coalesced = coalesced;
+            this.forgotten = forgotten;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * @return loads actually issued
+         */
+        public long getLoads() {
+            return loads;
+        }
+
+        /**
+         * @return loads served by joining one already in flight
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * @return flights detached by a write before they completed
+         */
+        public long getForgotten() {
+            return forgotten;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return "loads=" + loads + " coalesced=" + coalesced + " forgotten=" + forgotten + " inFlight=" + inFlight;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.ocdsoft.bacta.soe.data.couchbase.hedge;
+
+import com.couchbase.client.CouchbaseClient;
+import com.ocdsoft.bacta.soe.data.couchbase.CachedDataTranscoder;
+import com.ocdsoft.bacta.soe.data.couchbase.async.ClientFutures;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.Histogram;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.HistogramSnapshot;
+
+import net.spy.memcached.CachedData;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Reads from a replica when the primary is slow to answer, and takes whichever answers first.
+ *
+ * The replica read, the hedge, is sent once the primary read has been outstanding for a
+ * percentile of the primary latencies seen in the last window, kept between a minimum and a
+ * maximum delay.  Until a window has enough reads the maximum is used.  A primary read that fails
+ * is hedged at once.
+ *
+ * Hedges are rationed: every read earns budget hedges, up to a burst of {@link #BURST}, and a
+ * hedge is only sent if one has been earned, so a slow node adds at most that fraction of reads.
+ *
+ * Replicas are written after the primary, so a hedged read may return an older state of the
+ * document.
+ */
+public final class HedgedReader implements HedgedReaderMXBean {
+
+    static final int BURST = 10;
+    static final int MIN_WINDOW_READS = 100;
+
+    private static final long UNIT = 1000000;
+
+    private static final ScheduledThreadPoolExecutor timer;
+
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "HedgedReader-Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final long budget;
+    private final long windowNanos;
+
+    private final Histogram primaryLatency = new Histogram();
+    private final Histogram hedgedLatency = new Histogram();
+
+    private final AtomicLong credit = new AtomicLong();
+    private final AtomicBoolean windowUpdating = new AtomicBoolean();
+    private volatile long windowStart = System.nanoTime();
+    private volatile HistogramSnapshot windowSnapshot = primaryLatency.snapshot();
+    private volatile long delayNanos;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param percentile of recent primary latencies, between 0 and 100, after which to hedge
+     * @param budget     hedges allowed per read, between 0 and 1
+     * @param windowMillis how often the delay is recomputed from the reads since
+     */
+    public HedgedReader(double percentile, long minDelayMillis, long maxDelayMillis, double budget, long windowMillis) {
+        if (percentile <= 0 || percentile > 100 || minDelayMillis < 0 || maxDelayMillis < minDelayMillis || budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("Invalid hedged reads: percentile=" + percentile + " delay=" + minDelayMillis
+                    + ".." + maxDelayMillis + "ms budget=" + budget);
+        }
+
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.budget = (long) (budget * UNIT);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.delayNanos = maxDelayNanos;
+    }
+
+    /**
+     * @param primary starts the read of the primary copy
+     * @param replica starts the read of a replica, if the primary is slow or fails
+     * @return the first answer, failed only if every read sent failed
+     */
+    public <T> CompletableFuture<T> read(Supplier<? extends CompletableFuture<T>> primary, Supplier<? extends CompletableFuture<T>> replica) {
+        reads.increment();
+        earn();
+
+        Read<T> read = new Read<>(replica);
+        CompletableFuture<T> first = primary.get();
+
+        first.whenComplete((value, error) -> {
+            if (error == null) {
+                primaryLatency.record(read.elapsedMicros());
+                read.complete(value, false);
+            } else {
+                read.hedge();
+                read.failed(error);
+            }
+        });
+
+        if (!read.result.isDone()) {
+            ScheduledFuture<?> hedge = timer.schedule(read::hedge, delay(), TimeUnit.NANOSECONDS);
+            read.result.whenComplete((value, error) -> hedge.cancel(false));
+        }
+
+        return read.result;
+    }
+
+    /**
+     * Reads a document from its active node, hedged to its replicas.  A replica without a copy,
+     * which may just be behind, does not count as an answer.
+     */
+    public CompletableFuture<CachedData> get(CouchbaseClient client, String key, long timeoutMillis) {
+        return read(() -> ClientFutures.of(client.asyncGet(key, CachedDataTranscoder.INSTANCE), timeoutMillis),
+                () -> ClientFutures.of(client.asyncGetFromReplica(key, CachedDataTranscoder.INSTANCE), timeoutMillis)
+                        .thenApply(document -> {
+                            if (document == null) {
+                                throw new IllegalStateException("No replica has " + key);
+                            }
+                            return document;
+                        }));
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    @Override
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public long getOverBudget() {
+        return overBudget.sum();
+    }
+
+    @Override
+    public long getDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(delayNanos);
+    }
+
+    @Override
+    public long getPrimaryP99Micros() {
+        return primaryLatency.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getHedgedP99Micros() {
+        return hedgedLatency.snapshot().getValueAtPercentile(99);
+    }
+
+    /**
+     * @return the delay before hedging, recomputed once a window has passed
+     */
+    long delay() {
+        long now = System.nanoTime();
+        if (now - windowStart >= windowNanos && windowUpdating.compareAndSet(false, true)) {
+            try {
+                HistogramSnapshot current = primaryLatency.snapshot();
+                HistogramSnapshot window = current.minus(windowSnapshot);
+                // A quiet window carries its reads over into the next
+                if (window.getCount() >= MIN_WINDOW_READS) {
+                    long delay = TimeUnit.MICROSECONDS.toNanos(window.getValueAtPercentile(percentile));
+                    delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, delay));
+                    windowSnapshot = current;
+                }
+                windowStart = now;
+            } finally {
+                windowUpdating.set(false);
+            }
+        }
+        return delayNanos;
+    }
+
+    private void earn() {
+        long current;
+        do {
+            current = credit.get();
+            if (current >= BURST * UNIT) {
+                return;
+            }
+        } while (!credit.compareAndSet(current, Math.min(BURST * UNIT, current + budget)));
+    }
+
+    private boolean spend() {
+        long current;
+        do {
+            current = credit.get();
+            if (current < UNIT) {
+                return false;
+            }
+        } while (!credit.compareAndSet(current, current - UNIT));
+        return true;
+    }
+
+    private final class Read<T> {
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        final Supplier<? extends CompletableFuture<T>> replica;
+
+        // Reads sent, or a hedge about to be, and not yet failed
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final AtomicBoolean answered = new AtomicBoolean();
+
+        // Set before outstanding is decremented, so whoever takes it to zero sees it
+        volatile Throwable error;
+
+        Read(Supplier<? extends CompletableFuture<T>> replica) {
+            this.replica = replica;
+        }
+
+        long elapsedMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        }
+
+        void hedge() {
+            if (result.isDone()) {
+                return;
+            }
+
+            // Counted before the hedge is claimed, so a primary failing meanwhile cannot fail the read
+            outstanding.incrementAndGet();
+            if (!hedged.compareAndSet(false, true)) {
+                release();
+                return;
+            }
+
+            if (!spend()) {
+                overBudget.increment();
+                release();
+                return;
+            }
+
+            hedges.increment();
+
+            CompletableFuture<T> second;
+            try {
+                second = replica.get();
+            } catch (RuntimeException e) {
+                failed(e);
+                return;
+            }
+
+            second.whenComplete((value, error) -> {
+                if (error == null) {
+                    complete(value, true);
+                } else {
+                    failed(error);
+                }
+            });
+        }
+
+        // Counted before the result completes, so whoever it wakes sees the counts
+        void complete(T value, boolean fromReplica) {
+            if (answered.compareAndSet(false, true)) {
+                if (fromReplica) {
+                    hedgeWins.increment();
+                }
+                hedgedLatency.record(elapsedMicros());
+                result.complete(value);
+            }
+        }
+
+        void failed(Throwable error) {
+            this.error = error;
+            release();
+        }
+
+        // Only reaches zero once the primary has failed, so an error has been set
+        private void release() {
+            if (outstanding.decrementAndGet() == 0 && answered.compareAndSet(false, true)) {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.ocdsoft.bacta.soe.data.couchbase.hedge;
+
+/**
+ * JMX view of a {@link HedgedReader} since startup.  Comparing the p99 of the primary reads with
+ * that of the hedged reads shows how much the hedges take off the tail.
+ */
+public interface HedgedReaderMXBean {
+
+    long getReads();
+
+    long getHedges();
+
+    /**
+     * @return reads answered by the replica before the primary
+     */
+    long getHedgeWins();
+
+    /**
+     * @return reads that would have been hedged but for the budget
+     */
+    long getOverBudget();
+
+    long getDelayMicros();
+
+    long getPrimaryP99Micros();
+
+    long getHedgedP99Micros();
+}
@@ -0,0 +1,193 @@
+package com.ocdsoft.bacta.soe.data.couchbase.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One fixed size journal file, mapped in full.  A new file reads as zeros, so the records written
+ * end at the first zero length.
+ *
+ * A segment holds a reference for each record not yet retired plus one for itself until it is
+ * sealed, and is retired when the last is released.  Deleting a segment unmaps it, rather than
+ * leaving its mapping to be released whenever the buffer is collected.
+ */
+final class JournalSegment {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournalSegment.class);
+
+    static final String FILE_PATTERN = "journal-*.log";
+
+    private final long id;
+    private final Path path;
+    private final MappedByteBuffer mapping;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean retired;
+    private boolean unmapped;
+
+    private JournalSegment(long id, Path path, MappedByteBuffer mapping) {
+        this.id = id;
+        this.path = path;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Creates and maps a new segment file of the given size.
+     */
+    static JournalSegment create(Path directory, long id, int size) {
+        Path path = directory.resolve(String.format("journal-%016x.log", id));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new JournalSegment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create journal segment " + path, e);
+        }
+    }
+
+    /**
+     * Maps an existing segment file to read its records.
+     */
+    static JournalSegment open(Path path, long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new JournalSegment(id, path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the id in a segment file name, or -1 if it is not one
+     */
+    static long idOf(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("journal-") || !name.endsWith(".log")) {
+            return -1;
+        }
+
+        try {
+            return Long.parseUnsignedLong(name.substring("journal-".length(), name.length() - ".log".length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return a buffer over the whole file, positioned at its first record
+     */
+    ByteBuffer read() {
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.clear();
+        return buffer;
+    }
+
+    boolean hasRoom(int bytes) {
+        return mapping.remaining() >= bytes;
+    }
+
+    /**
+     * Appends a record, writing its length last so a reader never sees a length without its record.
+     * A commit marker has no payload.
+     */
+    void write(int length, int checksum, long sequence, long key, int flags, ByteBuffer payload) {
+        int start = mapping.position();
+        mapping.position(start + 4);
+        mapping.putInt(checksum);
+        mapping.putLong(sequence);
+        mapping.putLong(key);
+        mapping.putInt(flags);
+        if (payload != null) {
+            mapping.put(payload);
+        }
+        mapping.putInt(start, length);
+    }
+
+    /**
+     * Forces the mapping to disk, unless the segment was deleted meanwhile.
+     */
+    synchronized void force() {
+        if (!unmapped) {
+            mapping.force();
+        }
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * @return true if that was the last reference, retiring the segment
+     */
+    boolean release() {
+        if (references.decrementAndGet() == 0) {
+            retired = true;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Unmaps the segment and deletes its file.  The segment must not be read or written after.
+     */
+    synchronized void delete() {
+        if (!unmapped) {
+            unmapped = true;
+            unmap(mapping);
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.error("Unable to delete journal segment " + path, e);
+        }
+    }
+
+    /**
+     * Releases a mapping now rather than when it is collected, through the buffer's cleaner.  Where
+     * the runtime offers no way to, the mapping is left to the collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Object unsafe;
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (NoSuchMethodException e) {
+                // Java 8 has no invokeCleaner, its direct buffers expose their cleaner instead
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Unable to unmap journal segment, leaving it to the collector", e);
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package com.ocdsoft.bacta.soe.data.couchbase.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of object updates in memory-mapped segment files, so updates survive the
+ * process until the bucket has them.
+ *
+ * Each record holds the latest encoded state of one network id, checksummed.  Appending copies the
+ * record into the active segment's mapping and returns, and a segment full of records is sealed and
+ * a new one started.  Once the bucket has an update it is committed, which appends a commit marker
+ * for the network id.  Records are retired when committed or superseded, and sealed segments are
+ * deleted oldest first once all their records are retired, so a record is never outlived by an
+ * older one of the same network id.
+ *
+ * On open, the records left by a previous run are read back, stopping in each segment at the first
+ * record that is incomplete or fails its checksum.  The latest uncommitted record of each network id
+ * is copied into a new segment and handed out once by {@link #replay}, and the old segments are
+ * deleted.
+ *
+ * Mapped writes survive the process failing as soon as they are made.  The active segment is forced
+ * to disk every sync interval to survive the machine failing, or on every append with an interval
+ * of 0.
+ */
+public final class WriteAheadJournal<T> implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadJournal.class);
+
+    /**
+     * Payload length, checksum, sequence, network id and payload flags.
+     */
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    /**
+     * Length of a commit marker, which has no payload.  Its sequence is the one committed.
+     */
+    private static final int COMMIT = -1;
+
+    private static final int MIN_SEGMENT_SIZE = 4096;
+
+    public interface Codec<T> {
+
+        /**
+         * Writes the object's payload into the target buffer from its position, advancing it.
+         *
+         * @return the flags the payload is decoded with
+         * @throws BufferOverflowException if the payload does not fit
+         */
+        int encode(T object, ByteBuffer target);
+
+        T decode(int flags, ByteBuffer payload);
+    }
+
+    private final Path directory;
+    private final ToLongFunction<T> keyOf;
+    private final Codec<T> codec;
+    private final int segmentSize;
+    private final boolean syncEveryAppend;
+
+    private final ThreadLocal<ByteBuffer> scratch;
+    private final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+    /**
+     * The latest record appended for each network id that is not yet committed.
+     */
+    private final ConcurrentMap<Long, Entry> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Segments not yet deleted, oldest first.
+     */
+    private final Deque<JournalSegment> segments = new ArrayDeque<>();
+
+    private final Object appendLock = new Object();
+    private JournalSegment active;
+    private long nextSegmentId;
+    private long nextSequence = 1;
+    private volatile boolean closed;
+
+    private List<Recovered> recovered;
+
+    private final ScheduledExecutorService syncer;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong segmentsDeleted = new AtomicLong();
+    private int recoveredCount;
+    private int corruptSegments;
+
+    /**
+     * Opens the journal in the directory, creating it if needed, and recovers the records of a
+     * previous run.
+     */
+    public WriteAheadJournal(Path directory, ToLongFunction<T> keyOf, Codec<T> codec, int segmentSize, long syncIntervalMillis) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Journal segments must be at least " + MIN_SEGMENT_SIZE + " bytes: " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.keyOf = keyOf;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.syncEveryAppend = syncIntervalMillis <= 0;
+        this.scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(Math.min(8192, segmentSize - HEADER_SIZE)));
+
+        Files.createDirectories(directory);
+
+        List<JournalSegment> previous = recover();
+        active = JournalSegment.create(directory, nextSegmentId++, segmentSize);
+        segments.add(active);
+
+        if (!recovered.isEmpty()) {
+            synchronized (appendLock) {
+                for (Recovered record : recovered) {
+                    append(record.key, record.flags, ByteBuffer.wrap(record.payload));
+                }
+                active.force();
+            }
+            logger.info("Recovered " + recovered.size() + " uncommitted updates from the journal in " + directory);
+        }
+
+        for (JournalSegment segment : previous) {
+            segment.delete();
+        }
+
+        if (syncEveryAppend) {
+            syncer = null;
+        } else {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Journal-Sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands each update recovered on open to the consumer, oldest first, to be written again.
+     * Only the first call has any effect.  Records that no longer decode are logged and retired.
+     */
+    public void replay(Consumer<T> consumer) {
+        List<Recovered> records;
+        synchronized (this) {
+            records = recovered;
+            recovered = Collections.emptyList();
+        }
+
+        for (Recovered record : records) {
+            T object;
+            try {
+                object = codec.decode(record.flags, ByteBuffer.wrap(record.payload));
+            } catch (RuntimeException e) {
+                logger.error("Unable to decode journaled update of network object " + record.key + ", discarding it", e);
+                commit(record.key, Long.MAX_VALUE);
+                continue;
+            }
+            consumer.accept(object);
+        }
+    }
+
+    /**
+     * Records the object's current state.  Its encoding happens on the calling thread, only the
+     * copy into the segment is serialized with other appends.
+     *
+     * @return the sequence of the record, to {@link #commit} once the bucket has it
+     * @throws IllegalArgumentException if the object does not fit in a segment
+     */
+    public long append(T object) {
+        int flags = encode(object);
+        ByteBuffer buffer = scratch.get();
+        long key = keyOf.applyAsLong(object);
+        if (!buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Update of network object " + key + " has an empty payload");
+        }
+
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+
+            long sequence = append(key, flags, buffer);
+            if (syncEveryAppend) {
+                active.force();
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * @return the sequence of the network id's latest uncommitted record, or 0 if there is none
+     */
+    public long latest(long key) {
+        Entry entry = latest.get(key);
+        return entry != null ? entry.sequence : 0;
+    }
+
+    /**
+     * Retires the network id's record if it is no newer than the sequence, because the bucket now
+     * holds that state or a later one.
+     */
+    public void commit(long key, long sequence) {
+        Entry entry = latest.get(key);
+        if (entry != null && entry.sequence <= sequence && latest.remove(key, entry)) {
+            try {
+                synchronized (appendLock) {
+                    // Without a marker the committed state is replayed after a restart, which is harmless
+                    if (!closed) {
+                        ensureRoom(HEADER_SIZE);
+                        write(COMMIT, entry.sequence, key, 0, null);
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.error("Unable to write the commit marker of network object " + key + ", it will be replayed after a restart", e);
+            } finally {
+                committed.incrementAndGet();
+                release(entry.segment);
+            }
+        }
+    }
+
+    public int getUncommittedCount() {
+        return latest.size();
+    }
+
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    public long getCommittedCount() {
+        return committed.get();
+    }
+
+    /**
+     * @return records retired because a later update of the same network id was appended
+     */
+    public long getSupersededCount() {
+        return superseded.get();
+    }
+
+    public long getDeletedSegmentCount() {
+        return segmentsDeleted.get();
+    }
+
+    /**
+     * @return updates recovered from a previous run when the journal was opened
+     */
+    public int getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * @return segments of a previous run in which a damaged record was found, the records after it were lost
+     */
+    public int getCorruptSegmentCount() {
+        return corruptSegments;
+    }
+
+    /**
+     * Forces the active segment to disk.
+     */
+    public void sync() {
+        JournalSegment segment;
+        synchronized (appendLock) {
+            segment = active;
+        }
+
+        try {
+            segment.force();
+        } catch (RuntimeException e) {
+            logger.error("Unable to sync journal segment " + segment.getPath(), e);
+        }
+    }
+
+    /**
+     * Stops syncing and forces the active segment.  Segments holding uncommitted records are kept
+     * for the next run to recover.
+     */
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+
+        JournalSegment last;
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = active;
+        }
+
+        last.force();
+        seal(last);
+
+        if (!latest.isEmpty()) {
+            logger.warn("Closing journal with " + latest.size() + " uncommitted updates, they will be recovered on the next start");
+        }
+    }
+
+    /**
+     * Encodes into this thread's scratch buffer, doubling it until the object fits, and leaves the
+     * buffer flipped for reading.
+     *
+     * @return the payload flags
+     */
+    private int encode(T object) {
+        ByteBuffer buffer = scratch.get();
+        while (true) {
+            buffer.clear();
+            try {
+                int flags = codec.encode(object, buffer);
+                buffer.flip();
+                return flags;
+            } catch (BufferOverflowException e) {
+                int maximum = segmentSize - HEADER_SIZE;
+                if (buffer.capacity() >= maximum) {
+                    throw new IllegalArgumentException("Update of network object " + keyOf.applyAsLong(object) + " does not fit in a journal segment");
+                }
+                buffer = ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2, maximum));
+                scratch.set(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes a record into the active segment, starting a new one if it does not fit.  Called holding
+     * the append lock.
+     */
+    private long append(long key, int flags, ByteBuffer payload) {
+        ensureRoom(HEADER_SIZE + payload.remaining());
+
+        long sequence = nextSequence++;
+        write(payload.remaining(), sequence, key, flags, payload);
+        active.retain();
+        appended.incrementAndGet();
+
+        Entry previous = latest.put(key, new Entry(sequence, active));
+        if (previous != null) {
+            superseded.incrementAndGet();
+            release(previous.segment);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Seals the active segment and starts a new one if the active one lacks room.  Called holding the
+     * append lock.
+     */
+    private void ensureRoom(int bytes) {
+        if (active.hasRoom(bytes)) {
+            return;
+        }
+
+        JournalSegment full = active;
+        active = JournalSegment.create(directory, nextSegmentId++, segmentSize);
+        synchronized (segments) {
+            segments.add(active);
+        }
+
+        full.force();
+        seal(full);
+    }
+
+    private void write(int length, long sequence, long key, int flags, ByteBuffer payload) {
+        CRC32 crc = checksums.get();
+        crc.reset();
+        updateChecksum(crc, sequence, key, flags);
+        if (payload != null) {
+            crc.update(payload.duplicate());
+        }
+
+        active.write(length, (int) crc.getValue(), sequence, key, flags, payload);
+    }
+
+    /**
+     * Drops the segment's hold on itself once it takes no more records.
+     */
+    private void seal(JournalSegment segment) {
+        release(segment);
+    }
+
+    /**
+     * Releases a reference to the segment, and deletes the oldest segments while all their records
+     * are retired.
+     */
+    private void release(JournalSegment segment) {
+        if (!segment.release()) {
+            return;
+        }
+
+        synchronized (segments) {
+            JournalSegment oldest;
+            while ((oldest = segments.peekFirst()) != null && oldest.isRetired()) {
+                segments.removeFirst();
+                oldest.delete();
+                segmentsDeleted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Reads the segments of a previous run, keeping the latest record of each network id.
+     *
+     * @return the segments read, to delete once their records are copied
+     */
+    private List<JournalSegment> recover() throws IOException {
+        List<JournalSegment> previous = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, JournalSegment.FILE_PATTERN)) {
+            for (Path file : files) {
+                long id = JournalSegment.idOf(file);
+                if (id >= 0) {
+                    previous.add(JournalSegment.open(file, id));
+                }
+            }
+        }
+        previous.sort(Comparator.comparingLong(JournalSegment::getId));
+
+        Map<Long, Recovered> records = new HashMap<>();
+        CRC32 crc = new CRC32();
+
+        for (JournalSegment segment : previous) {
+            nextSegmentId = Math.max(nextSegmentId, segment.getId() + 1);
+
+            ByteBuffer buffer = segment.read();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if (length == 0) {
+                    break;
+                }
+
+                int checksum = buffer.getInt();
+                long sequence = buffer.getLong();
+                long key = buffer.getLong();
+                int flags = buffer.getInt();
+
+                if (length == COMMIT) {
+                    crc.reset();
+                    updateChecksum(crc, sequence, key, flags);
+                    if ((int) crc.getValue() != checksum) {
+                        logger.warn("Journal segment " + segment.getPath() + " has a damaged record at " + start);
+                        ++corruptSegments;
+                        break;
+                    }
+
+                    Recovered existing = records.get(key);
+                    if (existing != null && existing.sequence <= sequence) {
+                        records.remove(key);
+                    }
+                    continue;
+                }
+
+                if (length < 0 || length > buffer.remaining()) {
+                    logger.warn("Journal segment " + segment.getPath() + " has a damaged record at " + start);
+                    ++corruptSegments;
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+
+                crc.reset();
+                updateChecksum(crc, sequence, key, flags);
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Journal segment " + segment.getPath() + " has a damaged record at " + start);
+                    ++corruptSegments;
+                    break;
+                }
+
+                buffer.position(buffer.position() + length);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+
+                Recovered existing = records.get(key);
+                if (existing == null || existing.sequence < sequence) {
+                    byte[] bytes = new byte[length];
+                    payload.get(bytes);
+                    records.put(key, new Recovered(sequence, key, flags, bytes));
+                }
+            }
+        }
+
+        recovered = new ArrayList<>(records.values());
+        recovered.sort(Comparator.comparingLong(record -> record.sequence));
+        recoveredCount = recovered.size();
+        return previous;
+    }
+
+    private static void updateChecksum(CRC32 crc, long sequence, long key, int flags) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequence >>> shift));
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (key >>> shift));
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(flags >>> shift);
+        }
+    }
+
+    private static final class Entry {
+
+        final long sequence;
+        final JournalSegment segment;
+
+        Entry(long sequence, JournalSegment segment) {
+            this.sequence = sequence;
+            this.segment = segment;
+        }
+    }
+
+    private static final class Recovered {
+
+        final long sequence;
+        final long key;
+        final int flags;
+        final byte[] payload;
+
+        Recovered(long sequence, long key, int flags, byte[] payload) {
+            this.sequence = sequence;
+            this.key = key;
+            this.flags = flags;
+            this.payload = payload;
+        }
+    }
+}
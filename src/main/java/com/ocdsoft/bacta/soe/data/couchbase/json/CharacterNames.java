@@ -0,0 +1,86 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Reads the characters of account documents as cluster id and lower case first name, the way the
+ * character names view emits them.  Only the characterList is read, the rest of the document is
+ * skipped.
+ */
+public final class CharacterNames {
+
+    public interface Consumer {
+        void accept(int clusterId, String firstName);
+    }
+
+    private CharacterNames() {
+    }
+
+    /**
+     * Hands each character of an account document to the consumer.  Documents that are not objects,
+     * or have no characterList, have no characters.
+     */
+    public static void forEach(JsonCodecs codecs, byte[] document, Consumer consumer) throws IOException {
+        JsonReader reader = codecs.newReader(document, 0, document.length);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"characterList".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            readList(reader, consumer);
+            return;
+        }
+    }
+
+    /**
+     * Hands each character of the characterList array the reader is positioned at to the consumer.
+     */
+    public static void readList(JsonReader reader, Consumer consumer) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readCharacter(reader, consumer);
+        }
+        reader.endArray();
+    }
+
+    private static void readCharacter(JsonReader reader, Consumer consumer) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+
+        String fullName = null;
+        int clusterId = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            JsonToken token = reader.peek();
+
+            if ("name".equals(field) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                fullName = reader.nextString();
+            } else if ("clusterId".equals(field) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                clusterId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fullName == null || clusterId == -1) {
+            return;
+        }
+
+        String firstName = fullName.indexOf(" ") != -1 ? fullName.substring(0, fullName.indexOf(" ")) : fullName;
+        consumer.accept(clusterId, firstName.toLowerCase());
+    }
+}
@@ -0,0 +1,121 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Streams JSON documents between UTF-8 bytes and objects with Gson type adapters resolved once
+ * per class, so reads and writes skip both the adapter lookup and the intermediate String.
+ *
+ * Output matches {@code Gson.toJson} for the same Gson instance: nulls are skipped and HTML
+ * characters are escaped.  Input is read leniently, as {@code Gson.fromJson} does.
+ */
+public final class JsonCodecs {
+
+    private static final int INITIAL_BUFFER = 4 * 1024;
+
+    private final Gson gson;
+
+    private final ConcurrentMap<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, JsonTranscoder<?>> transcoders = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Utf8Writer> writers = ThreadLocal.withInitial(() -> new Utf8Writer(INITIAL_BUFFER));
+
+    public JsonCodecs(Gson gson) {
+        this.gson = gson;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> adapter(Class<T> clazz) {
+        TypeAdapter<?> adapter = adapters.get(clazz);
+        if (adapter == null) {
+            adapter = adapters.computeIfAbsent(clazz, gson::getAdapter);
+        }
+        return (TypeAdapter<T>) adapter;
+    }
+
+    /**
+     * @return a transcoder storing objects of the class as JSON documents
+     */
+    @SuppressWarnings("unchecked")
+    public <T> JsonTranscoder<T> transcoder(Class<T> clazz) {
+        JsonTranscoder<?> transcoder = transcoders.get(clazz);
+        if (transcoder == null) {
+            transcoder = transcoders.computeIfAbsent(clazz, type -> new JsonTranscoder<>(this, type));
+        }
+        return (JsonTranscoder<T>) transcoder;
+    }
+
+    /**
+     * @return the object as UTF-8 JSON, written with the adapter of its runtime class
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object object) {
+        TypeAdapter<Object> adapter = (TypeAdapter<Object>) adapter(object.getClass());
+
+        Utf8Writer out = writers.get();
+        out.reset();
+
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.setSerializeNulls(false);
+            writer.setHtmlSafe(true);
+            writer.setLenient(true);
+            adapter.write(writer, object);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the object read from UTF-8 JSON, or null for an empty document
+     */
+    public <T> T decode(byte[] data, int offset, int length, Class<T> clazz) {
+        return read(new Utf8Reader(data, offset, length), clazz);
+    }
+
+    public <T> T decode(String json, Class<T> clazz) {
+        return read(new StringReader(json), clazz);
+    }
+
+    /**
+     * @return a lenient reader over UTF-8 JSON, for documents scanned rather than bound to a class
+     */
+    public JsonReader newReader(byte[] data, int offset, int length) {
+        JsonReader reader = new JsonReader(new Utf8Reader(data, offset, length));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    <T> T read(Reader in, Class<T> clazz) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+
+        boolean empty = true;
+        try {
+            reader.peek();
+            empty = false;
+            return adapter(clazz).read(reader);
+        } catch (EOFException e) {
+            if (empty) {
+                return null;
+            }
+            throw new JsonSyntaxException(e);
+        } catch (IllegalStateException | IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+}
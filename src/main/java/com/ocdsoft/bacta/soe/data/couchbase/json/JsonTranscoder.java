@@ -0,0 +1,68 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.JsonIOException;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stores objects of one class as JSON documents with the flags the default transcoder gives
+ * strings, so documents stay readable by views and by clients storing JSON as strings.
+ * Documents the default transcoder compressed are inflated on read.
+ */
+public final class JsonTranscoder<T> implements Transcoder<T> {
+
+    /**
+     * Flag the default serializing transcoder sets on compressed values
+     */
+    static final int COMPRESSED = 2;
+
+    private final JsonCodecs codecs;
+    private final Class<T> clazz;
+
+    JsonTranscoder(JsonCodecs codecs, Class<T> clazz) {
+        this.codecs = codecs;
+        this.clazz = clazz;
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(T o) {
+        return new CachedData(0, codecs.encode(o), getMaxSize());
+    }
+
+    @Override
+    public T decode(CachedData d) {
+        byte[] data = d.getData();
+        int flags = d.getFlags();
+
+        if (flags == 0) {
+            return codecs.decode(data, 0, data.length, clazz);
+        }
+
+        if (flags == COMPRESSED) {
+            try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)), StandardCharsets.UTF_8)) {
+                return codecs.read(reader, clazz);
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+        throw new IllegalStateException("Document is not stored as JSON, flags " + flags);
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
@@ -0,0 +1,116 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import java.io.Reader;
+
+/**
+ * Decodes UTF-8 straight from a byte array, without the byte buffer an InputStreamReader
+ * allocates.  Malformed sequences decode to U+FFFD.
+ */
+final class Utf8Reader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final byte[] data;
+    private final int limit;
+    private int position;
+    private char pendingLowSurrogate;
+
+    Utf8Reader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        int count = 0;
+
+        if (pendingLowSurrogate != 0) {
+            buffer[offset + count++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (count < length && position < limit) {
+            int run = Math.min(length - count, limit - position);
+            int start = position;
+            int base = offset + count - start;
+            int end = start + run;
+            while (position < end && data[position] >= 0) {
+                buffer[base + position] = (char) data[position];
+                ++position;
+            }
+            count += position - start;
+
+            if (position == end) {
+                continue;
+            }
+
+            int b = data[position];
+
+            int codePoint;
+            int continuation;
+
+            if ((b & 0xE0) == 0xC0) {
+                codePoint = b & 0x1F;
+                continuation = 1;
+            } else if ((b & 0xF0) == 0xE0) {
+                codePoint = b & 0x0F;
+                continuation = 2;
+            } else if ((b & 0xF8) == 0xF0) {
+                codePoint = b & 0x07;
+                continuation = 3;
+            } else {
+                buffer[offset + count++] = REPLACEMENT;
+                ++position;
+                continue;
+            }
+
+            if (position + continuation >= limit) {
+                buffer[offset + count++] = REPLACEMENT;
+                position = limit;
+                continue;
+            }
+
+            boolean malformed = false;
+            for (int i = 1; i <= continuation; ++i) {
+                int next = data[position + i];
+                if ((next & 0xC0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+
+            if (malformed) {
+                buffer[offset + count++] = REPLACEMENT;
+                ++position;
+                continue;
+            }
+
+            position += continuation + 1;
+
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                buffer[offset + count++] = (char) codePoint;
+            } else if (codePoint <= Character.MAX_CODE_POINT) {
+                buffer[offset + count++] = Character.highSurrogate(codePoint);
+                if (count < length) {
+                    buffer[offset + count++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            } else {
+                buffer[offset + count++] = REPLACEMENT;
+            }
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
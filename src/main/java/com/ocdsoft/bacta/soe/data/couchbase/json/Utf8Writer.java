@@ -0,0 +1,118 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Encodes UTF-8 into a growable byte array that is reused between documents.  Unpaired
+ * surrogates encode as U+FFFD, including a high surrogate still waiting for its pair when the
+ * document is taken or the writer closed.  A flush keeps it waiting, since the low surrogate
+ * may follow.
+ */
+final class Utf8Writer extends Writer {
+
+    private byte[] buffer;
+    private int size;
+    private char pendingHighSurrogate;
+
+    Utf8Writer(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    void reset() {
+        size = 0;
+        pendingHighSurrogate = 0;
+    }
+
+    byte[] toByteArray() {
+        finish();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public void write(int c) {
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        ensure(length);
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            encode(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) {
+        ensure(length);
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            encode(string.charAt(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        finish();
+    }
+
+    private void finish() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            replacement();
+        }
+    }
+
+    private void replacement() {
+        ensure(3);
+        buffer[size++] = (byte) 0xEF;
+        buffer[size++] = (byte) 0xBF;
+        buffer[size++] = (byte) 0xBD;
+    }
+
+    private void encode(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensure(4);
+                buffer[size++] = (byte) (0xF0 | (codePoint >>> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+
+            replacement();
+        }
+
+        if (c < 0x80) {
+            ensure(1);
+            buffer[size++] = (byte) c;
+        } else if (c < 0x800) {
+            ensure(2);
+            buffer[size++] = (byte) (0xC0 | (c >>> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            replacement();
+        } else {
+            ensure(3);
+            buffer[size++] = (byte) (0xE0 | (c >>> 12));
+            buffer[size++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void ensure(int count) {
+        if (size + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+    }
+}
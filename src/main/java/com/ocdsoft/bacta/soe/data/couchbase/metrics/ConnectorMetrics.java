@@ -0,0 +1,257 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the per-operation metrics of the Couchbase connectors.
+ *
+ * Off unless Bacta/Database/Couchbase Metrics is set, in which case every operation is published
+ * as an MXBean under com.ocdsoft.bacta.soe.data.couchbase (unless MetricsJmx is false) and handed
+ * to the reporters every MetricsReportInterval milliseconds.  Reporters are added in code or named
+ * in MetricsReporters as a comma separated list of classes.
+ */
+@Singleton
+public final class ConnectorMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectorMetrics.class);
+
+    public static final String DOMAIN = "com.ocdsoft.bacta.soe.data.couchbase";
+
+    /**
+     * Metrics that record nothing, for components constructed outside of injection.
+     */
+    public static final ConnectorMetrics DISABLED = new ConnectorMetrics(false, false, 0);
+
+    private final boolean enabled;
+    private final boolean jmx;
+    private final long reportInterval;
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final List<OperationMetrics> registered = new CopyOnWriteArrayList<>();
+    private final List<ObjectName> published = new CopyOnWriteArrayList<>();
+    private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<>();
+    private final Map<OperationMetrics, OperationSnapshot> reported = new HashMap<>();
+
+    private Thread reporterThread;
+
+    @Inject
+    public ConnectorMetrics(BactaConfiguration configuration) {
+        this(configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "Metrics", false),
+                configuration.getBooleanWithDefault("Bacta/Database/Couchbase", "MetricsJmx", true),
+                configuration.getLongWithDefault("Bacta/Database/Couchbase", "MetricsReportInterval", 60000));
+
+        if (enabled) {
+            for (String className : configuration.getStringWithDefault("Bacta/Database/Couchbase", "MetricsReporters", "").split(",")) {
+                if (className.trim().isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    addReporter((MetricsReporter) Class.forName(className.trim()).getDeclaredConstructor().newInstance());
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    logger.error("Unable to create metrics reporter " + className.trim(), e);
+                }
+            }
+        }
+    }
+
+    public ConnectorMetrics(boolean enabled, boolean jmx, long reportInterval) {
+        this.enabled = enabled;
+        this.jmx = jmx;
+        this.reportInterval = reportInterval;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param component the connector or service the operation belongs to
+     * @return the metrics of the operation, shared by everyone asking for the same name
+     */
+    public OperationMetrics operation(String component, String name) {
+        return operation(component, name, false);
+    }
+
+    /**
+     * Metrics of an operation that are also kept per class of the objects it handles.
+     */
+    public OperationMetrics operationByClass(String component, String name) {
+        return operation(component, name, true);
+    }
+
+    private OperationMetrics operation(String component, String name, boolean byClass) {
+        String key = component + '.' + name;
+        OperationMetrics metrics = operations.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+
+        metrics = new OperationMetrics(this, component, name, null, enabled, byClass);
+        OperationMetrics existing = operations.putIfAbsent(key, metrics);
+        if (existing != null) {
+            return existing;
+        }
+
+        return enabled ? register(metrics) : metrics;
+    }
+
+    /**
+     * Publishes an MXBean of a component, such as the gauges of a pool, alongside the operations.
+     * Nothing is published unless metrics are enabled over JMX.
+     */
+    public void publish(String component, String name, Object mxbean) {
+        if (!enabled || !jmx) {
+            return;
+        }
+
+        try {
+            Hashtable<String, String> properties = new Hashtable<>();
+            properties.put("type", component);
+            properties.put("name", name);
+            ObjectName objectName = new ObjectName(DOMAIN, properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mxbean, objectName);
+            published.add(objectName);
+        } catch (Exception e) {
+            logger.warn("Unable to publish " + component + "." + name + " over JMX: " + e.getMessage());
+        }
+    }
+
+    public void addReporter(MetricsReporter reporter) {
+        if (!enabled) {
+            return;
+        }
+
+        reporters.add(reporter);
+        synchronized (this) {
+            if (reporterThread == null && reportInterval > 0) {
+                reporterThread = new Thread(this::runReporters, "Metrics-Reporter");
+                reporterThread.setDaemon(true);
+                reporterThread.start();
+            }
+        }
+    }
+
+    /**
+     * @return every operation and per-class breakdown recorded so far, totals since startup
+     */
+    public List<OperationSnapshot> snapshot() {
+        List<OperationSnapshot> snapshots = new ArrayList<>(registered.size());
+        for (OperationMetrics metrics : registered) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Stops reporting and unregisters the MXBeans.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            thread = reporterThread;
+            reporterThread = null;
+        }
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+
+        if (jmx) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (OperationMetrics metrics : registered) {
+                try {
+                    ObjectName objectName = objectName(metrics);
+                    if (server.isRegistered(objectName)) {
+                        server.unregisterMBean(objectName);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Unable to unregister metrics of " + metrics.getComponent() + "." + metrics.getName(), e);
+                }
+            }
+
+            for (ObjectName objectName : published) {
+                try {
+                    if (server.isRegistered(objectName)) {
+                        server.unregisterMBean(objectName);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Unable to unregister " + objectName, e);
+                }
+            }
+        }
+    }
+
+    OperationMetrics register(OperationMetrics metrics) {
+        registered.add(metrics);
+
+        if (jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(metrics));
+            } catch (Exception e) {
+                logger.warn("Unable to publish metrics of " + metrics.getComponent() + "." + metrics.getName() + " over JMX: " + e.getMessage());
+            }
+        }
+
+        return metrics;
+    }
+
+    private void runReporters() {
+        long last = System.currentTimeMillis();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(reportInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            List<OperationSnapshot> interval = new ArrayList<>();
+            for (OperationMetrics metrics : registered) {
+                OperationSnapshot current = metrics.snapshot();
+                OperationSnapshot previous = reported.put(metrics, current);
+                OperationSnapshot delta = previous == null ? current : current.minus(previous);
+                if (delta.getCount() > 0 || delta.getErrors() > 0) {
+                    interval.add(delta);
+                }
+            }
+
+            if (interval.isEmpty()) {
+                last = now;
+                continue;
+            }
+
+            for (MetricsReporter reporter : reporters) {
+                try {
+                    reporter.report(interval, Math.max(1, now - last));
+                } catch (RuntimeException e) {
+                    logger.error("Metrics reporter " + reporter.getClass().getName() + " failed", e);
+                }
+            }
+            last = now;
+        }
+    }
+
+    private static ObjectName objectName(OperationMetrics metrics) throws Exception {
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", metrics.getComponent());
+        properties.put("name", metrics.getName());
+        if (metrics.getObjectClass() != null) {
+            properties.put("class", metrics.getObjectClass().getName());
+        }
+        return new ObjectName(DOMAIN, properties);
+    }
+}
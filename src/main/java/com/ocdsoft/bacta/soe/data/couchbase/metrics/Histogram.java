@@ -0,0 +1,61 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative longs, in the manner of HdrHistogram: values below 64 are
+ * counted exactly, larger values in 32 buckets per power of two, so every recorded value is
+ * reported within about 3%.  Recording is one atomic increment and never allocates.
+ */
+public final class Histogram {
+
+    static final int SUB_BITS = 5;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int LINEAR = SUB_COUNT * 2;
+    static final int BUCKETS = LINEAR + (63 - (SUB_BITS + 1)) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            copy[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(copy, sum.sum());
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR + (exponent - (SUB_BITS + 1)) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long highestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+
+        int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+        long sub = (index - LINEAR) % SUB_COUNT;
+        long shift = exponent - SUB_BITS;
+        long next = (SUB_COUNT + sub + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
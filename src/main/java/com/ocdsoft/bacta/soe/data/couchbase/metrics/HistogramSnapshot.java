@@ -0,0 +1,76 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+/**
+ * Counts of a {@link Histogram} at one point in time, or between two points with {@link #minus}.
+ */
+public final class HistogramSnapshot {
+
+    static final HistogramSnapshot EMPTY = new HistogramSnapshot(new long[Histogram.BUCKETS], 0);
+
+    private final long[] counts;
+    private final long sum;
+    private final long count;
+
+    HistogramSnapshot(long[] counts, long sum) {
+        this.counts = counts;
+        this.sum = sum;
+
+        long total = 0;
+        for (long bucket : counts) {
+            total += bucket;
+        }
+        this.count = total;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the value at the percentile, or 0 when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Histogram.highestValue(i);
+            }
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = counts.length - 1; i >= 0; --i) {
+            if (counts[i] != 0) {
+                return Histogram.highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the values recorded since the earlier snapshot
+     */
+    public HistogramSnapshot minus(HistogramSnapshot earlier) {
+        long[] delta = new long[counts.length];
+        for (int i = 0; i < counts.length; ++i) {
+            delta[i] = counts[i] - earlier.counts[i];
+        }
+        return new HistogramSnapshot(delta, sum - earlier.sum);
+    }
+}
@@ -0,0 +1,17 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import java.util.List;
+
+/**
+ * Receives the operations recorded during each reporting interval.  Implementations named in
+ * Bacta/Database/Couchbase MetricsReporters need a public no-argument constructor.
+ */
+public interface MetricsReporter {
+
+    /**
+     * Called on the reporting thread.  Operations with nothing recorded in the interval are left out.
+     *
+     * @param intervalMillis length of the interval, for turning counts into rates
+     */
+    void report(List<OperationSnapshot> operations, long intervalMillis);
+}
@@ -0,0 +1,212 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, errors and payload sizes of one connector operation, optionally broken down by the
+ * class of object it handled.
+ *
+ * Callers time an operation with
+ * <pre>
+ * long start = metrics.start();
+ * boolean success = false;
+ * try {
+ *     ...
+ *     success = true;
+ * } finally {
+ *     metrics.stop(start, success);
+ * }
+ * </pre>
+ * When metrics are disabled {@code start} returns 0 without reading the clock, and {@code stop}
+ * returns on seeing it.  Errors are operations that threw or completed exceptionally.
+ */
+public final class OperationMetrics implements OperationMetricsMXBean {
+
+    private final String component;
+    private final String name;
+    private final Class<?> objectClass;
+    private final boolean enabled;
+
+    private final Histogram latency = new Histogram();
+    private final Histogram sizes = new Histogram();
+    private final LongAdder errors = new LongAdder();
+    private final long created = System.nanoTime();
+
+    private final ClassValue<OperationMetrics> byClass;
+
+    OperationMetrics(ConnectorMetrics registry, String component, String name, Class<?> objectClass, boolean enabled, boolean breakdown) {
+        this.component = component;
+        this.name = name;
+        this.objectClass = objectClass;
+        this.enabled = enabled;
+
+        byClass = !enabled || !breakdown ? null : new ClassValue<OperationMetrics>() {
+            @Override
+            protected OperationMetrics computeValue(Class<?> type) {
+                return registry.register(new OperationMetrics(registry, component, name, type, true, false));
+            }
+        };
+    }
+
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(long start, boolean success) {
+        if (start == 0) {
+            return;
+        }
+
+        latency.record(System.nanoTime() - start);
+        if (!success) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Records the operation here and under the class of the object it handled, if any.
+     */
+    public void stop(long start, boolean success, Object object) {
+        if (start == 0) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        latency.record(elapsed);
+        if (!success) {
+            errors.increment();
+        }
+
+        if (object != null && byClass != null) {
+            OperationMetrics child = byClass.get(object.getClass());
+            child.latency.record(elapsed);
+            if (!success) {
+                child.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Records the operation when the future completes, as failed if it completes exceptionally,
+     * and under the class of the value it completes with.
+     */
+    public <T> CompletableFuture<T> stop(long start, CompletableFuture<T> future) {
+        if (start == 0) {
+            return future;
+        }
+
+        future.whenComplete((value, error) -> stop(start, error == null, value));
+        return future;
+    }
+
+    /**
+     * Records the operation when the future completes, under the class of the object it handled.
+     */
+    public <T> CompletableFuture<T> stop(long start, CompletableFuture<T> future, Object object) {
+        if (start == 0) {
+            return future;
+        }
+
+        future.whenComplete((value, error) -> stop(start, error == null, object));
+        return future;
+    }
+
+    /**
+     * Records the serialized size of an object handled by the operation.
+     */
+    public void size(int bytes, Object object) {
+        if (!enabled) {
+            return;
+        }
+
+        sizes.record(bytes);
+        if (object != null && byClass != null) {
+            byClass.get(object.getClass()).sizes.record(bytes);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the class of object this breakdown is for, or null for the operation as a whole
+     */
+    public Class<?> getObjectClass() {
+        return objectClass;
+    }
+
+    public OperationSnapshot snapshot() {
+        return new OperationSnapshot(component, name, objectClass, errors.sum(), latency.snapshot(), sizes.snapshot());
+    }
+
+    @Override
+    public long getCount() {
+        return latency.snapshot().getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getRate() {
+        double seconds = (System.nanoTime() - created) / 1e9;
+        return seconds > 0 ? getCount() / seconds : 0;
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latency.snapshot().getMean() / 1000.0;
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return micros(latency.snapshot().getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return micros(latency.snapshot().getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getLatencyP999Micros() {
+        return micros(latency.snapshot().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return micros(latency.snapshot().getMax());
+    }
+
+    @Override
+    public double getSizeMean() {
+        return sizes.snapshot().getMean();
+    }
+
+    @Override
+    public long getSizeP99() {
+        return sizes.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getSizeMax() {
+        return sizes.snapshot().getMax();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
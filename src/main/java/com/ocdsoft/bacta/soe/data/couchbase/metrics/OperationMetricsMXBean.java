@@ -0,0 +1,33 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+/**
+ * JMX view of an operation's metrics since startup.  Sizes are serialized bytes, recorded only by
+ * operations that serialize.
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getErrors();
+
+    /**
+     * @return operations per second since startup
+     */
+    double getRate();
+
+    double getLatencyMeanMicros();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyP999Micros();
+
+    long getLatencyMaxMicros();
+
+    double getSizeMean();
+
+    long getSizeP99();
+
+    long getSizeMax();
+}
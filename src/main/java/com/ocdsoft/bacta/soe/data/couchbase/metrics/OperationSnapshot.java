@@ -0,0 +1,62 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+/**
+ * An operation's metrics at one point in time, or over a reporting interval.  Latencies are in
+ * nanoseconds, sizes in serialized bytes.
+ */
+public final class OperationSnapshot {
+
+    private final String component;
+    private final String name;
+    private final Class<?> objectClass;
+    private final long errors;
+    private final HistogramSnapshot latency;
+    private final HistogramSnapshot sizes;
+
+    OperationSnapshot(String component, String name, Class<?> objectClass, long errors, HistogramSnapshot latency, HistogramSnapshot sizes) {
+        this.component = component;
+        this.name = name;
+        this.objectClass = objectClass;
+        this.errors = errors;
+        this.latency = latency;
+        this.sizes = sizes;
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the class of object this breakdown is for, or null for the operation as a whole
+     */
+    public Class<?> getObjectClass() {
+        return objectClass;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public HistogramSnapshot getLatency() {
+        return latency;
+    }
+
+    public HistogramSnapshot getSizes() {
+        return sizes;
+    }
+
+    /**
+     * @return the operations recorded since the earlier snapshot of the same operation
+     */
+    public OperationSnapshot minus(OperationSnapshot earlier) {
+        return new OperationSnapshot(component, name, objectClass, errors - earlier.errors, latency.minus(earlier.latency), sizes.minus(earlier.sizes));
+    }
+}
@@ -0,0 +1,39 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Logs one line per operation and interval at info level.
+ */
+public final class Slf4jMetricsReporter implements MetricsReporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(Slf4jMetricsReporter.class);
+
+    @Override
+    public void report(List<OperationSnapshot> operations, long intervalMillis) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+
+        for (OperationSnapshot operation : operations) {
+            HistogramSnapshot latency = operation.getLatency();
+            HistogramSnapshot sizes = operation.getSizes();
+
+            logger.info(String.format("%s.%s%s count=%d rate=%.1f/s errors=%d latency(us) p50=%d p99=%d p999=%d max=%d%s",
+                    operation.getComponent(),
+                    operation.getName(),
+                    operation.getObjectClass() != null ? "[" + operation.getObjectClass().getSimpleName() + "]" : "",
+                    operation.getCount(),
+                    operation.getCount() * 1000.0 / intervalMillis,
+                    operation.getErrors(),
+                    latency.getValueAtPercentile(50) / 1000,
+                    latency.getValueAtPercentile(99) / 1000,
+                    latency.getValueAtPercentile(99.9) / 1000,
+                    latency.getMax() / 1000,
+                    sizes.getCount() > 0 ? String.format(" bytes mean=%.0f p99=%d", sizes.getMean(), sizes.getValueAtPercentile(99)) : ""));
+        }
+    }
+}
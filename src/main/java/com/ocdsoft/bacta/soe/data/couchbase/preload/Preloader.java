@@ -0,0 +1,243 @@
+package com.ocdsoft.bacta.soe.data.couchbase.preload;
+
+import net.spy.memcached.CachedData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Loads a stream of keys in bulk batches and decodes the documents in parallel, to fill a working
+ * set before it is needed.
+ *
+ * Keys are read from the stream as batches are issued, so a long stream is never held at once.
+ * At most {@code concurrency} batches are fetched or decoded at a time, and the caller waits for a
+ * free slot before issuing the next, which bounds both the load on the cluster and the documents
+ * held in memory.  Each batch is decoded on a fork-join pool of {@code parallelism} threads.
+ */
+public final class Preloader<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(Preloader.class);
+
+    public interface Fetcher {
+        /**
+         * @return a future of the documents found for the keys, missing keys absent
+         */
+        CompletableFuture<Map<String, CachedData>> fetch(List<String> keys);
+    }
+
+    public interface Decoder<T> {
+        T decode(String key, CachedData document);
+    }
+
+    private final Fetcher fetcher;
+    private final Decoder<T> decoder;
+    private final int batchSize;
+    private final int concurrency;
+    private final int parallelism;
+
+    public Preloader(Fetcher fetcher, Decoder<T> decoder, int batchSize, int concurrency, int parallelism) {
+        if (batchSize < 1 || concurrency < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid preload sizing: batch=" + batchSize + " concurrency=" + concurrency + " parallelism=" + parallelism);
+        }
+
+        this.fetcher = fetcher;
+        this.decoder = decoder;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Loads every key of the stream, handing each object decoded to the sink, and returns once all
+     * are handed over.  The sink is called from the decoding threads concurrently.
+     */
+    public Result load(Iterator<String> keys, Consumer<? super T> sink) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Semaphore permits = new Semaphore(concurrency);
+        final Phaser batches = new Phaser(1);
+        final Counters counters = new Counters();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Preload-Decode-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+
+        try {
+            List<String> batch = new ArrayList<>(batchSize);
+            while (keys.hasNext()) {
+                batch.add(keys.next());
+                if (batch.size() == batchSize) {
+                    issue(batch, sink, permits, batches, pool, counters);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                issue(batch, sink, permits, batches, pool, counters);
+            }
+
+            batches.awaitAdvanceInterruptibly(batches.arriveAndDeregister());
+        } finally {
+            pool.shutdown();
+        }
+
+        Result result = new Result(counters.requested.sum(), counters.loaded.sum(), counters.missing.sum(),
+                counters.failed.sum(), counters.failedBatches.sum(), System.nanoTime() - start);
+
+        if (result.getFailed() > 0 || result.getFailedBatches() > 0) {
+            logger.warn("Preload failed to decode " + result.getFailed() + " objects and to fetch " + result.getFailedBatches() + " batches");
+        }
+
+        return result;
+    }
+
+    private void issue(final List<String> batch, final Consumer<? super T> sink, final Semaphore permits,
+                       final Phaser batches, final ForkJoinPool pool, final Counters counters) throws InterruptedException {
+
+        permits.acquire();
+        batches.register();
+        counters.requested.add(batch.size());
+
+        CompletableFuture<Map<String, CachedData>> fetched;
+        try {
+            fetched = fetcher.fetch(batch);
+        } catch (RuntimeException e) {
+            fetched = new CompletableFuture<>();
+            fetched.completeExceptionally(e);
+        }
+
+        fetched.whenComplete((documents, error) -> {
+            if (error != null) {
+                logger.debug("Preload batch of " + batch.size() + " keys failed", error);
+                counters.failedBatches.increment();
+                finish(permits, batches);
+                return;
+            }
+
+            counters.missing.add(batch.size() - documents.size());
+            try {
+                pool.execute(() -> {
+                    try {
+                        // A parallel stream run inside the pool splits across its threads
+                        documents.entrySet().parallelStream().forEach(entry -> {
+                            T object;
+                            try {
+                                object = decoder.decode(entry.getKey(), entry.getValue());
+                            } catch (RuntimeException e) {
+                                logger.debug("Unable to decode preloaded document " + entry.getKey(), e);
+                                counters.failed.increment();
+                                return;
+                            }
+
+                            if (object != null) {
+                                sink.accept(object);
+                                counters.loaded.increment();
+                            } else {
+                                counters.missing.increment();
+                            }
+                        });
+                    } finally {
+                        finish(permits, batches);
+                    }
+                });
+            } catch (RuntimeException e) {
+                counters.failedBatches.increment();
+                finish(permits, batches);
+            }
+        });
+    }
+
+    private static void finish(Semaphore permits, Phaser batches) {
+        permits.release();
+        batches.arriveAndDeregister();
+    }
+
+    private static final class Counters {
+        final LongAdder requested = new LongAdder();
+        final LongAdder loaded = new LongAdder();
+        final LongAdder missing = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder failedBatches = new LongAdder();
+    }
+
+    public static final class Result {
+
+        private final long requested;
+        private final long loaded;
+        private final long missing;
+        private final long failed;
+        private final long failedBatches;
+        private final long elapsedNanos;
+
+        Result(long requested, long loaded, long missing, long failed, long failedBatches, long elapsedNanos) {
+            this.requested = requested;
+            this.loaded = loaded;
+            this.missing = missing;
+            this.failed = failed;
+            this.failedBatches = failedBatches;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRequested() {
+            return requested;
+        }
+
+        public long getLoaded() {
+            return loaded;
+        }
+
+        /**
+         * @return keys with no document
+         */
+        public long getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return documents that did not decode
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return batches whose fetch failed or timed out, their keys are not counted elsewhere
+         */
+        public long getFailedBatches() {
+            return failedBatches;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getObjectsPerSecond() {
+            return elapsedNanos > 0 ? loaded * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d objects in %dms (%.0f objects/s), %d missing, %d failed, %d failed batches",
+                    loaded, requested, getElapsedMillis(), getObjectsPerSecond(), missing, failed, failedBatches);
+        }
+    }
+}
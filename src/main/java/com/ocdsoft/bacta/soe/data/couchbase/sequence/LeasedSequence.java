@@ -0,0 +1,127 @@
+package com.ocdsoft.bacta.soe.data.couchbase.sequence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out values from a block of a remote counter that was reserved with a single increment.
+ *
+ * Values are claimed from the current block with an atomic increment, so the common path takes no
+ * locks and does no I/O.  Once half of a block has been handed out the next one is reserved on the
+ * given executor, and callers only wait on the server when a block runs out before its successor
+ * has arrived.
+ */
+public final class LeasedSequence {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeasedSequence.class);
+
+    private final String key;
+    private final SequenceSource source;
+    private final int blockSize;
+    private final Executor executor;
+
+    /**
+     * Starts exhausted, so the first call reserves a block.  Each sequence has its own, as its
+     * cursor is advanced by every call that finds it exhausted.
+     */
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(1, 0));
+    private final AtomicReference<CompletableFuture<Block>> pending = new AtomicReference<>();
+
+    public LeasedSequence(final String key, final SequenceSource source, int blockSize, final Executor executor) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+
+        this.key = key;
+        this.source = source;
+        this.blockSize = blockSize;
+        this.executor = executor;
+    }
+
+    public long next() {
+        for (;;) {
+            Block block = current.get();
+            long value = block.cursor.getAndIncrement();
+
+            if (value <= block.last) {
+                if (value == block.refillMark) {
+                    prefetch();
+                }
+                return value;
+            }
+
+            advance(block);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    private void prefetch() {
+        final CompletableFuture<Block> future = new CompletableFuture<>();
+        if (!pending.compareAndSet(null, future)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(reserve());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void advance(final Block exhausted) {
+        if (current.get() != exhausted) {
+            return;
+        }
+
+        Block fresh = null;
+        CompletableFuture<Block> future = pending.getAndSet(null);
+        if (future != null) {
+            try {
+                fresh = future.join();
+            } catch (CompletionException e) {
+                logger.warn("Background reservation of '" + key + "' failed, reserving inline", e.getCause());
+            }
+        }
+
+        if (fresh == null) {
+            fresh = reserve();
+        }
+
+        current.set(fresh);
+    }
+
+    private Block reserve() {
+        long last = source.reserve(key, blockSize);
+        logger.trace("Leased '{}' block ending at {}", key, last);
+        return new Block(last - blockSize + 1, last);
+    }
+
+    private static final class Block {
+
+        final AtomicLong cursor;
+        final long last;
+        final long refillMark;
+
+        Block(long first, long last) {
+            this.cursor = new AtomicLong(first);
+            this.last = last;
+            this.refillMark = first + (last - first + 1) / 2;
+        }
+    }
+}
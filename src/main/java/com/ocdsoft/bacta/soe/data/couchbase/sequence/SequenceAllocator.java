@@ -0,0 +1,79 @@
+package com.ocdsoft.bacta.soe.data.couchbase.sequence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Allocates values from named counters held by a {@link SequenceSource}.
+ *
+ * Each counter is registered with its own block size.  Counters with a block size of 1 are
+ * incremented on the server for every value, larger block sizes are leased through a
+ * {@link LeasedSequence} that prefetches its next block on this allocator's background thread.
+ */
+public final class SequenceAllocator {
+
+    private final SequenceSource source;
+
+    private final ExecutorService executor;
+
+    private final Map<String, LeasedSequence> leased = new ConcurrentHashMap<>();
+
+    private final Map<String, Boolean> registered = new ConcurrentHashMap<>();
+
+    public SequenceAllocator(final String name, final SequenceSource source) {
+        this.source = source;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-Sequence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param key       counter document key
+     * @param blockSize how many values to reserve per round trip to the server
+     */
+    public void register(String key, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + key + "=" + blockSize);
+        }
+
+        if (registered.putIfAbsent(key, Boolean.TRUE) != null) {
+            throw new IllegalStateException("Sequence already registered: " + key);
+        }
+
+        if (blockSize > 1) {
+            leased.put(key, new LeasedSequence(key, source, blockSize, executor));
+        }
+    }
+
+    public long next(String key) {
+        LeasedSequence sequence = leased.get(key);
+        if (sequence != null) {
+            return sequence.next();
+        }
+
+        if (!registered.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown sequence: " + key);
+        }
+
+        return source.reserve(key, 1);
+    }
+
+    /**
+     * @throws SequenceOverflowException if the counter has passed {@link Integer#MAX_VALUE}
+     */
+    public int nextInt(String key) {
+        long value = next(key);
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new SequenceOverflowException(key, value);
+        }
+        return (int) value;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
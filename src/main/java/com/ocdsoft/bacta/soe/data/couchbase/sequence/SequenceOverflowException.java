@@ -0,0 +1,26 @@
+package com.ocdsoft.bacta.soe.data.couchbase.sequence;
+
+/**
+ * Thrown when a sequence has grown past the range of the type its values are handed out as.
+ */
+public class SequenceOverflowException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final long value;
+
+    public SequenceOverflowException(String key, long value) {
+        super("Sequence '" + key + "' overflowed with value " + value);
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ocdsoft.bacta.soe.data.couchbase.sequence;
+
+/**
+ * Remote counter that a {@link LeasedSequence} reserves its blocks from.
+ */
+public interface SequenceSource {
+
+    /**
+     * Atomically advances the counter stored under the given key.
+     *
+     * @param key   the counter document key
+     * @param count how far to advance the counter
+     * @return the value of the counter after it has been advanced
+     */
+    long reserve(String key, int count);
+}
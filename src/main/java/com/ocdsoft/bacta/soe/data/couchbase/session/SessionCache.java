@@ -0,0 +1,203 @@
+package com.ocdsoft.bacta.soe.data.couchbase.session;
+
+import com.ocdsoft.bacta.engine.object.account.Account;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Validated sessions keyed by auth token, so repeat validations of a live token need no I/O.
+ *
+ * Sessions are expired by a {@link TimerWheel} turned by a background sweeper rather than by
+ * checking the clock on every read, so a session may be served for up to one sweep interval past
+ * its expiration.  Expired sessions, and expired tokens found on the read path, are handed to the
+ * expiry handler in batches on the sweeper thread.
+ *
+ * Sessions are keyed by token and by username.  Tokens are only added inside a compute on the
+ * account's username entry, so a put racing an invalidate of the same account cannot leave a
+ * token behind that no username entry points to.
+ *
+ * A session is only invalidated by this process, so a token replaced by another login server
+ * stays valid here until it expires.  With caching off there is no sweeper, and expired tokens
+ * are handed to the expiry handler on the calling thread.
+ */
+public final class SessionCache<T extends Account> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionCache.class);
+
+    private final boolean caching;
+    private final Consumer<List<T>> expiryHandler;
+
+    private final ConcurrentMap<String, Session<T>> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Session<T>> byUsername = new ConcurrentHashMap<>();
+
+    private final Queue<Session<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<T> expiredAccounts = new ConcurrentLinkedQueue<>();
+
+    private final TimerWheel<Session<T>> wheel;
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param caching       whether validated sessions are cached, or expired tokens are cleared at once
+     * @param sweepMillis   how often the sweeper runs, which is also the resolution of expiry
+     * @param expiryHandler clears the tokens of expired accounts, called on the sweeper thread when
+     *                      caching, otherwise on the thread that found the token expired
+     */
+    public SessionCache(boolean caching, long sweepMillis, final Consumer<List<T>> expiryHandler) {
+        this.caching = caching;
+        this.expiryHandler = expiryHandler;
+
+        if (!caching) {
+            wheel = null;
+            sweeper = null;
+            return;
+        }
+
+        wheel = new TimerWheel<>(sweepMillis, System.currentTimeMillis());
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Session-Sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isCaching() {
+        return caching;
+    }
+
+    /**
+     * @return the cached account for the token, or null on a miss
+     */
+    public T get(String authToken) {
+        if (!caching) {
+            return null;
+        }
+
+        Session<T> session = byToken.get(authToken);
+        return session != null ? session.account : null;
+    }
+
+    /**
+     * Caches the account under its current auth token, replacing any other session of the account.
+     */
+    public void put(T account) {
+        if (!caching) {
+            return;
+        }
+
+        Session<T> session = new Session<>(account);
+        byUsername.compute(account.getUsername(), (username, previous) -> {
+            if (previous != null) {
+                byToken.remove(previous.authToken, previous);
+            }
+            byToken.put(session.authToken, session);
+            return session;
+        });
+        scheduled.add(session);
+    }
+
+    /**
+     * Replaces the cached account if it still holds the cached token, otherwise drops its session.
+     */
+    public void refresh(T account) {
+        if (!caching) {
+            return;
+        }
+
+        Session<T> replacement = new Session<>(account);
+        Session<T> refreshed = byUsername.computeIfPresent(account.getUsername(), (username, session) -> {
+            byToken.remove(session.authToken, session);
+            if (!session.authToken.equals(replacement.authToken) || session.expiration != replacement.expiration) {
+                return null;
+            }
+            byToken.put(replacement.authToken, replacement);
+            return replacement;
+        });
+
+        if (refreshed != null) {
+            scheduled.add(replacement);
+        }
+    }
+
+    public void invalidate(String username) {
+        byUsername.computeIfPresent(username, (key, session) -> {
+            byToken.remove(session.authToken, session);
+            return null;
+        });
+    }
+
+    /**
+     * Queues an account whose token was found to be expired so its token is cleared by the sweeper,
+     * or clears it at once when not caching.
+     */
+    public void expire(T account) {
+        if (!caching) {
+            expiryHandler.accept(Collections.singletonList(account));
+            return;
+        }
+
+        invalidate(account.getUsername());
+        expiredAccounts.add(account);
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+    }
+
+    private void sweep() {
+        try {
+            Session<T> session;
+            while ((session = scheduled.poll()) != null) {
+                wheel.schedule(session, session.expiration);
+            }
+
+            wheel.advance(System.currentTimeMillis(), expired -> {
+                if (byUsername.remove(expired.account.getUsername(), expired)) {
+                    byToken.remove(expired.authToken, expired);
+                    expiredAccounts.add(expired.account);
+                }
+            });
+
+            if (expiredAccounts.isEmpty()) {
+                return;
+            }
+
+            List<T> batch = new ArrayList<>();
+            T account;
+            while ((account = expiredAccounts.poll()) != null) {
+                batch.add(account);
+            }
+
+            expiryHandler.accept(batch);
+
+        } catch (Throwable t) {
+            logger.error("Unable to sweep expired sessions", t);
+        }
+    }
+
+    private static final class Session<T extends Account> {
+
+        final T account;
+        final String authToken;
+        final long expiration;
+
+        Session(T account) {
+            this.account = account;
+            this.authToken = account.getAuthToken();
+            this.expiration = account.getAuthExpiration();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.ocdsoft.bacta.soe.data.couchbase.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel.  Scheduling is constant time, and advancing the wheel only touches the
+ * buckets of the ticks that passed, cascading timers from coarser levels as their range comes up.
+ *
+ * Four levels of 64 buckets cover 2^24 ticks; later deadlines are parked on the last bucket of the
+ * top level and rescheduled as the wheel turns.  Timers fire on the first advance at or after the
+ * tick holding their deadline.  Not thread safe.
+ */
+public final class TimerWheel<E> {
+
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    private final List<Timer<E>>[][] buckets;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, long nowMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Tick must be at least 1ms: " + tickMillis);
+        }
+
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+
+        buckets = new List[LEVELS][SIZE];
+        for (int level = 0; level < LEVELS; ++level) {
+            for (int i = 0; i < SIZE; ++i) {
+                buckets[level][i] = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * @param deadlineMillis when the element expires; elements already due fire on the next advance
+     */
+    public void schedule(E element, long deadlineMillis) {
+        long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        place(new Timer<>(element, Math.max(tick, currentTick + 1)));
+        ++size;
+    }
+
+    /**
+     * Turns the wheel up to the given time, handing every expired element to the consumer.
+     */
+    public void advance(long nowMillis, Consumer<? super E> expired) {
+        long target = nowMillis / tickMillis;
+
+        while (currentTick < target) {
+            ++currentTick;
+
+            for (int level = 1; level < LEVELS; ++level) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, (int) (currentTick >>> (BITS * level)) & MASK);
+            }
+
+            List<Timer<E>> bucket = buckets[0][(int) currentTick & MASK];
+            if (!bucket.isEmpty()) {
+                buckets[0][(int) currentTick & MASK] = new ArrayList<>();
+                for (Timer<E> timer : bucket) {
+                    if (timer.tick <= currentTick) {
+                        --size;
+                        expired.accept(timer.element);
+                    } else {
+                        place(timer);
+                    }
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level, int index) {
+        List<Timer<E>> bucket = buckets[level][index];
+        if (bucket.isEmpty()) {
+            return;
+        }
+
+        buckets[level][index] = new ArrayList<>();
+        for (Timer<E> timer : bucket) {
+            place(timer);
+        }
+    }
+
+    private void place(Timer<E> timer) {
+        long delta = timer.tick - currentTick;
+
+        if (delta >= SPAN) {
+            int top = LEVELS - 1;
+            buckets[top][(int) ((currentTick >>> (BITS * top)) - 1) & MASK].add(timer);
+            return;
+        }
+
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) {
+            ++level;
+        }
+
+        buckets[level][(int) (timer.tick >>> (BITS * level)) & MASK].add(timer);
+    }
+
+    private static final class Timer<E> {
+
+        final E element;
+        final long tick;
+
+        Timer(E element, long tick) {
+            this.element = element;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.ocdsoft.bacta.soe.data.couchbase.snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks of a snapshot written by {@link SnapshotWriter}.  Blocks are read one after
+ * the other, and may be decoded on other threads.
+ *
+ * A block is a codec byte, its record count, its raw and stored lengths and a CRC32 of the stored
+ * bytes, followed by the stored bytes.  Reading stops at a block that is incomplete or fails its
+ * checksum, as the tail of a snapshot whose writing was cut short.
+ */
+public final class SnapshotReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotReader.class);
+
+    public interface RecordConsumer {
+        void accept(String key, int flags, byte[] data);
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+    private final ByteBuffer header = ByteBuffer.allocate(SnapshotWriter.BLOCK_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private long validLength = SnapshotWriter.FILE_HEADER_SIZE;
+    private boolean damaged;
+
+    private SnapshotReader(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    public static SnapshotReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SnapshotWriter.FILE_HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.remaining() < SnapshotWriter.FILE_HEADER_SIZE || header.getInt() != SnapshotWriter.MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+
+            int version = header.getInt();
+            if (version != SnapshotWriter.VERSION) {
+                throw new IOException(file + " is a version " + version + " snapshot, expected " + SnapshotWriter.VERSION);
+            }
+
+            return new SnapshotReader(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next block, or null at the end of the snapshot or at a damaged block
+     */
+    public Block next() throws IOException {
+        if (damaged || validLength + SnapshotWriter.BLOCK_HEADER_SIZE > size) {
+            if (!damaged && validLength < size) {
+                truncated();
+            }
+            return null;
+        }
+
+        header.clear();
+        readFully(channel, header);
+        header.flip();
+
+        byte codec = header.get();
+        int records = header.getInt();
+        int rawLength = header.getInt();
+        int storedLength = header.getInt();
+        int checksum = header.getInt();
+
+        if ((codec != SnapshotWriter.STORED && codec != SnapshotWriter.DEFLATED) || records < 0 || rawLength < 0
+                || storedLength < 0 || validLength + SnapshotWriter.BLOCK_HEADER_SIZE + storedLength > size) {
+            truncated();
+            return null;
+        }
+
+        ByteBuffer stored = ByteBuffer.allocate(storedLength);
+        readFully(channel, stored);
+
+        crc.reset();
+        crc.update(stored.array(), 0, storedLength);
+        if ((int) crc.getValue() != checksum) {
+            truncated();
+            return null;
+        }
+
+        validLength += SnapshotWriter.BLOCK_HEADER_SIZE + storedLength;
+        return new Block(codec, records, rawLength, stored.array());
+    }
+
+    /**
+     * Skips blocks without checking or decoding them.
+     *
+     * @return the number of blocks skipped, fewer than asked at the end of the snapshot
+     */
+    public long skip(long blocks) throws IOException {
+        long skipped = 0;
+        while (skipped < blocks && validLength + SnapshotWriter.BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header);
+            header.flip();
+
+            header.position(1 + 4 + 4);
+            int storedLength = header.getInt();
+            if (storedLength < 0 || validLength + SnapshotWriter.BLOCK_HEADER_SIZE + storedLength > size) {
+                break;
+            }
+
+            validLength += SnapshotWriter.BLOCK_HEADER_SIZE + storedLength;
+            channel.position(validLength);
+            ++skipped;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return bytes up to the end of the last block read
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return whether reading stopped at an incomplete or damaged block
+     */
+    public boolean isDamaged() {
+        return damaged;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void truncated() throws IOException {
+        damaged = true;
+        channel.position(validLength);
+        logger.warn("Snapshot " + file + " ends with an incomplete or damaged block at " + validLength);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return;
+            }
+        }
+    }
+
+    public static final class Block {
+
+        private final byte codec;
+        private final int records;
+        private final int rawLength;
+        private final byte[] stored;
+
+        Block(byte codec, int records, int rawLength, byte[] stored) {
+            this.codec = codec;
+            this.records = records;
+            this.rawLength = rawLength;
+            this.stored = stored;
+        }
+
+        public int getRecordCount() {
+            return records;
+        }
+
+        public int getRawLength() {
+            return rawLength;
+        }
+
+        public int getStoredLength() {
+            return stored.length;
+        }
+
+        /**
+         * Decompresses the block and hands each record to the consumer in order.
+         *
+         * @throws IOException if the block does not decompress to its records
+         */
+        public void forEach(RecordConsumer consumer) throws IOException {
+            ByteBuffer raw = ByteBuffer.wrap(inflate());
+
+            try {
+                for (int i = 0; i < records; ++i) {
+                    byte[] key = new byte[raw.getShort() & 0xffff];
+                    raw.get(key);
+                    int flags = raw.getInt();
+                    byte[] data = new byte[raw.getInt()];
+                    raw.get(data);
+                    consumer.accept(new String(key, StandardCharsets.UTF_8), flags, data);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Snapshot block records are malformed", e);
+            }
+        }
+
+        private byte[] inflate() throws IOException {
+            if (codec == SnapshotWriter.STORED) {
+                return stored;
+            }
+
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                byte[] raw = new byte[rawLength];
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, length, rawLength - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != rawLength) {
+                    throw new IOException("Snapshot block inflated to " + length + " bytes, expected " + rawLength);
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("Snapshot block does not inflate", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.ocdsoft.bacta.soe.data.couchbase.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes raw documents to a snapshot file in blocks, each deflated if that makes it smaller.
+ *
+ * A snapshot is a header followed by blocks.  A block is a header, see {@link SnapshotReader},
+ * and its records, each a key, the document flags and the document bytes, all length-prefixed.
+ * Blocks are written whole, so a snapshot cut short by a failure ends at its last complete block,
+ * and {@link #resume} carries on from there.
+ */
+public final class SnapshotWriter implements Closeable {
+
+    static final int MAGIC = 0x42534e50;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+
+    /**
+     * Codec, record count, raw length, stored length and checksum of the stored bytes.
+     */
+    static final int BLOCK_HEADER_SIZE = 1 + 4 + 4 + 4 + 4;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int level;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer block;
+    private ByteBuffer compressed;
+    private int blockRecords;
+
+    private String lastKey;
+    private long records;
+    private long rawBytes;
+
+    private SnapshotWriter(FileChannel channel, int blockSize, int level) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.deflater = new Deflater(level);
+        this.block = ByteBuffer.allocate(blockSize + 1024);
+        this.compressed = ByteBuffer.allocate(blockSize + 1024);
+    }
+
+    /**
+     * Creates the snapshot file, replacing any existing one.
+     *
+     * @param blockSize raw bytes gathered before a block is written
+     * @param level     deflate level, 0 to store blocks uncompressed
+     */
+    public static SnapshotWriter create(Path file, int blockSize, int level) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header);
+            return new SnapshotWriter(channel, blockSize, level);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a snapshot to append to, dropping anything after its last complete block.  A file
+     * that does not exist is created.
+     *
+     * @see #getLastKey()
+     */
+    public static SnapshotWriter resume(Path file, int blockSize, int level) throws IOException {
+        if (!Files.exists(file)) {
+            return create(file, blockSize, level);
+        }
+
+        long end;
+        String lastKey = null;
+        long records = 0;
+        long rawBytes = 0;
+
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            SnapshotReader.Block block;
+            SnapshotReader.Block last = null;
+            while ((block = reader.next()) != null) {
+                records += block.getRecordCount();
+                rawBytes += block.getRawLength();
+                last = block;
+            }
+            end = reader.getValidLength();
+
+            if (last != null) {
+                final String[] key = new String[1];
+                last.forEach((k, flags, data) -> key[0] = k);
+                lastKey = key[0];
+            }
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+
+        SnapshotWriter writer = new SnapshotWriter(channel, blockSize, level);
+        writer.lastKey = lastKey;
+        writer.records = records;
+        writer.rawBytes = rawBytes;
+        return writer;
+    }
+
+    /**
+     * @return the key of the last record written, or null if there is none
+     */
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return records in the snapshot, including those written before it was resumed
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return record bytes before compression, including those written before it was resumed
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getFileSize() throws IOException {
+        return channel.position();
+    }
+
+    public void append(String key, int flags, byte[] data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+
+        int size = 2 + keyBytes.length + 4 + 4 + data.length;
+        if (block.position() > 0 && block.position() + size > blockSize) {
+            flush();
+        }
+        if (block.remaining() < size) {
+            block = grow(block, size);
+        }
+
+        block.putShort((short) keyBytes.length);
+        block.put(keyBytes);
+        block.putInt(flags);
+        block.putInt(data.length);
+        block.put(data);
+
+        ++blockRecords;
+        ++records;
+        rawBytes += size;
+        lastKey = key;
+    }
+
+    /**
+     * Writes the records gathered so far as a block.
+     */
+    public void flush() throws IOException {
+        if (blockRecords == 0) {
+            return;
+        }
+
+        block.flip();
+        int rawLength = block.remaining();
+
+        byte codec = STORED;
+        ByteBuffer stored = block;
+
+        if (level != Deflater.NO_COMPRESSION) {
+            deflater.reset();
+            deflater.setInput(block.array(), 0, rawLength);
+            deflater.finish();
+
+            if (compressed.capacity() < rawLength) {
+                compressed = ByteBuffer.allocate(rawLength);
+            }
+            compressed.clear();
+            int length = deflater.deflate(compressed.array(), 0, rawLength);
+            if (deflater.finished() && length < rawLength) {
+                compressed.limit(length);
+                codec = DEFLATED;
+                stored = compressed;
+            }
+        }
+
+        crc.reset();
+        crc.update(stored.array(), 0, stored.limit());
+
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.put(codec).putInt(blockRecords).putInt(rawLength).putInt(stored.limit()).putInt((int) crc.getValue()).flip();
+
+        writeFully(channel, header);
+        stored.position(0);
+        writeFully(channel, stored);
+
+        block.clear();
+        blockRecords = 0;
+    }
+
+    /**
+     * Writes the last block and forces the file to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(true);
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
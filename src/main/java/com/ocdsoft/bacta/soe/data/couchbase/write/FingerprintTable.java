@@ -0,0 +1,149 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+/**
+ * A map of long keys to long values held in primitive arrays, about 16 bytes an entry plus the
+ * free slots, striped into segments that are each locked on their own.
+ *
+ * Segments are open addressed with linear probing and grow at three quarters full.  Entries are
+ * never removed.
+ */
+final class FingerprintTable {
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param concurrency segments, rounded up to a power of two
+     */
+    FingerprintTable(int concurrency) {
+        int count = Integer.highestOneBit(Math.max(1, concurrency - 1) << 1);
+        segments = new Segment[count];
+        for (int i = 0; i < count; ++i) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    boolean contains(long key, long value) {
+        long hash = mix(key);
+        return segment(hash).contains(key, hash, value);
+    }
+
+    void put(long key, long value) {
+        long hash = mix(key);
+        segment(hash).put(key, hash, value);
+    }
+
+    /**
+     * @return whether the key mapped to the expected value and now maps to the new one
+     */
+    boolean replace(long key, long expected, long value) {
+        long hash = mix(key);
+        return segment(hash).replace(key, hash, expected, value);
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segment(long hash) {
+        return segmentShift == 64 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    private static final class Segment {
+
+        // Key 0 marks a free slot, so an entry for key 0 is kept on the side
+        private long[] keys = new long[16];
+        private long[] values = new long[16];
+        private int size;
+
+        private boolean hasZero;
+        private long zeroValue;
+
+        synchronized boolean contains(long key, long hash, long value) {
+            if (key == 0) {
+                return hasZero && zeroValue == value;
+            }
+
+            int slot = slot(keys, key, hash);
+            return keys[slot] == key && values[slot] == value;
+        }
+
+        synchronized void put(long key, long hash, long value) {
+            if (key == 0) {
+                hasZero = true;
+                zeroValue = value;
+                return;
+            }
+
+            int slot = slot(keys, key, hash);
+            if (keys[slot] != key) {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                    slot = slot(keys, key, hash);
+                }
+                keys[slot] = key;
+                ++size;
+            }
+            values[slot] = value;
+        }
+
+        synchronized boolean replace(long key, long hash, long expected, long value) {
+            if (key == 0) {
+                if (!hasZero || zeroValue != expected) {
+                    return false;
+                }
+                zeroValue = value;
+                return true;
+            }
+
+            int slot = slot(keys, key, hash);
+            if (keys[slot] != key || values[slot] != expected) {
+                return false;
+            }
+            values[slot] = value;
+            return true;
+        }
+
+        synchronized int size() {
+            return hasZero ? size + 1 : size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(keys, oldKeys[i], mix(oldKeys[i]));
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        /**
+         * @return the slot holding the key, or the free slot it belongs in
+         */
+        private static int slot(long[] keys, long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Coalesces object updates by network id and writes them to the bucket in batches.
+ *
+ * Only the latest object queued for a network id is kept.  Objects are written on the flusher
+ * thread, so what is queued must not change after it is: callers queue a snapshot of the state to
+ * write rather than an object other threads update.  Batches are written every flush interval, or
+ * as soon as a full batch is pending.  Updating an object that is already queued never blocks;
+ * queueing a new object with {@link #enqueue} blocks the caller while the queue is at capacity,
+ * with {@link #offer} it never does.
+ */
+public final class WriteBehindQueue<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    public interface Writer<T> {
+        Future<Boolean> write(T object);
+    }
+
+    private final ToLongFunction<T> keyOf;
+    private final Writer<T> writer;
+    private final int batchSize;
+    private final int capacity;
+    private final long intervalMillis;
+    private final long writeTimeoutMillis;
+
+    private final ConcurrentMap<Long, T> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, T> writing = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public WriteBehindQueue(final ToLongFunction<T> keyOf, final Writer<T> writer, int batchSize, int capacity, long intervalMillis, long writeTimeoutMillis) {
+        if (batchSize < 1 || capacity < batchSize) {
+            throw new IllegalArgumentException("Invalid write behind sizing: batch=" + batchSize + " capacity=" + capacity);
+        }
+
+        this.keyOf = keyOf;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.capacity = capacity;
+        this.intervalMillis = intervalMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WriteBehind-Flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the object to be written, replacing any state already queued for its network id.
+     * After {@link #shutdown()} the object is written straight through instead.
+     */
+    public void enqueue(final T object) {
+        enqueue(object, true);
+    }
+
+    /**
+     * Queues the object like {@link #enqueue}, but never waits for capacity: a full queue is flushed
+     * and the object queued beyond it.  For updates already held durably elsewhere, such as in a
+     * journal, where the caller must not stall on the bucket.
+     */
+    public void offer(final T object) {
+        enqueue(object, false);
+    }
+
+    private void enqueue(final T object, boolean waitForCapacity) {
+        if (!running) {
+            writer.write(object);
+            return;
+        }
+
+        Long key = keyOf.applyAsLong(object);
+        if (pending.replace(key, object) != null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+
+        if (pending.size() >= capacity) {
+            if (waitForCapacity) {
+                awaitCapacity();
+            } else {
+                requestFlush();
+            }
+        }
+
+        if (pending.put(key, object) != null) {
+            coalesced.incrementAndGet();
+        }
+
+        if (pending.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * @return the state queued or being written for the network id, or null when the bucket is up to date
+     */
+    public T getPending(long networkId) {
+        T object = pending.get(networkId);
+        return object != null ? object : writing.get(networkId);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stops the flusher and writes everything still queued before returning.
+     */
+    public void shutdown() {
+        running = false;
+        flusher.shutdown();
+
+        try {
+            if (!flusher.awaitTermination(writeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Write behind flusher did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        signalNotFull();
+        flush();
+
+        if (!pending.isEmpty()) {
+            logger.error("Unable to write " + pending.size() + " queued objects on shutdown");
+        }
+    }
+
+    private void awaitCapacity() {
+        lock.lock();
+        try {
+            while (running && pending.size() >= capacity) {
+                requestFlush();
+                notFull.await(intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+
+        try {
+            while (!pending.isEmpty()) {
+                List<T> batch = drain();
+                signalNotFull();
+
+                if (!writeBatch(batch) || batch.size() < batchSize) {
+                    break;
+                }
+            }
+        } catch (Throwable t) {
+            logger.error("Unable to flush write behind queue", t);
+        }
+    }
+
+    private List<T> drain() {
+        List<T> batch = new ArrayList<>(batchSize);
+        Iterator<Long> iterator = pending.keySet().iterator();
+
+        while (iterator.hasNext() && batch.size() < batchSize) {
+            Long key = iterator.next();
+            T object = pending.get(key);
+            if (object == null) {
+                continue;
+            }
+
+            // Writing first, so getPending finds the object in one map or the other throughout
+            writing.put(key, object);
+            if (pending.remove(key, object)) {
+                batch.add(object);
+            } else {
+                // Replaced meanwhile, the newer object stays queued for the next batch
+                writing.remove(key, object);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * @return false if any write in the batch failed and was queued again
+     */
+    private boolean writeBatch(final List<T> batch) {
+        List<Future<Boolean>> futures = new ArrayList<>(batch.size());
+        boolean success = true;
+
+        for (T object : batch) {
+            try {
+                futures.add(writer.write(object));
+            } catch (Exception e) {
+                logger.error("Unable to write network object " + keyOf.applyAsLong(object), e);
+                futures.add(null);
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+
+        for (int i = 0; i < batch.size(); ++i) {
+            T object = batch.get(i);
+            Future<Boolean> future = futures.get(i);
+            boolean stored = false;
+
+            if (future != null) {
+                try {
+                    stored = Boolean.TRUE.equals(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException e) {
+                    logger.debug("Write of network object " + keyOf.applyAsLong(object) + " failed", e);
+                }
+            }
+
+            if (stored) {
+                written.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                success = false;
+                // A newer update queued meanwhile supersedes the one that failed
+                pending.putIfAbsent(keyOf.applyAsLong(object), object);
+            }
+
+            writing.remove(keyOf.applyAsLong(object), object);
+        }
+
+        return success;
+    }
+}
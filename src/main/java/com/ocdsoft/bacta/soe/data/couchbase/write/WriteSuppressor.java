@@ -0,0 +1,126 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+import net.spy.memcached.CachedData;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Skips writes of objects that encode to the same document the bucket was last sent for them.
+ *
+ * The fingerprint of a document is the 64-bit xxHash of its bytes, seeded with its flags, kept per
+ * network id in a {@link FingerprintTable}.  A fingerprint is only recorded once the bucket has
+ * confirmed the write.  While a write is in flight its entry holds a random token instead, so a
+ * failed write, or an older one confirmed after a newer one was sent, never leaves behind a
+ * fingerprint the bucket may not have.
+ *
+ * Only writes made through the suppressor are seen, so it must be the only writer of its keys.
+ */
+public final class WriteSuppressor {
+
+    private final FingerprintTable fingerprints;
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param concurrency independently locked segments of the fingerprint table
+     */
+    public WriteSuppressor(int concurrency) {
+        this.fingerprints = new FingerprintTable(concurrency);
+    }
+
+    public static long fingerprint(CachedData document) {
+        byte[] data = document.getData();
+        return XxHash64.hash(data, 0, data.length, document.getFlags());
+    }
+
+    /**
+     * @return the write to complete once the bucket answers, or null if the bucket already has the document
+     */
+    public Write begin(long networkId, CachedData document) {
+        checked.increment();
+
+        long fingerprint = fingerprint(document);
+        if (fingerprints.contains(networkId, fingerprint)) {
+            suppressed.increment();
+            return null;
+        }
+
+        long token = ThreadLocalRandom.current().nextLong();
+        fingerprints.put(networkId, token);
+        return new Write(networkId, token, fingerprint);
+    }
+
+    public Stats getStats() {
+        long checked = this.checked.sum();
+        long suppressed = this.suppressed.sum();
+        return new Stats(checked, suppressed, fingerprints.size());
+    }
+
+    public final class Write {
+
+        private final long networkId;
+        private final long token;
+        private final long fingerprint;
+
+        private Write(long networkId, long token, long fingerprint) {
+            this.networkId = networkId;
+            this.token = token;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Records the fingerprint if the bucket took the document and no other write of the object
+         * has begun since.
+         */
+        public void complete(boolean success) {
+            if (success) {
+                fingerprints.replace(networkId, token, fingerprint);
+            }
+        }
+    }
+
+    public static final class Stats {
+
+        private final long writes;
+        private final long suppressed;
+        private final long tracked;
+
+        Stats(long writes, long suppressed, long tracked) {
+            this.writes = writes;
+            this.suppressed = suppressed;
+            this.tracked = tracked;
+        }
+
+        /**
+         * @return writes checked against their fingerprint, suppressed or not
+         */
+        public long getWrites() {
+            return writes;
+        }
+
+        /**
+         * @return writes skipped because the bucket already had the document
+         */
+        public long getSuppressed() {
+            return suppressed;
+        }
+
+        public double getSuppressedRatio() {
+            return writes == 0 ? 0.0 : (double) suppressed / writes;
+        }
+
+        /**
+         * @return network ids with a fingerprint or a write in flight
+         */
+        public long getTracked() {
+            return tracked;
+        }
+
+        @Override
+        public String toString() {
+            return "WriteSuppressor{writes=" + writes + ", suppressed=" + suppressed + ", tracked=" + tracked + "}";
+        }
+    }
+}
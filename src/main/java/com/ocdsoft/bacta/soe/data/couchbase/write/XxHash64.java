@@ -0,0 +1,102 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+/**
+ * The 64-bit xxHash of a byte range, as specified at https://github.com/Cyan4973/xxHash.
+ */
+final class XxHash64 {
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {
+    }
+
+    static long hash(byte[] data, int offset, int length, long seed) {
+        int position = offset;
+        int end = offset + length;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+
+            int limit = end - 32;
+            do {
+                v1 = round(v1, getLong(data, position));
+                v2 = round(v2, getLong(data, position + 8));
+                v3 = round(v3, getLong(data, position + 16));
+                v4 = round(v4, getLong(data, position + 24));
+                position += 32;
+            } while (position <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = seed + P5;
+        }
+
+        hash += length;
+
+        while (position + 8 <= end) {
+            hash ^= round(0, getLong(data, position));
+            hash = Long.rotateLeft(hash, 27) * P1 + P4;
+            position += 8;
+        }
+
+        if (position + 4 <= end) {
+            hash ^= (getInt(data, position) & 0xFFFFFFFFL) * P1;
+            hash = Long.rotateLeft(hash, 23) * P2 + P3;
+            position += 4;
+        }
+
+        while (position < end) {
+            hash ^= (data[position] & 0xFF) * P5;
+            hash = Long.rotateLeft(hash, 11) * P1;
+            ++position;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= P2;
+        hash ^= hash >>> 29;
+        hash *= P3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * P2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * P1;
+    }
+
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * P1 + P4;
+    }
+
+    private static long getLong(byte[] data, int i) {
+        return (data[i] & 0xFFL)
+                | (data[i + 1] & 0xFFL) << 8
+                | (data[i + 2] & 0xFFL) << 16
+                | (data[i + 3] & 0xFFL) << 24
+                | (data[i + 4] & 0xFFL) << 32
+                | (data[i + 5] & 0xFFL) << 40
+                | (data[i + 6] & 0xFFL) << 48
+                | (data[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] data, int i) {
+        return (data[i] & 0xFF)
+                | (data[i + 1] & 0xFF) << 8
+                | (data[i + 2] & 0xFF) << 16
+                | (data[i + 3] & 0xFF) << 24;
+    }
+}
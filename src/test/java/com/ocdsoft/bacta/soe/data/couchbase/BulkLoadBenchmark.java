@@ -0,0 +1,85 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads 10k stored objects from a {@link MemcachedStub} one key at a time and through
+ * {@link BulkOperations#fetch}, with and without a simulated round trip.
+ *
+ * Documents are fetched as {@link CachedData} so the comparison measures the fetch alone;
+ * decoding costs the same either way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkLoadBenchmark {
+
+    @Param({"10000"})
+    public int objectCount;
+
+    @Param({"512"})
+    public int objectSize;
+
+    @Param({"0", "200"})
+    public long roundTripMicros;
+
+    @Param({"1000"})
+    public int chunkSize;
+
+    private MemcachedStub stub;
+    private MemcachedClient client;
+    private List<String> keys;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new MemcachedStub();
+        client = stub.newClient();
+        keys = new ArrayList<>(objectCount);
+
+        Random random = new Random(42);
+        for (int i = 0; i < objectCount; ++i) {
+            String key = String.valueOf(4294967297L + i);
+            byte[] data = new byte[objectSize];
+            random.nextBytes(data);
+            keys.add(key);
+            client.set(key, 0, new CachedData(0, data, CachedData.MAX_SIZE), CachedDataTranscoder.INSTANCE);
+        }
+        BulkOperations.fetch(client, keys, chunkSize, 60000);
+
+        stub.setLatency(roundTripMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.shutdown(5, TimeUnit.SECONDS);
+        stub.close();
+    }
+
+    @Benchmark
+    public int perKey() {
+        int found = 0;
+        for (String key : keys) {
+            if (client.get(key, CachedDataTranscoder.INSTANCE) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int bulk() {
+        Map<String, CachedData> documents = BulkOperations.fetch(client, keys, chunkSize, 60000);
+        return documents.size();
+    }
+}
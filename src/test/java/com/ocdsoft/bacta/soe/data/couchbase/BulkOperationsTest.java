@@ -0,0 +1,38 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+public class BulkOperationsTest extends TestCase {
+
+    public void testWriteCountsStoredObjects() {
+        int stored = BulkOperations.write(Arrays.asList(true, false, true, true, true), BulkOperationsTest::completed, 2, 1000);
+        assertEquals(4, stored);
+    }
+
+    public void testWriteContinuesPastTimedOutChunk() {
+        CompletableFuture<Boolean> stuck = new CompletableFuture<>();
+
+        int stored = BulkOperations.write(Arrays.asList(0, 1, 2, 3, 4),
+                index -> index == 1 ? stuck : completed(true), 2, 50);
+
+        assertEquals(4, stored);
+        assertTrue(stuck.isCancelled());
+    }
+
+    public void testWriteContinuesPastFailedWrite() {
+        CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("rejected"));
+
+        int stored = BulkOperations.write(Arrays.asList(0, 1, 2), index -> index == 0 ? failed : completed(true), 1, 1000);
+
+        assertEquals(2, stored);
+    }
+
+    private static Future<Boolean> completed(boolean result) {
+        return CompletableFuture.completedFuture(result);
+    }
+}
@@ -0,0 +1,158 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowNoDocs;
+import com.google.gson.Gson;
+import com.ocdsoft.bacta.engine.object.account.Account;
+import com.ocdsoft.bacta.soe.data.couchbase.client.CouchbaseConnectionManager;
+import com.ocdsoft.bacta.soe.data.couchbase.json.JsonCodecs;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import net.spy.memcached.CachedData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session lookups and cluster character name sets through the connection connector, against an
+ * in-process client holding the accounts of a populated cluster.  Measures the connector's own
+ * cost: key building, document decoding, token checks and name set loading.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionConnectorBenchmark {
+
+    private static final String[] FIRST_NAMES = {"Kyle", "Ordo", "Lira", "Bren", "Teeka", "Jax", "Mira", "Dorn"};
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"4"})
+    public int charactersPerAccount;
+
+    @Param({"false", "true"})
+    public boolean readCoalescing;
+
+    private CouchbaseConnectionManager connections;
+    private CouchbaseConnectionDatabaseConnector connector;
+    private CouchbaseConnectionDatabaseConnector reloadingConnector;
+
+    private String[] authTokens;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        FakeCouchbaseClient client = FakeCouchbaseClient.create();
+        populate(client);
+
+        MapConfiguration configuration = new MapConfiguration()
+                .set("Bacta/Database/Couchbase", "ConnectionObjectsBucket", "connectionObjects")
+                .set("Bacta/Database/Couchbase", "DesignDoc", "connection")
+                .set("Bacta/Database/Couchbase", "UsernameView", "usernames")
+                .set("Bacta/Database/Couchbase", "AuthTokenView", "authTokens")
+                .set("Bacta/Database/Couchbase", "CharacterNamesByClusterView", "characterNamesByCluster")
+                .set("Bacta/Database/Couchbase", "CharacterNamesPageSize", accounts * charactersPerAccount)
+                .set("Bacta/Database/Couchbase", "AuthTokenViewFallback", false)
+                .set("Bacta/Database/Couchbase", "ReadCoalescing", readCoalescing);
+
+        connections = new CouchbaseConnectionManager(configuration.build(), factory -> client);
+        connector = new CouchbaseConnectionDatabaseConnector(configuration.build(), new CouchbaseTranscoder<>(), connections, ConnectorMetrics.DISABLED);
+
+        // A negative refresh reloads the names on every call
+        reloadingConnector = new CouchbaseConnectionDatabaseConnector(
+                configuration.set("Bacta/Database/Couchbase", "CharacterNamesRefresh", -1).build(),
+                new CouchbaseTranscoder<>(), connections, ConnectorMetrics.DISABLED);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connector.shutdown();
+        reloadingConnector.shutdown();
+        connections.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Account lookupSession(Cursor cursor) {
+        String authToken = authTokens[(cursor.next++ & Integer.MAX_VALUE) % authTokens.length];
+        return connector.lookupSession(authToken, Account.class);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Set<String> getClusterCharacterSet() {
+        return connector.getClusterCharacterSet(1);
+    }
+
+    @Benchmark
+    public Set<String> reloadClusterCharacterSet() {
+        return reloadingConnector.getClusterCharacterSet(1);
+    }
+
+    /**
+     * Stores the accounts, their auth token index documents and the character names view rows
+     * of cluster 1.
+     */
+    private void populate(FakeCouchbaseClient client) {
+        Random random = new Random(42);
+        JsonCodecs codecs = new JsonCodecs(new Gson());
+        List<ViewRow> names = new ArrayList<>();
+
+        client.put("ClusterId", "1");
+        client.put("AccountId", "1");
+
+        authTokens = new String[accounts];
+        for (int i = 0; i < accounts; ++i) {
+            AccountDocument account = new AccountDocument();
+            account.id = i;
+            account.username = "player" + i;
+            account.password = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+            account.authToken = String.valueOf(random.nextLong() & Long.MAX_VALUE) + (random.nextLong() & Long.MAX_VALUE);
+            account.authExpiration = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+            for (int c = 0; c < charactersPerAccount; ++c) {
+                CharacterDocument character = new CharacterDocument();
+                character.name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + i + "x" + c + " Benchmark";
+                character.clusterId = 1;
+                account.characterList.add(character);
+
+                String firstName = character.name.substring(0, character.name.indexOf(' ')).toLowerCase();
+                names.add(new ViewRowNoDocs(account.username, "[1,\"" + firstName + "\"]", "\"" + firstName + "\""));
+            }
+
+            byte[] document = codecs.encode(account);
+            client.put(account.username, new CachedData(0, document, CachedData.MAX_SIZE));
+            client.put("AuthToken::" + account.authToken, account.username);
+            authTokens[i] = account.authToken;
+        }
+
+        client.putRows("characterNamesByCluster", names);
+    }
+
+    static final class CharacterDocument {
+        String name;
+        int clusterId;
+    }
+
+    static final class AccountDocument {
+        String type = "account";
+        int id;
+        String username;
+        String password;
+        String authToken;
+        long authExpiration;
+        List<CharacterDocument> characterList = new ArrayList<>();
+    }
+}
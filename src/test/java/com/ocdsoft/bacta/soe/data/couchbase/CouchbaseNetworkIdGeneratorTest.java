@@ -0,0 +1,133 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.data.GameDatabaseConnector;
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CouchbaseNetworkIdGeneratorTest extends TestCase {
+
+    private static final long INITIAL_ID = 4294967296L;
+
+    public void testUnleasedIdsComeStraightFromTheCounter() {
+        CountingSource source = new CountingSource();
+        CouchbaseNetworkIdGenerator generator = new CouchbaseNetworkIdGenerator(source, 1);
+
+        assertEquals(INITIAL_ID + 1, generator.next());
+        assertEquals(INITIAL_ID + 2, generator.next());
+        assertEquals(2, source.reservations.get());
+    }
+
+    public void testLeasedIdsAreContiguousWithinABlock() {
+        CountingSource source = new CountingSource();
+        CouchbaseNetworkIdGenerator generator = new CouchbaseNetworkIdGenerator(source, 100);
+
+        for (int i = 1; i <= 100; ++i) {
+            assertEquals(INITIAL_ID + i, generator.next());
+        }
+
+        assertTrue(source.reservations.get() <= 2);
+    }
+
+    public void testNoIdIsHandedOutTwiceAcrossGenerators() throws Exception {
+        final CountingSource source = new CountingSource();
+        final Set<Long> issued = ConcurrentHashMap.newKeySet();
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        final int generatorCount = 4;
+        final int threadsPerGenerator = 4;
+        final int idsPerThread = 25000;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int g = 0; g < generatorCount; ++g) {
+            // Mixed block sizes so blocks from different generators interleave on the counter
+            final CouchbaseNetworkIdGenerator generator = new CouchbaseNetworkIdGenerator(source, g == 0 ? 1 : 64 << g);
+
+            for (int t = 0; t < threadsPerGenerator; ++t) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int i = 0; i < idsPerThread; ++i) {
+                        if (!issued.add(generator.next())) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(generatorCount * threadsPerGenerator * idsPerThread, issued.size());
+        for (Long id : issued) {
+            assertTrue(id > INITIAL_ID && id <= source.counter.get());
+        }
+    }
+
+    public void testFailedReservationIsRetried() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountingSource counting = new CountingSource();
+
+        CouchbaseNetworkIdGenerator generator = new CouchbaseNetworkIdGenerator((key, count) -> {
+            if (calls.incrementAndGet() == 2) {
+                throw new IllegalStateException("Simulated timeout");
+            }
+            return counting.reserve(key, count);
+        }, 10);
+
+        Set<Long> issued = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 50; ++i) {
+            assertTrue(issued.add(generator.next()));
+        }
+    }
+
+    public void testConnectorThatCannotReserveHandsOutIdsOneAtATime() {
+        final AtomicLong counter = new AtomicLong(INITIAL_ID);
+        final Object identity = new Object();
+        GameDatabaseConnector connector = (GameDatabaseConnector) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { GameDatabaseConnector.class },
+                (proxy, method, args) -> "nextId".equals(method.getName()) ? counter.incrementAndGet() : method.invoke(identity, args));
+
+        BactaConfiguration configuration = new MapConfiguration()
+                .set("Bacta/Database/Couchbase", "NetworkIdBlockSize", 100)
+                .build();
+        CouchbaseNetworkIdGenerator generator = new CouchbaseNetworkIdGenerator(configuration, connector);
+
+        assertEquals(INITIAL_ID + 1, generator.next());
+        assertEquals(INITIAL_ID + 2, generator.next());
+        assertEquals(INITIAL_ID + 2, counter.get());
+    }
+
+    private static final class CountingSource implements SequenceSource {
+
+        final AtomicLong counter = new AtomicLong(INITIAL_ID);
+        final AtomicInteger reservations = new AtomicInteger();
+
+        @Override
+        public long reserve(String key, int count) {
+            reservations.incrementAndGet();
+            return counter.addAndGet(count);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Allocation of the pooled document codecs against a codec built per call, the way the transcoder
+ * used to deflate.  Run with {@code -prof gc} and compare gc.alloc.rate.norm, the bytes allocated
+ * per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentCodecAllocationBenchmark {
+
+    @Param({"small", "building"})
+    public String payload;
+
+    private byte[] raw;
+    private byte[] compressed;
+    private ByteBuffer target;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        raw = "small".equals(payload) ? DocumentPayloads.small(random) : DocumentPayloads.building(random);
+        compressed = DocumentFormat.deflate(raw, Deflater.BEST_SPEED);
+        target = ByteBuffer.allocate(raw.length + 64);
+    }
+
+    @Benchmark
+    public byte[] deflatePerCall() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            out.write(raw.length >>> 24);
+            out.write(raw.length >>> 16);
+            out.write(raw.length >>> 8);
+            out.write(raw.length);
+
+            byte[] buffer = new byte[Math.min(raw.length + 64, 64 * 1024)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Benchmark
+    public byte[] deflatePooled() {
+        return DocumentFormat.deflate(raw, Deflater.BEST_SPEED);
+    }
+
+    @Benchmark
+    public int deflateIntoBuffer() {
+        target.clear();
+        return DocumentFormat.deflate(raw, 0, raw.length, Deflater.BEST_SPEED, Integer.MAX_VALUE, target);
+    }
+
+    @Benchmark
+    public byte[] inflatePerCall() throws DataFormatException {
+        byte[] data = new byte[raw.length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 4, compressed.length - 4);
+            inflater.inflate(data);
+            return data;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Benchmark
+    public byte[] inflatePooled() {
+        return DocumentFormat.inflate(compressed);
+    }
+
+    @Benchmark
+    public ByteBuffer inflateToScratch() {
+        return DocumentFormat.inflateToScratch(compressed, 0, compressed.length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost and stored size of the document codecs on representative payloads.  The stored size
+ * per operation is reported as the storedBytes counter next to rawBytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentCompressionBenchmark {
+
+    @Param({"small", "building", "random"})
+    public String payload;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private byte[] raw;
+    private byte[] compressed;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+
+        public long rawBytes;
+        public long storedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            storedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        switch (payload) {
+            case "small":
+                raw = DocumentPayloads.small(random);
+                break;
+            case "building":
+                raw = DocumentPayloads.building(random);
+                break;
+            default:
+                raw = DocumentPayloads.random(random, 32 * 1024);
+                break;
+        }
+        compressed = DocumentFormat.deflate(raw, level);
+    }
+
+    @Benchmark
+    public byte[] deflate(Sizes sizes) {
+        byte[] stored = DocumentFormat.deflate(raw, level);
+        sizes.rawBytes += raw.length;
+        sizes.storedBytes += stored.length;
+        return stored;
+    }
+
+    @Benchmark
+    public byte[] inflate() {
+        return DocumentFormat.inflate(compressed);
+    }
+}
@@ -0,0 +1,101 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class DocumentFormatTest extends TestCase {
+
+    public void testLegacyFlagsAreVersionZeroUncompressed() {
+        assertEquals(DocumentFormat.VERSION_LEGACY, DocumentFormat.version(0));
+        assertEquals(DocumentFormat.CODEC_NONE, DocumentFormat.codec(0));
+    }
+
+    public void testFlagsRoundTrip() {
+        int flags = DocumentFormat.flags(DocumentFormat.VERSION_1, DocumentFormat.CODEC_DEFLATE);
+        assertEquals(DocumentFormat.VERSION_1, DocumentFormat.version(flags));
+        assertEquals(DocumentFormat.CODEC_DEFLATE, DocumentFormat.codec(flags));
+    }
+
+    public void testDeflateRoundTrip() {
+        for (byte[] data : new byte[][] {new byte[0], DocumentPayloads.building(new Random(1)), DocumentPayloads.random(new Random(2), 70000)}) {
+            byte[] compressed = DocumentFormat.deflate(data, Deflater.BEST_SPEED);
+            assertTrue(Arrays.equals(data, DocumentFormat.inflate(compressed)));
+        }
+    }
+
+    public void testDeflateGivesUpPastMaxSize() {
+        byte[] data = DocumentPayloads.random(new Random(3), 4096);
+        assertNull(DocumentFormat.deflate(data, 0, data.length, Deflater.BEST_SPEED, data.length - data.length / 8 - 1));
+
+        ByteBuffer target = ByteBuffer.allocate(8192);
+        assertEquals(-1, DocumentFormat.deflate(data, 0, data.length, Deflater.BEST_SPEED, data.length / 2, target));
+        assertEquals(0, target.position());
+    }
+
+    public void testDeflateIntoBufferRoundTrip() {
+        byte[] data = DocumentPayloads.building(new Random(4));
+        ByteBuffer target = ByteBuffer.allocate(data.length + 64);
+        target.position(7);
+
+        int size = DocumentFormat.deflate(data, 0, data.length, Deflater.BEST_SPEED, Integer.MAX_VALUE, target);
+        assertEquals(7 + size, target.position());
+        assertTrue(Arrays.equals(data, DocumentFormat.inflate(target.array(), 7, size)));
+
+        ByteBuffer inflated = DocumentFormat.inflateToScratch(target.array(), 7, size);
+        byte[] copy = new byte[inflated.remaining()];
+        inflated.get(copy);
+        assertTrue(Arrays.equals(data, copy));
+    }
+
+    public void testLevelChangesBetweenCalls() {
+        byte[] data = DocumentPayloads.building(new Random(5));
+        for (int level : new int[] {Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION, Deflater.NO_COMPRESSION, Deflater.BEST_SPEED}) {
+            assertTrue(Arrays.equals(data, DocumentFormat.inflate(DocumentFormat.deflate(data, level))));
+        }
+    }
+
+    public void testCorruptPayloadIsRejected() {
+        byte[] compressed = DocumentFormat.deflate(DocumentPayloads.building(new Random(1)), Deflater.BEST_SPEED);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        try {
+            DocumentFormat.inflate(truncated);
+            fail("Expected truncated payload to be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testImplausibleInflatedLengthIsRejected() {
+        byte[] compressed = DocumentFormat.deflate(DocumentPayloads.building(new Random(1)), Deflater.BEST_SPEED);
+
+        for (int claimed : new int[] {-1, DocumentFormat.MAX_INFLATED_LENGTH + 1, (compressed.length - 4) * DocumentFormat.MAX_DEFLATE_RATIO + 1}) {
+            byte[] forged = compressed.clone();
+            ByteBuffer.wrap(forged).putInt(claimed);
+            try {
+                DocumentFormat.inflate(forged);
+                fail("Expected an inflated length of " + claimed + " to be rejected");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testHighlyCompressiblePayloadIsAccepted() {
+        byte[] data = new byte[8 * 1024 * 1024];
+        assertTrue(Arrays.equals(data, DocumentFormat.inflate(DocumentFormat.deflate(data, Deflater.BEST_COMPRESSION))));
+    }
+
+    public void testOversizeScratchIsNotRetained() {
+        ByteBuffer retained = DocumentFormat.scratch(16);
+        ByteBuffer oversize = DocumentFormat.scratch(DocumentFormat.MAX_RETAINED_SCRATCH + 1);
+
+        assertTrue(oversize.capacity() > DocumentFormat.MAX_RETAINED_SCRATCH);
+        assertSame(retained, DocumentFormat.scratch(16));
+        assertTrue(DocumentFormat.scratch(DocumentFormat.MAX_RETAINED_SCRATCH).capacity() <= DocumentFormat.MAX_RETAINED_SCRATCH);
+    }
+}
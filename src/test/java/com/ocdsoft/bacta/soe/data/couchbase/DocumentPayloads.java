@@ -0,0 +1,72 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic stand-ins for serialized network objects, shaped like the field streams the
+ * serializer produces: template and string table names, object ids, positions and small counters.
+ */
+final class DocumentPayloads {
+
+    private static final String[] TEMPLATES = {
+            "object/building/player/shared_player_house_tatooine_small_style_01.iff",
+            "object/tangible/furniture/all/shared_frn_all_lamp_free_s01.iff",
+            "object/tangible/component/weapon/shared_blaster_barrel.iff",
+            "object/tangible/food/crafted/shared_dish_bivoli_tempari.iff",
+            "object/weapon/ranged/rifle/shared_rifle_t21.iff",
+            "object/tangible/wearables/armor/composite/shared_armor_composite_chest_plate.iff"
+    };
+
+    private DocumentPayloads() {
+    }
+
+    /**
+     * A building or large inventory: a container header followed by many contained objects.
+     */
+    static byte[] building(Random random) {
+        return container(random, 400);
+    }
+
+    /**
+     * A typical creature or item: a handful of fields.
+     */
+    static byte[] small(Random random) {
+        return container(random, 2);
+    }
+
+    static byte[] random(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] container(Random random, int children) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeLong(4294967296L + random.nextInt(1 << 20));
+            out.writeUTF(TEMPLATES[0]);
+            out.writeInt(children);
+
+            for (int i = 0; i < children; ++i) {
+                out.writeLong(4294967296L + random.nextInt(1 << 20));
+                out.writeUTF(TEMPLATES[1 + random.nextInt(TEMPLATES.length - 1)]);
+                out.writeFloat(random.nextFloat() * 16);
+                out.writeFloat(0);
+                out.writeFloat(random.nextFloat() * 16);
+                out.writeFloat(random.nextFloat());
+                out.writeInt(random.nextInt(100));
+                out.writeInt(random.nextInt(4) == 0 ? random.nextInt() : 0);
+                out.writeUTF("@item_n:" + i);
+            }
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
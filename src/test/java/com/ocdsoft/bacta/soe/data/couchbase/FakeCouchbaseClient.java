@@ -0,0 +1,200 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.CouchbaseConnectionFactory;
+import com.couchbase.client.protocol.views.*;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a connected {@link CouchbaseClient}, backed by maps, so connector code
+ * can be benchmarked without a cluster.
+ *
+ * Instances are allocated without running the client's constructor, which would connect, so only
+ * the operations overridden here may be used: get, set, add, incr, design documents, views and
+ * queries, paginated or not.  Documents and view rows are loaded directly with {@link #put} and
+ * {@link #putRows}.
+ *
+ * Given a backend, such as a client of a {@link MemcachedStub}, key-value operations go to it
+ * instead of the maps, so they cross a socket and pay the stub's latency.  Views stay in process.
+ */
+final class FakeCouchbaseClient extends CouchbaseClient {
+
+    private MemcachedClient backend;
+    private Map<String, Object> items;
+    private Map<String, AtomicLong> counters;
+    private Map<String, List<ViewRow>> views;
+    private Map<Query, Integer> pages;
+    private AtomicLong operations;
+
+    private FakeCouchbaseClient() throws IOException {
+        super((CouchbaseConnectionFactory) null);
+        throw new AssertionError("Allocated by create()");
+    }
+
+    static FakeCouchbaseClient create() {
+        return create(null);
+    }
+
+    /**
+     * @param backend the client to send key-value operations to, or null to keep them in process
+     */
+    static FakeCouchbaseClient create(MemcachedClient backend) {
+        FakeCouchbaseClient client;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            client = (FakeCouchbaseClient) unsafeClass.getMethod("allocateInstance", Class.class).invoke(unsafe, FakeCouchbaseClient.class);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to allocate fake client", e);
+        }
+
+        client.backend = backend;
+        client.items = new ConcurrentHashMap<>();
+        client.counters = new ConcurrentHashMap<>();
+        client.views = new ConcurrentHashMap<>();
+        client.pages = Collections.synchronizedMap(new WeakHashMap<>());
+        client.operations = new AtomicLong();
+        return client;
+    }
+
+    /**
+     * Stores a value as returned by {@link #get(String)}, or a {@link CachedData} document decoded
+     * by the transcoder given to {@link #get(String, Transcoder)}.
+     */
+    void put(String key, Object value) {
+        if (backend != null) {
+            backend.set(key, 0, value);
+        } else {
+            items.put(key, value);
+        }
+    }
+
+    /**
+     * Sets the rows every query of the view returns, in order.
+     */
+    void putRows(String viewName, List<ViewRow> rows) {
+        views.put(viewName, new ArrayList<>(rows));
+    }
+
+    long getOperations() {
+        return operations.get();
+    }
+
+    @Override
+    public Object get(String key) {
+        operations.incrementAndGet();
+        return backend != null ? backend.get(key) : items.get(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Transcoder<T> tc) {
+        operations.incrementAndGet();
+        if (backend != null) {
+            return backend.get(key, tc);
+        }
+
+        Object value = items.get(key);
+        if (value == null) {
+            return null;
+        }
+        return value instanceof CachedData ? tc.decode((CachedData) value) : (T) value;
+    }
+
+    @Override
+    public long incr(String key, int by) {
+        operations.incrementAndGet();
+        if (backend != null) {
+            return backend.incr(key, by, by);
+        }
+        return counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(by);
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+        operations.incrementAndGet();
+        return backend().set(key, exp, o, tc);
+    }
+
+    @Override
+    public OperationFuture<Boolean> set(String key, int exp, Object o) {
+        operations.incrementAndGet();
+        return backend().set(key, exp, o);
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
+        operations.incrementAndGet();
+        return backend().add(key, exp, o, tc);
+    }
+
+    @Override
+    public OperationFuture<Boolean> add(String key, int exp, Object o) {
+        operations.incrementAndGet();
+        return backend().add(key, exp, o);
+    }
+
+    @Override
+    public DesignDocument getDesignDoc(String designDocumentName) {
+        return new DesignDocument(designDocumentName);
+    }
+
+    @Override
+    public View getView(String designDocumentName, String viewName) {
+        return new View("default", designDocumentName, viewName, true, false);
+    }
+
+    /**
+     * Returns the view's rows a page at a time, as the bucket would to the {@link Paginator}
+     * {@link #paginatedQuery} builds.  The paginator asks for one row more than a page and starts
+     * its next query at that row, so each query continues from there.
+     */
+    @Override
+    public ViewResponse query(AbstractView view, Query query) {
+        operations.incrementAndGet();
+        List<ViewRow> rows = views.getOrDefault(view.getViewName(), Collections.<ViewRow>emptyList());
+
+        int from = Math.min(pages.getOrDefault(query, 0), rows.size());
+        int to = query.getLimit() > 0 ? Math.min(from + query.getLimit(), rows.size()) : rows.size();
+        if (query.getLimit() > 0 && to - from == query.getLimit()) {
+            pages.put(query, to - 1);
+        } else {
+            pages.remove(query);
+        }
+
+        return new ViewResponseNoDocs(new LinkedList<>(rows.subList(from, to)), Collections.<RowError>emptyList(), rows.size());
+    }
+
+    @Override
+    public boolean addObserver(ConnectionObserver obs) {
+        return true;
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        return backend == null || backend.shutdown(timeout, unit);
+    }
+
+    /**
+     * Writes need a backend, as they complete through the futures only a real client can build.
+     */
+    private MemcachedClient backend() {
+        if (backend == null) {
+            throw new UnsupportedOperationException("Writes need a backend client");
+        }
+        return backend;
+    }
+}
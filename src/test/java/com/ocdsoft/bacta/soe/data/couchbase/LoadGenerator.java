@@ -0,0 +1,526 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.google.inject.Provider;
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+import com.ocdsoft.bacta.engine.data.ConnectionDatabaseConnector;
+import com.ocdsoft.bacta.engine.data.GameDatabaseConnector;
+import com.ocdsoft.bacta.engine.object.NetworkObject;
+import com.ocdsoft.bacta.engine.object.account.Account;
+import com.ocdsoft.bacta.engine.security.password.PasswordHash;
+import com.ocdsoft.bacta.engine.serialize.NetworkSerializer;
+import com.ocdsoft.bacta.soe.data.couchbase.client.CouchbaseConnectionManager;
+import com.ocdsoft.bacta.soe.data.couchbase.embedded.EmbeddedConnectionDatabaseConnector;
+import com.ocdsoft.bacta.soe.data.couchbase.embedded.EmbeddedGameDatabaseConnector;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.Histogram;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.HistogramSnapshot;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the account service and game connector with a mix of login and zone server traffic,
+ * against a {@link MemcachedStub} with a simulated round trip, or against the embedded connectors
+ * to measure everything but the network.
+ *
+ * The load is open loop: operations are scheduled at a fixed rate and each one's latency is
+ * measured from when it was scheduled to start, not from when a worker got to it.  When the
+ * connector falls behind, the time operations spend waiting for a worker counts against it, as it
+ * would for the clients whose requests queue up, rather than being omitted.  Service time, from
+ * when the operation actually started, is reported alongside for comparison.
+ *
+ * Options are given as key=value arguments:
+ * <pre>
+ * rate=2000          operations per second
+ * threads=32         concurrent operations at most
+ * duration=60        seconds measured, after warmup
+ * warmup=10          seconds run before measuring
+ * interval=5         seconds between reports
+ * backend=stub       stub, or embedded for the in process connectors without snapshots
+ * latency=200        stub round trip in microseconds
+ * accounts=10000     accounts created before the run
+ * objects=100000     network objects created before the run
+ * mix=createAccount:2,createAuthToken:8,validateSession:40,getNetworkObject:40,updateNetworkObject:10
+ * output=load.csv    also write every report line as CSV
+ * </pre>
+ *
+ * Passwords are hashed by a trivial stand-in, so createAccount measures the connector and not
+ * the key derivation.
+ */
+public final class LoadGenerator {
+
+    private static final String DEFAULT_MIX = "createAccount:2,createAuthToken:8,validateSession:40,getNetworkObject:40,updateNetworkObject:10";
+
+    private final int rate;
+    private final int threads;
+    private final long duration;
+    private final long warmup;
+    private final long interval;
+    private final String backend;
+    private final long latency;
+    private final int accounts;
+    private final int objects;
+    private final String output;
+
+    private final List<Operation> operations = new ArrayList<>();
+    private int[] schedule;
+
+    /**
+     * Shut down in reverse order by {@link #stop()}
+     */
+    private final Deque<Closeable> closers = new ArrayDeque<>();
+
+    private ConnectionDatabaseConnector connectionConnector;
+    private GameDatabaseConnector gameConnector;
+    private CouchbaseAccountService<LoadAccount> accountService;
+
+    private LoadAccount[] accountPool;
+    private AtomicReferenceArray<String> authTokens;
+    private LoadObject[] objectPool;
+    private final AtomicInteger createdAccounts = new AtomicInteger();
+
+    LoadGenerator(Map<String, String> options) {
+        rate = Integer.parseInt(options.getOrDefault("rate", "2000"));
+        threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+        interval = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("interval", "5")));
+        backend = options.getOrDefault("backend", "stub");
+        latency = Long.parseLong(options.getOrDefault("latency", "200"));
+        accounts = Integer.parseInt(options.getOrDefault("accounts", "10000"));
+        objects = Integer.parseInt(options.getOrDefault("objects", "100000"));
+        output = options.get("output");
+
+        if (rate <= 0 || threads <= 0 || accounts <= 0 || objects <= 0) {
+            throw new IllegalArgumentException("rate, threads, accounts and objects must be positive");
+        }
+        if (!"stub".equals(backend) && !"embedded".equals(backend)) {
+            throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+
+        parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                System.err.println("Expected key=value, got " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            generator.start();
+            generator.run();
+        } finally {
+            generator.stop();
+        }
+    }
+
+    private void parseMix(String mix) {
+        List<Integer> slots = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (weight <= 0) {
+                continue;
+            }
+
+            Operation operation = new Operation(parts[0].trim());
+            operations.add(operation);
+            for (int i = 0; i < weight; ++i) {
+                slots.add(operations.size() - 1);
+            }
+        }
+
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+
+        schedule = new int[slots.size()];
+        for (int i = 0; i < schedule.length; ++i) {
+            schedule[i] = slots.get(i);
+        }
+    }
+
+    void start() throws Exception {
+        MemcachedStub stub = null;
+        BactaConfiguration configuration;
+
+        if ("embedded".equals(backend)) {
+            configuration = new MapConfiguration().build();
+
+            EmbeddedConnectionDatabaseConnector connection = new EmbeddedConnectionDatabaseConnector(configuration);
+            closers.push(connection::shutdown);
+            EmbeddedGameDatabaseConnector game = new EmbeddedGameDatabaseConnector(configuration, objectTranscoder());
+            closers.push(game::shutdown);
+
+            connectionConnector = connection;
+            gameConnector = game;
+        } else {
+            stub = startStub();
+            configuration = stubConfiguration();
+        }
+
+        accountService = accountService(configuration, connectionConnector);
+        closers.push(accountService::shutdown);
+
+        System.out.println("Creating " + accounts + " accounts and " + objects + " objects");
+
+        accountPool = new LoadAccount[accounts];
+        authTokens = new AtomicReferenceArray<>(accounts);
+        for (int i = 0; i < accounts; ++i) {
+            accountPool[i] = accountService.createAccount("load" + i, "password");
+            accountService.createAuthToken(accountPool[i]);
+            authTokens.set(i, accountPool[i].getAuthToken());
+        }
+
+        objectPool = new LoadObject[objects];
+        for (int i = 0; i < objects; ++i) {
+            objectPool[i] = new LoadObject(4294967297L + i);
+            gameConnector.createNetworkObject(objectPool[i]);
+        }
+
+        // Writes above are not waited for, a read of the last of them waits for all
+        gameConnector.getNetworkObject(objectPool[objects - 1].getNetworkId());
+        accountService.getAccount("load" + (accounts - 1));
+
+        if (stub != null) {
+            stub.setLatency(latency, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private MemcachedStub startStub() throws Exception {
+        MemcachedStub stub = new MemcachedStub();
+        closers.push(stub::close);
+
+        final FakeCouchbaseClient client = FakeCouchbaseClient.create(stub.newClient());
+        client.put("NetworkId", String.valueOf(4294967296L));
+        client.put("ClusterId", "1");
+        client.put("AccountId", "1");
+
+        BactaConfiguration configuration = stubConfiguration();
+
+        CouchbaseConnectionManager connections = new CouchbaseConnectionManager(configuration, factory -> client);
+        closers.push(connections::shutdown);
+
+        CouchbaseConnectionDatabaseConnector connection = new CouchbaseConnectionDatabaseConnector(configuration, new CouchbaseTranscoder<>(), connections, ConnectorMetrics.DISABLED);
+        closers.push(connection::shutdown);
+        CouchbaseGameDatabaseConnector game = new CouchbaseGameDatabaseConnector(configuration, objectTranscoder(), connections, ConnectorMetrics.DISABLED);
+        closers.push(game::shutdown);
+
+        connectionConnector = connection;
+        gameConnector = game;
+        return stub;
+    }
+
+    private static BactaConfiguration stubConfiguration() {
+        return new MapConfiguration()
+                .set("Bacta/Database/Couchbase", "GameObjectsBucket", "gameObjects")
+                .set("Bacta/Database/Couchbase", "ConnectionObjectsBucket", "connectionObjects")
+                .set("Bacta/Database/Couchbase", "DesignDoc", "connection")
+                .set("Bacta/Database/Couchbase", "UsernameView", "usernames")
+                .set("Bacta/Database/Couchbase", "AuthTokenView", "authTokens")
+                .set("Bacta/Database/Couchbase", "AuthTokenViewFallback", false)
+                .build();
+    }
+
+    void stop() throws IOException {
+        while (!closers.isEmpty()) {
+            closers.pop().close();
+        }
+    }
+
+    void run() throws Exception {
+        final long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureFrom = begin + warmup;
+        final long end = measureFrom + duration;
+        final AtomicLong sequence = new AtomicLong();
+
+        System.out.println(String.format("Running %d ops/s on %d threads, %ds warmup, %ds measured, %s",
+                rate, threads, TimeUnit.NANOSECONDS.toSeconds(warmup), TimeUnit.NANOSECONDS.toSeconds(duration),
+                "embedded".equals(backend) ? "embedded" : latency + "us round trip"));
+
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; ++i) {
+            Thread worker = new Thread(() -> work(sequence, begin, measureFrom, end), "Load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        try (PrintWriter csv = output != null ? new PrintWriter(new FileWriter(output)) : null) {
+            if (csv != null) {
+                csv.println("elapsed_s,phase,operation,count,errors,rate,p50_us,p90_us,p99_us,p999_us,max_us,service_p99_us");
+            }
+
+            Map<Operation, Totals> previous = new HashMap<>();
+            for (Operation operation : operations) {
+                previous.put(operation, operation.totals());
+            }
+
+            long nextReport = begin + interval;
+            while (true) {
+                long reportAt = Math.min(nextReport, end);
+                sleepUntil(reportAt);
+                long now = System.nanoTime();
+                String phase = reportAt <= measureFrom ? "warmup" : "measure";
+                System.out.println(String.format("-- %.0fs %s", (now - begin) / 1e9, phase));
+
+                for (Operation operation : operations) {
+                    Totals current = operation.totals();
+                    Totals delta = current.minus(previous.put(operation, current));
+                    report(csv, (now - begin) / 1e9, phase, operation.name, delta, (reportAt - nextReport + interval) / 1e9);
+                }
+
+                if (reportAt >= end) {
+                    break;
+                }
+                nextReport += interval;
+            }
+
+            for (Thread worker : workers) {
+                worker.join(TimeUnit.SECONDS.toMillis(30));
+            }
+
+            System.out.println(String.format("== summary over %ds measured, %d ops scheduled",
+                    TimeUnit.NANOSECONDS.toSeconds(duration), sequence.get()));
+            for (Operation operation : operations) {
+                report(csv, duration / 1e9, "summary", operation.name, operation.measured(), duration / 1e9);
+            }
+        }
+    }
+
+    /**
+     * Takes the next scheduled slot, waits for its start time if it has not passed, and runs it.
+     */
+    private void work(AtomicLong sequence, long begin, long measureFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double nanosPerOperation = 1e9 / rate;
+
+        while (true) {
+            long slot = sequence.getAndIncrement();
+            long intended = begin + (long) (slot * nanosPerOperation);
+            if (intended >= end) {
+                return;
+            }
+
+            sleepUntil(intended);
+
+            Operation operation = operations.get(schedule[(int) (slot % schedule.length)]);
+            long started = System.nanoTime();
+            boolean success = false;
+            try {
+                execute(operation.name, random);
+                success = true;
+            } catch (RuntimeException e) {
+                if (operation.reportedError.compareAndSet(false, true)) {
+                    System.err.println(operation.name + " failed: " + e);
+                }
+            }
+            long done = System.nanoTime();
+
+            operation.record(intended, started, done, success, intended >= measureFrom);
+        }
+    }
+
+    private void execute(String name, ThreadLocalRandom random) {
+        switch (name) {
+            case "createAccount":
+                accountService.createAccount("new" + createdAccounts.incrementAndGet() + "-" + random.nextInt(), "password");
+                break;
+            case "createAuthToken": {
+                int index = random.nextInt(accounts);
+                LoadAccount account = accountPool[index];
+                synchronized (account) {
+                    accountService.createAuthToken(account);
+                    authTokens.set(index, account.getAuthToken());
+                }
+                break;
+            }
+            case "validateSession":
+                accountService.validateSession(authTokens.get(random.nextInt(accounts)));
+                break;
+            case "getNetworkObject":
+                gameConnector.getNetworkObject(4294967297L + random.nextInt(objects));
+                break;
+            case "updateNetworkObject":
+                gameConnector.updateNetworkObject(objectPool[random.nextInt(objects)]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private static void report(PrintWriter csv, double elapsed, String phase, String name, Totals totals, double seconds) {
+        HistogramSnapshot latency = totals.latency;
+        System.out.println(String.format("%-20s %9d ops %9.1f/s %6d err  p50 %8.3f  p90 %8.3f  p99 %8.3f  p99.9 %8.3f  max %8.3f ms  (service p99 %8.3f)",
+                name, latency.getCount(), latency.getCount() / Math.max(seconds, 1e-9), totals.errors,
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6,
+                latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+                latency.getMax() / 1e6, totals.service.getValueAtPercentile(99) / 1e6));
+
+        if (csv != null) {
+            csv.println(String.format(Locale.ROOT, "%.1f,%s,%s,%d,%d,%.1f,%d,%d,%d,%d,%d,%d",
+                    elapsed, phase, name, latency.getCount(), totals.errors, latency.getCount() / Math.max(seconds, 1e-9),
+                    latency.getValueAtPercentile(50) / 1000, latency.getValueAtPercentile(90) / 1000,
+                    latency.getValueAtPercentile(99) / 1000, latency.getValueAtPercentile(99.9) / 1000,
+                    latency.getMax() / 1000, totals.service.getValueAtPercentile(99) / 1000));
+            csv.flush();
+        }
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Game objects are serialized to a fixed payload and decoded to fresh objects, so reads and
+     * writes move realistic document sizes without a real serializer.
+     */
+    private static CouchbaseTranscoder<NetworkObject> objectTranscoder() throws ReflectiveOperationException {
+        final byte[] payload = DocumentPayloads.small(new Random(42));
+        final Object identity = new Object();
+
+        Object serializer = Proxy.newProxyInstance(LoadGenerator.class.getClassLoader(), new Class<?>[] { NetworkSerializer.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "serialize":
+                            return payload.clone();
+                        case "deserialize":
+                            return new LoadObject(0);
+                        default:
+                            return method.invoke(identity, args);
+                    }
+                });
+
+        CouchbaseTranscoder<NetworkObject> transcoder = new CouchbaseTranscoder<>();
+        transcoder.configure(new MapConfiguration().build());
+
+        Field field = CouchbaseTranscoder.class.getDeclaredField("networkSerializer");
+        field.setAccessible(true);
+        field.set(transcoder, serializer);
+        return transcoder;
+    }
+
+    private static CouchbaseAccountService<LoadAccount> accountService(BactaConfiguration configuration,
+                                                                      ConnectionDatabaseConnector connector) throws ReflectiveOperationException {
+        final Object identity = new Object();
+        PasswordHash passwordHash = (PasswordHash) Proxy.newProxyInstance(LoadGenerator.class.getClassLoader(), new Class<?>[] { PasswordHash.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createHash":
+                            return "hash:" + args[0];
+                        case "validatePassword":
+                            return ("hash:" + args[0]).equals(args[1]);
+                        default:
+                            return method.invoke(identity, args);
+                    }
+                });
+
+        Provider<LoadAccount> accounts = LoadAccount::new;
+
+        @SuppressWarnings("unchecked")
+        Constructor<CouchbaseAccountService<LoadAccount>> constructor = (Constructor<CouchbaseAccountService<LoadAccount>>) (Constructor<?>) CouchbaseAccountService.class.getDeclaredConstructor(
+                BactaConfiguration.class, ConnectionDatabaseConnector.class, Provider.class, PasswordHash.class, Account.class, ConnectorMetrics.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(configuration, connector, accounts, passwordHash, new LoadAccount(), ConnectorMetrics.DISABLED);
+    }
+
+    public static class LoadAccount extends Account {
+    }
+
+    public static class LoadObject extends NetworkObject {
+
+        LoadObject(long networkId) {
+            setNetworkId(networkId);
+        }
+    }
+
+    private static final class Operation {
+
+        final String name;
+        final AtomicBoolean reportedError = new AtomicBoolean();
+
+        /**
+         * From the scheduled start, so including any wait for a worker
+         */
+        final Histogram latency = new Histogram();
+
+        /**
+         * From the actual start
+         */
+        final Histogram service = new Histogram();
+        final LongAdder errors = new LongAdder();
+
+        final Histogram measuredLatency = new Histogram();
+        final Histogram measuredService = new Histogram();
+        final LongAdder measuredErrors = new LongAdder();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void record(long intended, long started, long done, boolean success, boolean measured) {
+            latency.record(done - intended);
+            service.record(done - started);
+            if (!success) {
+                errors.increment();
+            }
+
+            if (measured) {
+                measuredLatency.record(done - intended);
+                measuredService.record(done - started);
+                if (!success) {
+                    measuredErrors.increment();
+                }
+            }
+        }
+
+        Totals totals() {
+            return new Totals(latency.snapshot(), service.snapshot(), errors.sum());
+        }
+
+        Totals measured() {
+            return new Totals(measuredLatency.snapshot(), measuredService.snapshot(), measuredErrors.sum());
+        }
+    }
+
+    private static final class Totals {
+
+        final HistogramSnapshot latency;
+        final HistogramSnapshot service;
+        final long errors;
+
+        Totals(HistogramSnapshot latency, HistogramSnapshot service, long errors) {
+            this.latency = latency;
+            this.service = service;
+            this.errors = errors;
+        }
+
+        Totals minus(Totals earlier) {
+            return new Totals(latency.minus(earlier.latency), service.minus(earlier.service), errors - earlier.errors);
+        }
+    }
+}
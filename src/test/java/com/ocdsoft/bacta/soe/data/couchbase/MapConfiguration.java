@@ -0,0 +1,55 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.engine.conf.BactaConfiguration;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration for benchmarks, backed by a map of "section/key" values.  Every getter of the
+ * configuration reads the map, falling back to the default it is passed.
+ */
+final class MapConfiguration {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    MapConfiguration set(String section, String key, Object value) {
+        values.put(section + "/" + key, String.valueOf(value));
+        return this;
+    }
+
+    BactaConfiguration build() {
+        final Map<String, String> values = new HashMap<>(this.values);
+
+        return (BactaConfiguration) Proxy.newProxyInstance(
+                BactaConfiguration.class.getClassLoader(),
+                new Class<?>[] { BactaConfiguration.class },
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(values, args);
+                    }
+
+                    if (args == null || args.length < 2) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+
+                    String value = values.get(args[0] + "/" + args[1]);
+                    if (value == null) {
+                        return args.length > 2 ? args[2] : null;
+                    }
+
+                    Class<?> type = method.getReturnType();
+                    if (type == int.class || type == Integer.class) {
+                        return Integer.parseInt(value);
+                    }
+                    if (type == long.class || type == Long.class) {
+                        return Long.parseLong(value);
+                    }
+                    if (type == boolean.class || type == Boolean.class) {
+                        return Boolean.parseBoolean(value);
+                    }
+                    return value;
+                });
+    }
+}
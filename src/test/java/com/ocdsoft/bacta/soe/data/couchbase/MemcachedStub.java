@@ -0,0 +1,332 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process server speaking the memcached binary protocol, so the connector's client
+ * code paths can be exercised and benchmarked without a Couchbase cluster.
+ *
+ * Supports get, getk, set, add, replace, delete, incr, decr, noop, version and flush along with
+ * their quiet variants.  An optional latency is applied once per round trip, before each batch
+ * of pipelined responses is flushed.
+ */
+public final class MemcachedStub implements Closeable {
+
+    private static final int HEADER_LENGTH = 24;
+
+    private static final byte GET = 0x00;
+    private static final byte SET = 0x01;
+    private static final byte ADD = 0x02;
+    private static final byte REPLACE = 0x03;
+    private static final byte DELETE = 0x04;
+    private static final byte INCREMENT = 0x05;
+    private static final byte DECREMENT = 0x06;
+    private static final byte QUIT = 0x07;
+    private static final byte FLUSH = 0x08;
+    private static final byte GETQ = 0x09;
+    private static final byte NOOP = 0x0a;
+    private static final byte VERSION = 0x0b;
+    private static final byte GETK = 0x0c;
+    private static final byte GETKQ = 0x0d;
+    private static final byte SETQ = 0x11;
+    private static final byte ADDQ = 0x12;
+    private static final byte REPLACEQ = 0x13;
+    private static final byte DELETEQ = 0x14;
+
+    private static final short SUCCESS = 0x0000;
+    private static final short NOT_FOUND = 0x0001;
+    private static final short EXISTS = 0x0002;
+    private static final short NOT_STORED = 0x0005;
+    private static final short NON_NUMERIC = 0x0006;
+    private static final short UNKNOWN_COMMAND = 0x0081;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final Map<String, Item> items = new ConcurrentHashMap<>();
+    private final AtomicLong casSequence = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    private volatile long latencyNanos;
+
+    public MemcachedStub() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "MemcachedStub");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers.execute(this::accept);
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    public MemcachedClient newClient() throws IOException {
+        return new MemcachedClient(new BinaryConnectionFactory(), Collections.singletonList(getAddress()));
+    }
+
+    public void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+    }
+
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public void clear() {
+        items.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                workers.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536))) {
+
+            byte[] header = new byte[HEADER_LENGTH];
+            for (;;) {
+                try {
+                    in.readFully(header);
+                } catch (EOFException e) {
+                    return;
+                }
+
+                DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+                h.readUnsignedByte();
+                byte opcode = h.readByte();
+                int keyLength = h.readUnsignedShort();
+                int extrasLength = h.readUnsignedByte();
+                h.readUnsignedByte();
+                h.readUnsignedShort();
+                int bodyLength = h.readInt();
+                int opaque = h.readInt();
+                long cas = h.readLong();
+
+                byte[] extras = new byte[extrasLength];
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[bodyLength - extrasLength - keyLength];
+                in.readFully(extras);
+                in.readFully(key);
+                in.readFully(value);
+
+                if (opcode == QUIT) {
+                    return;
+                }
+
+                handle(out, opcode, opaque, cas, extras, key, value);
+
+                if (in.available() == 0) {
+                    if (latencyNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+                    }
+                    roundTrips.incrementAndGet();
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+
+    private void handle(DataOutputStream out, byte opcode, int opaque, long cas, byte[] extras, byte[] key, byte[] value) throws IOException {
+        String k = new String(key, StandardCharsets.UTF_8);
+
+        switch (opcode) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ: {
+                boolean quiet = opcode == GETQ || opcode == GETKQ;
+                boolean withKey = opcode == GETK || opcode == GETKQ;
+                Item item = items.get(k);
+                if (item == null) {
+                    if (!quiet) {
+                        respond(out, opcode, NOT_FOUND, opaque, 0, EMPTY, withKey ? key : EMPTY, "Not found".getBytes(StandardCharsets.UTF_8));
+                    }
+                } else {
+                    respond(out, opcode, SUCCESS, opaque, item.cas, intBytes(item.flags), withKey ? key : EMPTY, item.data);
+                }
+                break;
+            }
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ: {
+                boolean quiet = opcode == SETQ || opcode == ADDQ || opcode == REPLACEQ;
+                int flags = extras.length >= 4 ? new DataInputStream(new ByteArrayInputStream(extras)).readInt() : 0;
+                short status;
+                long newCas = 0;
+
+                synchronized (items) {
+                    Item existing = items.get(k);
+                    if ((opcode == ADD || opcode == ADDQ) && existing != null) {
+                        status = EXISTS;
+                    } else if ((opcode == REPLACE || opcode == REPLACEQ) && existing == null) {
+                        status = NOT_FOUND;
+                    } else if (cas != 0 && (existing == null || existing.cas != cas)) {
+                        status = existing == null ? NOT_FOUND : EXISTS;
+                    } else {
+                        newCas = casSequence.incrementAndGet();
+                        items.put(k, new Item(flags, value, newCas));
+                        status = SUCCESS;
+                    }
+                }
+
+                if (!quiet || status != SUCCESS) {
+                    respond(out, opcode, status, opaque, newCas, EMPTY, EMPTY, EMPTY);
+                }
+                break;
+            }
+            case DELETE:
+            case DELETEQ: {
+                short status;
+                synchronized (items) {
+                    Item existing = items.get(k);
+                    if (existing == null) {
+                        status = NOT_FOUND;
+                    } else if (cas != 0 && existing.cas != cas) {
+                        status = EXISTS;
+                    } else {
+                        items.remove(k);
+                        status = SUCCESS;
+                    }
+                }
+                if (opcode == DELETE || status != SUCCESS) {
+                    respond(out, opcode, status, opaque, 0, EMPTY, EMPTY, EMPTY);
+                }
+                break;
+            }
+            case INCREMENT:
+            case DECREMENT: {
+                DataInputStream e = new DataInputStream(new ByteArrayInputStream(extras));
+                long delta = e.readLong();
+                long initial = e.readLong();
+                int expiration = e.readInt();
+                short status = SUCCESS;
+                long result = 0;
+                long newCas = 0;
+
+                synchronized (items) {
+                    Item existing = items.get(k);
+                    if (existing == null) {
+                        if (expiration == -1) {
+                            status = NOT_FOUND;
+                        } else {
+                            result = initial;
+                        }
+                    } else {
+                        try {
+                            long current = Long.parseLong(new String(existing.data, StandardCharsets.US_ASCII).trim());
+                            result = opcode == INCREMENT ? current + delta : Math.max(0, current - delta);
+                        } catch (NumberFormatException ex) {
+                            status = NON_NUMERIC;
+                        }
+                    }
+
+                    if (status == SUCCESS) {
+                        newCas = casSequence.incrementAndGet();
+                        items.put(k, new Item(existing != null ? existing.flags : 0, Long.toString(result).getBytes(StandardCharsets.US_ASCII), newCas));
+                    }
+                }
+
+                respond(out, opcode, status, opaque, newCas, EMPTY, EMPTY, status == SUCCESS ? longBytes(result) : EMPTY);
+                break;
+            }
+            case NOOP:
+                respond(out, opcode, SUCCESS, opaque, 0, EMPTY, EMPTY, EMPTY);
+                break;
+            case VERSION:
+                respond(out, opcode, SUCCESS, opaque, 0, EMPTY, EMPTY, "1.4.0-stub".getBytes(StandardCharsets.US_ASCII));
+                break;
+            case FLUSH:
+                items.clear();
+                respond(out, opcode, SUCCESS, opaque, 0, EMPTY, EMPTY, EMPTY);
+                break;
+            default:
+                respond(out, opcode, UNKNOWN_COMMAND, opaque, 0, EMPTY, EMPTY, EMPTY);
+                break;
+        }
+    }
+
+    private static void respond(DataOutputStream out, byte opcode, short status, int opaque, long cas, byte[] extras, byte[] key, byte[] value) throws IOException {
+        out.writeByte(0x81);
+        out.writeByte(opcode);
+        out.writeShort(key.length);
+        out.writeByte(extras.length);
+        out.writeByte(0);
+        out.writeShort(status);
+        out.writeInt(extras.length + key.length + value.length);
+        out.writeInt(opaque);
+        out.writeLong(cas);
+        out.write(extras);
+        out.write(key);
+        out.write(value);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; --i) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    private static final class Item {
+
+        final int flags;
+        final byte[] data;
+        final long cas;
+
+        Item(int flags, byte[] data, long cas) {
+            this.flags = flags;
+            this.data = data;
+            this.cas = cas;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.soe.data.couchbase.sequence.SequenceSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Network id throughput against a counter that costs one simulated round trip per increment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetworkIdGeneratorBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int blockSize;
+
+    @Param({"250"})
+    public long roundTripMicros;
+
+    private CouchbaseNetworkIdGenerator generator;
+
+    @Setup
+    public void setup() {
+        generator = new CouchbaseNetworkIdGenerator(new LatentCounter(TimeUnit.MICROSECONDS.toNanos(roundTripMicros)), blockSize);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long next() {
+        return generator.next();
+    }
+
+    static final class LatentCounter implements SequenceSource {
+
+        private final AtomicLong counter = new AtomicLong(4294967296L);
+        private final long latencyNanos;
+
+        LatentCounter(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public long reserve(String key, int count) {
+            LockSupport.parkNanos(latencyNanos);
+            return counter.addAndGet(count);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.engine.object.NetworkObject;
+import com.ocdsoft.bacta.engine.serialize.NetworkSerializer;
+import net.spy.memcached.CachedData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of {@link CouchbaseTranscoder} encode and decode for an object below the compression
+ * threshold, through a stream based serializer of the kind the engine's {@code NetworkSerializer}
+ * is, against a {@link BufferSerializer} writing the same format.  Run with {@code -prof gc} and
+ * compare gc.alloc.rate.norm, the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerAllocationBenchmark {
+
+    @Param({"stream", "buffer"})
+    public String serializer;
+
+    private CouchbaseTranscoder<NetworkObject> transcoder;
+    private Item item;
+    private CachedData document;
+    private ByteBuffer target;
+
+    @Setup
+    public void setup() throws Exception {
+        item = new Item(4294967296L + 1234, "object/tangible/component/weapon/shared_blaster_barrel.iff",
+                12.5f, 0f, -3.25f, new int[] {1, 2, 3, 5, 8, 13, 21, 34});
+
+        transcoder = new CouchbaseTranscoder<>();
+        transcoder.configure(new MapConfiguration().build());
+
+        Field field = CouchbaseTranscoder.class.getDeclaredField("networkSerializer");
+        field.setAccessible(true);
+        if ("buffer".equals(serializer)) {
+            ItemBufferSerializer itemSerializer = new ItemBufferSerializer();
+            field.set(transcoder, itemSerializer);
+            transcoder.setBufferSerializer(itemSerializer);
+        } else {
+            field.set(transcoder, new ItemStreamSerializer());
+        }
+
+        document = transcoder.encode(item);
+        target = ByteBuffer.allocate(4096);
+    }
+
+    @Benchmark
+    public CachedData encode() {
+        return transcoder.encode(item);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        target.clear();
+        return transcoder.encode(item, target);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return transcoder.decode(document);
+    }
+
+    /**
+     * A small network object: an id, a template name, a position and a few counters.
+     */
+    static final class Item extends NetworkObject {
+
+        final String template;
+        final float x;
+        final float y;
+        final float z;
+        final int[] counters;
+
+        Item(long id, String template, float x, float y, float z, int[] counters) {
+            setNetworkId(id);
+            this.template = template;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.counters = counters;
+        }
+    }
+
+    /**
+     * Fields through data streams, a new array per object.
+     */
+    static class ItemStreamSerializer implements NetworkSerializer {
+
+        @Override
+        public byte[] serialize(Object object) {
+            Item item = (Item) object;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeLong(item.getNetworkId());
+                out.writeUTF(item.template);
+                out.writeFloat(item.x);
+                out.writeFloat(item.y);
+                out.writeFloat(item.z);
+                out.writeInt(item.counters.length);
+                for (int counter : item.counters) {
+                    out.writeInt(counter);
+                }
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Object deserialize(byte[] data) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                long id = in.readLong();
+                String template = in.readUTF();
+                float x = in.readFloat();
+                float y = in.readFloat();
+                float z = in.readFloat();
+                int[] counters = new int[in.readInt()];
+                for (int i = 0; i < counters.length; ++i) {
+                    counters[i] = in.readInt();
+                }
+                return new Item(id, template, x, y, z, counters);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * The same format written into and read from the transcoder's buffers.  Templates are ASCII.
+     */
+    static final class ItemBufferSerializer extends ItemStreamSerializer implements BufferSerializer {
+
+        @Override
+        public void serialize(Object object, ByteBuffer buffer) {
+            Item item = (Item) object;
+            buffer.putLong(item.getNetworkId());
+            buffer.putShort((short) item.template.length());
+            for (int i = 0; i < item.template.length(); ++i) {
+                buffer.put((byte) item.template.charAt(i));
+            }
+            buffer.putFloat(item.x);
+            buffer.putFloat(item.y);
+            buffer.putFloat(item.z);
+            buffer.putInt(item.counters.length);
+            for (int counter : item.counters) {
+                buffer.putInt(counter);
+            }
+        }
+
+        @Override
+        public Object deserialize(ByteBuffer buffer) {
+            long id = buffer.getLong();
+            int length = buffer.getShort() & 0xFFFF;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; ++i) {
+                chars[i] = (char) (buffer.get() & 0xFF);
+            }
+            float x = buffer.getFloat();
+            float y = buffer.getFloat();
+            float z = buffer.getFloat();
+            int[] counters = new int[buffer.getInt()];
+            for (int i = 0; i < counters.length; ++i) {
+                counters[i] = buffer.getInt();
+            }
+            return new Item(id, new String(chars), x, y, z, counters);
+        }
+    }
+}
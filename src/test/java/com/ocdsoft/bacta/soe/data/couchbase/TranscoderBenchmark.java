@@ -0,0 +1,99 @@
+package com.ocdsoft.bacta.soe.data.couchbase;
+
+import com.ocdsoft.bacta.engine.object.NetworkObject;
+import com.ocdsoft.bacta.engine.serialize.NetworkSerializer;
+import com.ocdsoft.bacta.soe.data.couchbase.metrics.ConnectorMetrics;
+import net.spy.memcached.CachedData;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CouchbaseTranscoder} encode and decode around a serializer that returns a prepared
+ * payload, so the numbers are the transcoder's own: compression, flags and copies.  The
+ * serializer ignores the object it is given and decodes to null, so no object is ever built.
+ *
+ * The buffer serializer runs the same payload through the {@link BufferSerializer} path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscoderBenchmark {
+
+    @Param({"small", "building"})
+    public String payload;
+
+    @Param({"bytes", "buffer"})
+    public String serializer;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private CouchbaseTranscoder<NetworkObject> transcoder;
+    private CachedData document;
+    private ByteBuffer target;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        final byte[] raw = "small".equals(payload) ? DocumentPayloads.small(random) : DocumentPayloads.building(random);
+        final Object identity = new Object();
+
+        Class<?>[] interfaces = "buffer".equals(serializer)
+                ? new Class<?>[] { NetworkSerializer.class, BufferSerializer.class }
+                : new Class<?>[] { NetworkSerializer.class };
+
+        Object networkSerializer = Proxy.newProxyInstance(getClass().getClassLoader(), interfaces, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "serialize":
+                    if (args.length == 2) {
+                        ((ByteBuffer) args[1]).put(raw);
+                        return null;
+                    }
+                    return raw.clone();
+                case "deserialize":
+                    if (args[0] instanceof ByteBuffer) {
+                        ByteBuffer buffer = (ByteBuffer) args[0];
+                        buffer.position(buffer.limit());
+                    }
+                    return null;
+                default:
+                    return method.invoke(identity, args);
+            }
+        });
+
+        transcoder = new CouchbaseTranscoder<>();
+        transcoder.configure(new MapConfiguration().build());
+        transcoder.setMetrics(metrics ? new ConnectorMetrics(true, false, 0) : ConnectorMetrics.DISABLED);
+
+        Field field = CouchbaseTranscoder.class.getDeclaredField("networkSerializer");
+        field.setAccessible(true);
+        field.set(transcoder, networkSerializer);
+
+        document = transcoder.encode(null);
+        target = ByteBuffer.allocate(raw.length + 64);
+    }
+
+    @Benchmark
+    public CachedData encode() {
+        return transcoder.encode(null);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        target.clear();
+        return transcoder.encode(null, target);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return transcoder.decode(document);
+    }
+}
@@ -0,0 +1,85 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class BoundedExecutorTest extends TestCase {
+
+    private BoundedExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new BoundedExecutor("Test", 1, 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    public void testWorkBeyondCapacityIsRejectedAtOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+
+        CompletableFuture<?> first = executor.admit(() -> CompletableFuture.runAsync(() -> {
+            running.countDown();
+            await(release);
+        }, executor));
+        CompletableFuture<?> second = executor.admit(() -> CompletableFuture.runAsync(() -> { }, executor));
+        CompletableFuture<?> third = executor.admit(() -> CompletableFuture.runAsync(() -> { }, executor));
+
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertEquals(3, executor.getInFlight());
+        assertEquals(2, executor.getQueueDepth());
+
+        CompletableFuture<?> rejected = executor.admit(() -> CompletableFuture.runAsync(() -> { }, executor));
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(1, executor.getRejectedCount());
+        try {
+            rejected.get();
+            fail("Expected a rejection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        release.countDown();
+        CompletableFuture.allOf(first, second, third).get(5, TimeUnit.SECONDS);
+        assertEquals(0, executor.getInFlight());
+
+        assertEquals("admitted", executor.admit(() -> CompletableFuture.supplyAsync(() -> "admitted", executor)).get(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailedWorkGivesBackItsPlace() throws Exception {
+        for (int i = 0; i < 10; ++i) {
+            CompletableFuture<?> future = executor.admit(() -> {
+                throw new IllegalStateException("failed to start");
+            });
+            assertTrue(future.isCompletedExceptionally());
+
+            CompletableFuture<Object> failed = executor.admit(() -> CompletableFuture.supplyAsync(() -> {
+                throw new IllegalStateException("failed");
+            }, executor));
+            try {
+                failed.get(5, TimeUnit.SECONDS);
+                fail("Expected the work to fail");
+            } catch (ExecutionException expected) {
+            }
+        }
+
+        assertEquals(0, executor.getInFlight());
+        assertEquals(0, executor.getRejectedCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.ocdsoft.bacta.soe.data.couchbase.async;
+
+import com.ocdsoft.bacta.soe.data.couchbase.MemcachedStub;
+import junit.framework.TestCase;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ClientFuturesTest extends TestCase {
+
+    private MemcachedStub stub;
+    private MemcachedClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        stub = new MemcachedStub();
+        client = stub.newClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.shutdown();
+        stub.close();
+    }
+
+    public void testCompletesFromListener() throws Exception {
+        CompletableFuture<Boolean> set = ClientFutures.of(client.set("key", 0, "value"), 5000);
+        assertTrue(set.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Object> get = ClientFutures.of(client.asyncGet("key"), 5000);
+        assertEquals("value", get.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Object> missing = ClientFutures.of(client.asyncGet("missing"), 5000);
+        assertNull(missing.get(5, TimeUnit.SECONDS));
+    }
+
+    public void testManyOperationsInFlight() throws Exception {
+        stub.setLatency(20, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[500];
+        for (int i = 0; i < futures.length; ++i) {
+            futures[i] = ClientFutures.of(client.set("key" + i, 0, String.valueOf(i)), 10000);
+        }
+
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        assertEquals(500, stub.size());
+    }
+
+    public void testTimesOut() throws Exception {
+        stub.setLatency(2, TimeUnit.SECONDS);
+
+        CompletableFuture<Object> get = ClientFutures.of(client.asyncGet("key"), 50);
+        try {
+            get.get(5, TimeUnit.SECONDS);
+            fail("Expected the operation to time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationTimeoutException);
+        }
+    }
+
+    public void testExecutorRunsTasksInEitherMode() throws Exception {
+        for (String mode : new String[] {AsyncExecutors.VIRTUAL, AsyncExecutors.POOL}) {
+            ExecutorService executor = AsyncExecutors.create(mode, "Test-Async", 1);
+            assertEquals("done", CompletableFuture.supplyAsync(() -> "done", executor).get(5, TimeUnit.SECONDS));
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ocdsoft.bacta.soe.data.couchbase.cache;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class NearCacheTest extends TestCase {
+
+    public void testReadValueDoesNotReplaceNewerEntry() {
+        NearCache<String> cache = new NearCache<>(1000, 1 << 20, 0);
+
+        cache.put(1, "v2", 20, 10);
+        cache.put(1, "v1", 10, 10);
+        assertEquals("v2", cache.get(1));
+
+        cache.put(1, "v3", 30, 10);
+        assertEquals("v3", cache.get(1));
+
+        cache.put(1, "unknown", 0, 10);
+        assertEquals("v3", cache.get(1));
+        assertEquals(2, cache.getStats().getStaleReads());
+    }
+
+    public void testPendingWriteIsNotReplacedByRead() {
+        NearCache<String> cache = new NearCache<>(1000, 1 << 20, 0);
+
+        cache.put(1, "old", 10, 10);
+        cache.putWritten(1, "written", 10);
+        cache.put(1, "slow read", 15, 10);
+        assertEquals("written", cache.get(1));
+
+        cache.confirmWrite(1, "written", 20, 10);
+        cache.put(1, "slow read", 15, 10);
+        assertEquals("written", cache.get(1));
+
+        cache.put(1, "newer", 25, 10);
+        assertEquals("newer", cache.get(1));
+    }
+
+    public void testFailedWriteOnlyInvalidatesItsOwnValue() {
+        NearCache<String> cache = new NearCache<>(1000, 1 << 20, 0);
+
+        cache.putWritten(1, "first", 10);
+        cache.putWritten(1, "second", 10);
+        cache.invalidate(1, "first");
+        assertEquals("second", cache.get(1));
+
+        cache.invalidate(1, "second");
+        assertNull(cache.get(1));
+    }
+
+    public void testEntryAndWeightBoundsAreEnforced() {
+        NearCache<Long> cache = new NearCache<>(100, 1 << 30, 0);
+        for (long key = 0; key < 10000; ++key) {
+            cache.get(key);
+            cache.put(key, key, 1, 1);
+        }
+        assertTrue(cache.getStats().getSize() <= 100 + 64);
+
+        NearCache<Long> weighted = new NearCache<>(100000, 64 * 1024, 0);
+        for (long key = 0; key < 10000; ++key) {
+            weighted.get(key);
+            weighted.put(key, key, 1, 512);
+        }
+        assertTrue(weighted.getStats().getWeight() <= 64 * 1024);
+    }
+
+    public void testFrequentlyReadEntriesSurviveAScan() {
+        NearCache<Long> cache = new NearCache<>(1000, 1 << 30, 0);
+
+        for (int round = 0; round < 5; ++round) {
+            for (long key = 0; key < 200; ++key) {
+                if (cache.get(key) == null) {
+                    cache.put(key, key, 1, 1);
+                }
+            }
+        }
+
+        for (long key = 1000000; key < 1100000; ++key) {
+            if (cache.get(key) == null) {
+                cache.put(key, key, 1, 1);
+            }
+
+            long hot = key % 200;
+            if (cache.get(hot) == null) {
+                cache.put(hot, hot, 1, 1);
+            }
+        }
+
+        int retained = 0;
+        for (long key = 0; key < 200; ++key) {
+            if (cache.get(key) != null) {
+                ++retained;
+            }
+        }
+
+        assertTrue("Only " + retained + " hot entries retained", retained > 150);
+    }
+
+    public void testMatchesReferenceMapUnderRandomOperations() {
+        NearCache<Long> cache = new NearCache<>(1 << 16, 1L << 40, 0);
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 200000; ++i) {
+            long key = random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    cache.putWritten(key, (long) i, 1);
+                    reference.put(key, (long) i);
+                    break;
+                case 1:
+                    cache.invalidate(key);
+                    reference.remove(key);
+                    break;
+                default:
+                    assertEquals(reference.get(key), cache.get(key));
+                    break;
+            }
+        }
+
+        assertEquals(reference.size(), cache.getStats().getSize());
+    }
+
+    public void testExpiredEntriesAreNotServed() throws Exception {
+        NearCache<String> cache = new NearCache<>(1000, 1 << 20, 1);
+        cache.put(1, "value", 1, 1);
+        Thread.sleep(5);
+        assertNull(cache.get(1));
+    }
+}
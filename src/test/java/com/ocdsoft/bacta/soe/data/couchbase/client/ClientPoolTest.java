@@ -0,0 +1,72 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseClient;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+public class ClientPoolTest extends TestCase {
+
+    private CouchbaseClient[] clients;
+    private ClientPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        clients = new CouchbaseClient[4];
+        for (int i = 0; i < clients.length; ++i) {
+            clients[i] = unconnected();
+        }
+        pool = new ClientPool(null, "bucket", clients, new TrackingConnectionFactory[clients.length], ClientPool.Selection.ROUND_ROBIN);
+    }
+
+    public void testOperationsOnAKeyShareAClient() {
+        Set<CouchbaseClient> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 1000; ++i) {
+            String key = String.valueOf(4294967297L + i);
+            CouchbaseClient client = pool.next(key);
+            for (int repeat = 0; repeat < 3; ++repeat) {
+                assertSame(client, pool.next(key));
+            }
+            used.add(client);
+        }
+
+        assertEquals(clients.length, used.size());
+    }
+
+    public void testKeysAreGroupedByTheirClient() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            keys.add("key" + i);
+        }
+
+        int grouped = 0;
+        for (Map.Entry<CouchbaseClient, List<String>> group : pool.byClient(keys).entrySet()) {
+            for (String key : group.getValue()) {
+                assertSame(pool.next(key), group.getKey());
+            }
+            grouped += group.getValue().size();
+        }
+
+        assertEquals(keys.size(), grouped);
+    }
+
+    public void testOperationsOnNoKeyAreSpread() {
+        Set<CouchbaseClient> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < clients.length; ++i) {
+            used.add(pool.next());
+        }
+
+        assertEquals(clients.length, used.size());
+    }
+
+    /**
+     * A client allocated without running its constructor, which would connect
+     */
+    private static CouchbaseClient unconnected() throws ReflectiveOperationException {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return (CouchbaseClient) unsafeClass.getMethod("allocateInstance", Class.class).invoke(field.get(null), CouchbaseClient.class);
+    }
+}
@@ -0,0 +1,65 @@
+package com.ocdsoft.bacta.soe.data.couchbase.client;
+
+import com.couchbase.client.CouchbaseClient;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ReadinessTest extends TestCase {
+
+    private final ClientPool pool = new ClientPool(null, "bucket", new CouchbaseClient[0], new TrackingConnectionFactory[0],
+            ClientPool.Selection.ROUND_ROBIN);
+
+    public void testOperationsWaitForStartup() throws Exception {
+        final CompletableFuture<ClientPool> startup = new CompletableFuture<>();
+        Readiness readiness = new Readiness("bucket", startup, 5000);
+        assertEquals(Readiness.State.STARTING, readiness.getState());
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            startup.complete(pool);
+        });
+
+        assertSame(pool, readiness.pool());
+        assertEquals(Readiness.State.READY, readiness.getState());
+        assertNull(readiness.getFailure());
+    }
+
+    public void testFailureIsAState() throws Exception {
+        CompletableFuture<ClientPool> startup = new CompletableFuture<>();
+        Readiness readiness = new Readiness("bucket", startup, 5000);
+
+        IOException cause = new IOException("connection refused");
+        startup.completeExceptionally(cause);
+
+        assertEquals(Readiness.State.FAILED, readiness.getState());
+        assertSame(cause, readiness.getFailure());
+
+        try {
+            readiness.pool();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertSame(cause, expected.getCause());
+        }
+    }
+
+    public void testWaitIsBounded() throws Exception {
+        Readiness readiness = new Readiness("bucket", new CompletableFuture<>(), 20);
+
+        long start = System.nanoTime();
+        try {
+            readiness.pool();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(Readiness.State.STARTING, readiness.getState());
+    }
+}
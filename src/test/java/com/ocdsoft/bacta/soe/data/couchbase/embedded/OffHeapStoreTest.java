@@ -0,0 +1,213 @@
+package com.ocdsoft.bacta.soe.data.couchbase.embedded;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class OffHeapStoreTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("store");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(directory.resolve("store.bin.tmp"));
+        Files.deleteIfExists(directory.resolve("store.bin"));
+        Files.deleteIfExists(directory);
+    }
+
+    public void testPutGetAndAdd() throws Exception {
+        OffHeapStore store = new OffHeapStore(4096);
+
+        assertNull(store.get(1L));
+        store.put(1L, document(7, "first"));
+        assertDocument(7, "first", store.get(1L));
+
+        store.put(1L, document(8, "second"));
+        assertDocument(8, "second", store.get(1L));
+
+        assertFalse(store.add(1L, document(9, "third")));
+        assertDocument(8, "second", store.get(1L));
+        assertTrue(store.add(2L, document(9, "third")));
+
+        assertTrue(store.add("account", document(0, "{}")));
+        assertFalse(store.add("account", document(0, "{\"a\":1}")));
+        assertDocument(0, "{}", store.get("account"));
+        assertNull(store.get("other"));
+
+        assertEquals(2, store.getStats().getObjects());
+        assertEquals(1, store.getStats().getDocuments());
+    }
+
+    public void testKeyZeroAndNegativeKeys() throws Exception {
+        OffHeapStore store = new OffHeapStore(4096);
+
+        store.put(0L, document(1, "zero"));
+        store.put(-1L, document(2, "minus one"));
+
+        assertDocument(1, "zero", store.get(0L));
+        assertDocument(2, "minus one", store.get(-1L));
+        assertEquals(2, store.getStats().getObjects());
+    }
+
+    public void testDocumentsLargerThanSegments() throws Exception {
+        OffHeapStore store = new OffHeapStore(1024);
+        byte[] large = new byte[10000];
+        Arrays.fill(large, (byte) 'x');
+
+        store.put(1L, new CachedData(3, large, CachedData.MAX_SIZE));
+        store.put(2L, document(4, "small"));
+
+        assertTrue(Arrays.equals(large, store.get(1L).getData()));
+        assertDocument(4, "small", store.get(2L));
+    }
+
+    public void testReplacedDocumentsAreCompacted() throws Exception {
+        OffHeapStore store = new OffHeapStore(4096);
+
+        for (int round = 0; round < 50; ++round) {
+            for (long key = 0; key < 100; ++key) {
+                store.put(key, document(round, "object " + key + " round " + round));
+            }
+        }
+
+        OffHeapStore.Stats stats = store.getStats();
+        assertTrue(stats.getCompactions() > 0);
+        assertTrue(stats.getDeadBytes() <= Math.max(stats.getLiveBytes(), 4096));
+        assertTrue(stats.getAllocatedBytes() < 50 * stats.getLiveBytes());
+
+        for (long key = 0; key < 100; ++key) {
+            assertDocument(49, "object " + key + " round 49", store.get(key));
+        }
+    }
+
+    public void testStringKeyedDocumentsSurviveCompaction() throws Exception {
+        OffHeapStore store = new OffHeapStore(1024);
+
+        for (int round = 0; round < 50; ++round) {
+            for (int key = 0; key < 20; ++key) {
+                store.put(key, document(round, "object " + key + " round " + round));
+                store.put("document" + key, document(round, "document " + key + " round " + round));
+            }
+        }
+
+        OffHeapStore.Stats stats = store.getStats();
+        assertTrue(stats.getCompactions() > 0);
+        assertTrue(stats.getAllocatedBytes() < 10 * stats.getLiveBytes());
+
+        for (int key = 0; key < 20; ++key) {
+            assertDocument(49, "object " + key + " round 49", store.get(key));
+            assertDocument(49, "document " + key + " round 49", store.get("document" + key));
+        }
+    }
+
+    public void testSnapshotWhileWritesCompact() throws Exception {
+        final Path file = directory.resolve("store.bin");
+        final OffHeapStore store = new OffHeapStore(4096);
+        for (long key = 0; key < 20000; ++key) {
+            store.put(key, document(0, "object " + key + " round 0"));
+        }
+
+        Thread snapshot = new Thread(() -> {
+            try {
+                store.snapshot(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        snapshot.start();
+        for (int round = 1; snapshot.isAlive() || round < 3; ++round) {
+            for (long key = 0; key < 20000; ++key) {
+                store.put(key, document(round, "object " + key + " round " + round));
+            }
+        }
+        snapshot.join();
+        assertTrue(store.getStats().getCompactions() > 0);
+        store.close();
+
+        OffHeapStore loaded = OffHeapStore.open(file, 4096);
+        for (long key = 0; key < 20000; ++key) {
+            CachedData document = loaded.get(key);
+            assertDocument(document.getFlags(), "object " + key + " round " + document.getFlags(), document);
+        }
+        loaded.close();
+    }
+
+    public void testCounters() throws Exception {
+        OffHeapStore store = new OffHeapStore(4096);
+
+        assertTrue(store.addCounter("NetworkId", 100));
+        assertFalse(store.addCounter("NetworkId", 5));
+        assertEquals(101, store.incr("NetworkId", 1));
+        assertEquals(111, store.incr("NetworkId", 10));
+        assertEquals(3, store.incr("Other", 3));
+    }
+
+    public void testSnapshotRoundTrip() throws Exception {
+        Path file = directory.resolve("store.bin");
+
+        OffHeapStore store = new OffHeapStore(4096);
+        store.addCounter("NetworkId", 4294967296L);
+        store.incr("NetworkId", 5);
+        for (long key = 0; key < 1000; ++key) {
+            store.put(4294967296L + key, document((int) key, "object " + key));
+        }
+        store.put(0L, document(1, "zero"));
+        store.put("account", document(0, "{\"username\":\"account\"}"));
+        store.snapshot(file);
+        store.close();
+
+        assertFalse(Files.exists(directory.resolve("store.bin.tmp")));
+
+        OffHeapStore loaded = OffHeapStore.open(file, 4096);
+        assertEquals(4294967302L, loaded.incr("NetworkId", 1));
+        for (long key = 0; key < 1000; ++key) {
+            assertDocument((int) key, "object " + key, loaded.get(4294967296L + key));
+        }
+        assertDocument(1, "zero", loaded.get(0L));
+
+        Map<String, String> documents = new HashMap<>();
+        loaded.forEachDocument((key, document) -> documents.put(key, new String(document.getData(), StandardCharsets.UTF_8)));
+        assertEquals("{\"username\":\"account\"}", documents.get("account"));
+        assertEquals(1, documents.size());
+        loaded.close();
+    }
+
+    public void testMissingSnapshotOpensEmpty() throws Exception {
+        OffHeapStore store = OffHeapStore.open(directory.resolve("store.bin"), 4096);
+        assertEquals(0, store.getStats().getObjects());
+        store.close();
+    }
+
+    public void testOtherFilesAreRejected() throws Exception {
+        Path file = directory.resolve("store.bin");
+        Files.write(file, "not a snapshot of a store".getBytes(StandardCharsets.UTF_8));
+        try {
+            OffHeapStore.open(file, 4096);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static CachedData document(int flags, String data) {
+        return new CachedData(flags, data.getBytes(StandardCharsets.UTF_8), CachedData.MAX_SIZE);
+    }
+
+    private static void assertDocument(int flags, String data, CachedData document) {
+        assertNotNull(document);
+        assertEquals(flags, document.getFlags());
+        assertEquals(data, new String(document.getData(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,138 @@
+package com.ocdsoft.bacta.soe.data.couchbase.flight;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+    public void testConcurrentLoadsShareOneFetch() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Object>> results = new ArrayList<>();
+
+        results.add(executor.submit(() -> flight.get("key", () -> {
+            fetches.incrementAndGet();
+            await(release);
+            return new Object();
+        })));
+
+        waitForInFlight(flight, 1);
+
+        for (int i = 0; i < 7; ++i) {
+            results.add(executor.submit(() -> flight.get("key", () -> {
+                fetches.incrementAndGet();
+                return new Object();
+            })));
+        }
+
+        while (flight.getStats().getCoalesced() < 7) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        Object first = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<Object> result : results) {
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, fetches.get());
+        assertEquals(1, flight.getStats().getLoads());
+        assertEquals(7, flight.getStats().getCoalesced());
+        assertEquals(0, flight.getStats().getInFlight());
+
+        executor.shutdown();
+    }
+
+    public void testLoadAfterForgetDoesNotJoinEarlierFlight() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> before = executor.submit(() -> flight.get("key", () -> {
+            await(release);
+            return "before write";
+        }));
+
+        waitForInFlight(flight, 1);
+        flight.forget("key");
+
+        assertEquals("after write", flight.get("key", () -> "after write"));
+
+        release.countDown();
+        assertEquals("before write", before.get(5, TimeUnit.SECONDS));
+        assertEquals(1, flight.getStats().getForgotten());
+        assertEquals(0, flight.getStats().getCoalesced());
+
+        executor.shutdown();
+    }
+
+    public void testFailureIsSharedAndNotCached() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<String> leader = executor.submit(() -> flight.get("key", () -> {
+            await(release);
+            throw new IllegalStateException("fetch failed");
+        }));
+
+        waitForInFlight(flight, 1);
+        Future<String> joiner = executor.submit(() -> flight.get("key", () -> "unused"));
+
+        while (flight.getStats().getCoalesced() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        for (Future<String> result : Arrays.asList(leader, joiner)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the failure to reach every caller");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        assertEquals("retried", flight.get("key", () -> "retried"));
+
+        executor.shutdown();
+    }
+
+    public void testCancellingOneAsyncCallerDoesNotCancelTheLoad() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CompletableFuture<String> load = new CompletableFuture<>();
+
+        CompletableFuture<String> first = flight.getAsync("key", () -> load);
+        CompletableFuture<String> second = flight.getAsync("key", () -> CompletableFuture.completedFuture("unused"));
+
+        first.cancel(false);
+        load.complete("value");
+
+        assertEquals("value", second.get(5, TimeUnit.SECONDS));
+        assertFalse(load.isCancelled());
+        assertEquals(1, flight.getStats().getCoalesced());
+        assertEquals(0, flight.getStats().getInFlight());
+    }
+
+    private static void waitForInFlight(SingleFlight<?, ?> flight, int count) throws InterruptedException {
+        while (flight.getStats().getInFlight() < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.ocdsoft.bacta.soe.data.couchbase.hedge;
+
+import com.ocdsoft.bacta.soe.data.couchbase.MemcachedStub;
+import com.ocdsoft.bacta.soe.data.couchbase.async.ClientFutures;
+import junit.framework.TestCase;
+import net.spy.memcached.MemcachedClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class HedgedReaderTest extends TestCase {
+
+    private MemcachedStub primaryStub;
+    private MemcachedStub replicaStub;
+    private MemcachedClient primary;
+    private MemcachedClient replica;
+
+    @Override
+    protected void setUp() throws Exception {
+        primaryStub = new MemcachedStub();
+        replicaStub = new MemcachedStub();
+        primary = primaryStub.newClient();
+        replica = replicaStub.newClient();
+
+        primary.set("key", 0, "primary").get(5, TimeUnit.SECONDS);
+        replica.set("key", 0, "replica").get(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        primary.shutdown();
+        replica.shutdown();
+        primaryStub.close();
+        replicaStub.close();
+    }
+
+    public void testSlowPrimaryIsHedgedToReplica() throws Exception {
+        primaryStub.setLatency(500, TimeUnit.MILLISECONDS);
+        HedgedReader reader = new HedgedReader(95, 5, 20, 1.0, 10000);
+
+        long start = System.nanoTime();
+        Object value = read(reader).get(5, TimeUnit.SECONDS);
+
+        assertEquals("replica", value);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(1, reader.getHedges());
+        assertEquals(1, reader.getHedgeWins());
+    }
+
+    public void testFastPrimaryIsNotHedged() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 5, 1000, 1.0, 10000);
+
+        for (int i = 0; i < 50; ++i) {
+            assertEquals("primary", read(reader).get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(50, reader.getReads());
+        assertEquals(0, reader.getHedges());
+    }
+
+    public void testHedgesAreCappedByBudget() throws Exception {
+        primaryStub.setLatency(200, TimeUnit.MILLISECONDS);
+        HedgedReader reader = new HedgedReader(95, 1, 1, 0.05, 10000);
+
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            futures.add(read(reader));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        assertTrue(reader.getHedges() <= 5);
+        assertTrue(reader.getOverBudget() >= 95);
+    }
+
+    public void testFailedPrimaryFallsBackToReplica() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 1000, 1000, 1.0, 10000);
+
+        CompletableFuture<Object> read = reader.read(() -> {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("node down"));
+            return failed;
+        }, () -> ClientFutures.of(replica.asyncGet("key"), 5000));
+
+        assertEquals("replica", read.get(5, TimeUnit.SECONDS));
+        assertEquals(1, reader.getHedges());
+    }
+
+    public void testPrimaryFailingWhileTimerHedgesStillReadsReplica() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 0, 0, 1.0, 10000);
+        CompletableFuture<Object> primary = new CompletableFuture<>();
+        CompletableFuture<Object> second = new CompletableFuture<>();
+        CountDownLatch hedging = new CountDownLatch(1);
+
+        CompletableFuture<Object> read = reader.read(() -> primary, () -> {
+            hedging.countDown();
+            return second;
+        });
+
+        // The timer is sending the hedge when the primary fails
+        assertTrue(hedging.await(5, TimeUnit.SECONDS));
+        primary.completeExceptionally(new IllegalStateException("node down"));
+        assertFalse(read.isDone());
+
+        second.complete("replica");
+        assertEquals("replica", read.get(5, TimeUnit.SECONDS));
+        assertEquals(1, reader.getHedges());
+    }
+
+    public void testPrimaryFailingAsTimerHedgesNeverFailsTheRead() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 0, 0, 1.0, 10000);
+        ExecutorService failer = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 20000; ++i) {
+                CompletableFuture<Object> read = reader.read(() -> {
+                    CompletableFuture<Object> failed = new CompletableFuture<>();
+                    failer.execute(() -> failed.completeExceptionally(new IllegalStateException("node down")));
+                    return failed;
+                }, () -> CompletableFuture.completedFuture("replica"));
+
+                assertEquals("replica", read.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            failer.shutdown();
+        }
+    }
+
+    public void testFailedPrimaryWithoutBudgetFailsTheRead() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 0, 0, 0, 10000);
+
+        CompletableFuture<Object> read = reader.read(() -> {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("node down"));
+            return failed;
+        }, () -> CompletableFuture.completedFuture("replica"));
+
+        try {
+            read.get(5, TimeUnit.SECONDS);
+            fail("Expected the read to fail");
+        } catch (ExecutionException e) {
+            assertEquals("node down", e.getCause().getMessage());
+        }
+        assertEquals(0, reader.getHedges());
+    }
+
+    public void testDelayFollowsPrimaryLatency() throws Exception {
+        HedgedReader reader = new HedgedReader(95, 2, 1000, 1.0, 0);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), reader.delay());
+
+        for (int i = 0; i < HedgedReader.MIN_WINDOW_READS; ++i) {
+            read(reader).get(5, TimeUnit.SECONDS);
+        }
+
+        assertTrue(reader.delay() < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(reader.delay() >= TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    private CompletableFuture<Object> read(HedgedReader reader) {
+        return reader.read(() -> ClientFutures.of(primary.asyncGet("key"), 5000),
+                () -> ClientFutures.of(replica.asyncGet("key"), 5000));
+    }
+}
@@ -0,0 +1,229 @@
+package com.ocdsoft.bacta.soe.data.couchbase.journal;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteAheadJournalTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public void testUncommittedUpdatesAreReplayedAfterRestart() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        for (int version = 0; version < 3; ++version) {
+            journal.append(new Update(1, version, 16));
+            journal.append(new Update(2, version, 16));
+        }
+        journal.append(new Update(3, 0, 16));
+        journal.commit(3, journal.latest(3));
+        journal.close();
+
+        journal = open(4096);
+        List<Update> replayed = new ArrayList<>();
+        journal.replay(replayed::add);
+
+        assertEquals(2, journal.getRecoveredCount());
+        assertEquals(2, replayed.size());
+        assertEquals(1, replayed.get(0).networkId);
+        assertEquals(2, replayed.get(0).version);
+        assertEquals(2, replayed.get(1).networkId);
+        assertEquals(2, replayed.get(1).version);
+
+        // Replayed updates stay journaled until committed
+        assertEquals(2, journal.getUncommittedCount());
+        journal.commit(1, journal.latest(1));
+        journal.commit(2, journal.latest(2));
+        journal.close();
+
+        journal = open(4096);
+        assertEquals(0, journal.getRecoveredCount());
+        journal.close();
+    }
+
+    public void testCommittedSegmentsAreDeleted() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        for (int id = 0; id < 100; ++id) {
+            journal.append(new Update(id, 0, 200));
+        }
+        assertTrue(segmentCount() > 1);
+
+        for (int id = 0; id < 100; ++id) {
+            journal.commit(id, journal.latest(id));
+        }
+        journal.close();
+
+        assertEquals(0, journal.getUncommittedCount());
+        assertEquals(0, segmentCount());
+    }
+
+    public void testSegmentsAreDeletedOldestFirst() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        journal.append(new Update(0, 0, 200));
+        for (int id = 1; id <= 40; ++id) {
+            journal.append(new Update(id, 0, 200));
+            journal.commit(id, journal.latest(id));
+        }
+
+        // Later segments are kept while the first still holds an uncommitted update
+        assertEquals(0, journal.getDeletedSegmentCount());
+        journal.close();
+
+        journal = open(4096);
+        List<Update> replayed = new ArrayList<>();
+        journal.replay(replayed::add);
+
+        assertEquals(1, replayed.size());
+        assertEquals(0, replayed.get(0).networkId);
+        journal.commit(0, journal.latest(0));
+        journal.close();
+    }
+
+    public void testCommitReleasesSegmentWhenMarkerCannotBeWritten() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        for (int id = 0; id < 100; ++id) {
+            journal.append(new Update(id, 0, 200));
+        }
+        assertTrue(segmentCount() > 1);
+
+        // Taking the next segment's file makes rolling over to it fail
+        long last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                last = Math.max(last, Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()), 16));
+            }
+        }
+        Files.createFile(directory.resolve(String.format("journal-%016x.log", last + 1)));
+
+        for (int id = 0; id < 100; ++id) {
+            journal.commit(id, journal.latest(id));
+        }
+
+        assertEquals(0, journal.getUncommittedCount());
+        assertEquals(100, journal.getCommittedCount());
+        // Only the active segment and the file in its way are left
+        assertEquals(2, segmentCount());
+        journal.close();
+    }
+
+    public void testCommitOfOlderSequenceKeepsNewerUpdate() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        long first = journal.append(new Update(1, 0, 16));
+        long second = journal.append(new Update(1, 1, 16));
+        assertTrue(second > first);
+        assertEquals(1, journal.getSupersededCount());
+
+        journal.commit(1, first);
+        assertEquals(second, journal.latest(1));
+
+        journal.commit(1, second);
+        assertEquals(0, journal.latest(1));
+        assertEquals(1, journal.getCommittedCount());
+        journal.close();
+    }
+
+    public void testReplayStopsAtDamagedRecord() throws Exception {
+        WriteAheadJournal<Update> journal = open(4096);
+        journal.append(new Update(1, 0, 16));
+        journal.append(new Update(2, 0, 16));
+        journal.close();
+
+        Path segment;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            segment = files.iterator().next();
+        }
+
+        // Flip a byte in the second record's payload
+        int second = WriteAheadJournal.HEADER_SIZE + 16 + WriteAheadJournal.HEADER_SIZE + 3;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, second);
+            one.put(0, (byte) (one.get(0) ^ 0xff));
+            one.clear();
+            channel.write(one, second);
+        }
+
+        journal = open(4096);
+        List<Update> replayed = new ArrayList<>();
+        journal.replay(replayed::add);
+
+        assertEquals(1, journal.getCorruptSegmentCount());
+        assertEquals(1, replayed.size());
+        assertEquals(1, replayed.get(0).networkId);
+        journal.commit(1, journal.latest(1));
+        journal.close();
+    }
+
+    private WriteAheadJournal<Update> open(int segmentSize) throws IOException {
+        return new WriteAheadJournal<>(directory, Update::getNetworkId, new UpdateCodec(), segmentSize, 60000);
+    }
+
+    private int segmentCount() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path ignored : files) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    static final class Update {
+
+        final long networkId;
+        final int version;
+        final int size;
+
+        Update(long networkId, int version, int size) {
+            this.networkId = networkId;
+            this.version = version;
+            this.size = size;
+        }
+
+        long getNetworkId() {
+            return networkId;
+        }
+    }
+
+    static final class UpdateCodec implements WriteAheadJournal.Codec<Update> {
+
+        @Override
+        public int encode(Update update, ByteBuffer target) {
+            target.putLong(update.networkId);
+            target.putInt(update.version);
+            for (int i = 12; i < update.size; ++i) {
+                target.put((byte) i);
+            }
+            return 7;
+        }
+
+        @Override
+        public Update decode(int flags, ByteBuffer payload) {
+            assertEquals(7, flags);
+            return new Update(payload.getLong(), payload.getInt(), payload.remaining() + 12);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Account shaped documents: login fields plus a character list, as stored in the connection
+ * objects bucket.
+ */
+final class AccountDocuments {
+
+    static final class Character {
+        String name;
+        int clusterId;
+        long networkId;
+        boolean disabled;
+    }
+
+    static final class AccountDocument {
+        String type = "account";
+        int id;
+        String username;
+        String password;
+        String authToken;
+        long authExpiration;
+        long created;
+        String lastLoginIp;
+        List<Character> characterList = new ArrayList<>();
+    }
+
+    private static final String[] NAMES = {"Kyle Tarr", "Ordo Venn", "Lira", "Bren Solas", "Teeka Mo", "Jax Durell"};
+
+    private AccountDocuments() {
+    }
+
+    static AccountDocument account(Random random, int characters) {
+        AccountDocument account = new AccountDocument();
+        account.id = random.nextInt(1_000_000);
+        account.username = "player" + account.id;
+        account.password = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+        account.authToken = Long.toHexString(random.nextLong());
+        account.authExpiration = 1_700_000_000_000L + random.nextInt(600_000);
+        account.created = 1_600_000_000_000L + random.nextInt();
+        account.lastLoginIp = "10.0." + random.nextInt(256) + "." + random.nextInt(256);
+
+        for (int i = 0; i < characters; ++i) {
+            Character character = new Character();
+            character.name = NAMES[random.nextInt(NAMES.length)] + i;
+            character.clusterId = 1 + random.nextInt(3);
+            character.networkId = random.nextLong() & Long.MAX_VALUE;
+            account.characterList.add(character);
+        }
+
+        return account;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.Gson;
+import com.ocdsoft.bacta.soe.data.couchbase.json.AccountDocuments.AccountDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Account document reads and writes through reflective Gson and a String, as the connector used
+ * to store them, against the cached streaming codecs.  Both sides start and end at the UTF-8
+ * bytes the client sends and receives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountJsonBenchmark {
+
+    @Param({"2", "20"})
+    public int characters;
+
+    private final Gson gson = new Gson();
+    private final JsonCodecs codecs = new JsonCodecs(gson);
+
+    private AccountDocument account;
+    private byte[] document;
+
+    @Setup
+    public void setup() {
+        account = AccountDocuments.account(new Random(42), characters);
+        document = codecs.encode(account);
+    }
+
+    @Benchmark
+    public byte[] writeGson() {
+        return gson.toJson(gson.toJsonTree(account)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeCodec() {
+        return codecs.encode(account);
+    }
+
+    @Benchmark
+    public AccountDocument readGson() {
+        return gson.fromJson(new String(document, StandardCharsets.UTF_8), AccountDocument.class);
+    }
+
+    @Benchmark
+    public AccountDocument readCodec() {
+        return codecs.decode(document, 0, document.length, AccountDocument.class);
+    }
+}
@@ -0,0 +1,94 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.Gson;
+import com.ocdsoft.bacta.soe.data.couchbase.json.AccountDocuments.AccountDocument;
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+public class JsonCodecsTest extends TestCase {
+
+    private final Gson gson = new Gson();
+    private final JsonCodecs codecs = new JsonCodecs(gson);
+
+    public void testEncodeMatchesGson() {
+        AccountDocument account = AccountDocuments.account(new Random(1), 8);
+        account.lastLoginIp = null;
+        account.password = "<script>&'=";
+
+        String expected = gson.toJson(account);
+        assertEquals(expected, new String(codecs.encode(account), StandardCharsets.UTF_8));
+    }
+
+    public void testRoundTrip() {
+        AccountDocument account = AccountDocuments.account(new Random(2), 4);
+        byte[] json = codecs.encode(account);
+
+        AccountDocument decoded = codecs.decode(json, 0, json.length, AccountDocument.class);
+        assertEquals(gson.toJson(account), gson.toJson(decoded));
+    }
+
+    public void testMultiByteCharactersSurviveBufferBoundaries() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            name.append(i % 3 == 0 ? "\u00e9" : i % 3 == 1 ? "\u4e2d" : "\ud83d\ude00");
+        }
+
+        AccountDocument account = AccountDocuments.account(new Random(3), 1);
+        account.characterList.get(0).name = name.toString();
+
+        byte[] json = codecs.encode(account);
+        assertEquals(gson.toJson(account), new String(json, StandardCharsets.UTF_8));
+
+        AccountDocument decoded = codecs.decode(json, 0, json.length, AccountDocument.class);
+        assertEquals(name.toString(), decoded.characterList.get(0).name);
+    }
+
+    public void testUnpairedSurrogatesEncodeAsReplacementCharacter() throws IOException {
+        Utf8Writer writer = new Utf8Writer(4);
+
+        writer.write("a\ud83d");
+        writer.write("\ude00b\ude00c\ud83dd");
+        writer.flush();
+        writer.write('\ud83d');
+        assertEquals("a\ud83d\ude00b\ufffdc\ufffdd\ufffd", new String(writer.toByteArray(), StandardCharsets.UTF_8));
+
+        writer.reset();
+        writer.write('\ud83d');
+        writer.close();
+        assertEquals("\ufffd", new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    public void testEmptyDocumentDecodesToNull() {
+        assertNull(codecs.decode(new byte[0], 0, 0, AccountDocument.class));
+        assertNull(codecs.decode("", AccountDocument.class));
+    }
+
+    public void testAdaptersAndTranscodersAreCached() {
+        assertSame(codecs.adapter(AccountDocument.class), codecs.adapter(AccountDocument.class));
+        assertSame(codecs.transcoder(AccountDocument.class), codecs.transcoder(AccountDocument.class));
+    }
+
+    public void testTranscoderReadsDocumentsCompressedByTheDefaultTranscoder() throws IOException {
+        AccountDocument account = AccountDocuments.account(new Random(4), 200);
+        String json = gson.toJson(account);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        JsonTranscoder<AccountDocument> transcoder = codecs.transcoder(AccountDocument.class);
+        AccountDocument decoded = transcoder.decode(new CachedData(JsonTranscoder.COMPRESSED, compressed.toByteArray(), CachedData.MAX_SIZE));
+        assertEquals(json, gson.toJson(decoded));
+
+        CachedData encoded = transcoder.encode(account);
+        assertEquals(0, encoded.getFlags());
+        assertEquals(json, gson.toJson(transcoder.decode(encoded)));
+    }
+}
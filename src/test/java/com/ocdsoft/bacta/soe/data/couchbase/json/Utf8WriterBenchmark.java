@@ -0,0 +1,79 @@
+package com.ocdsoft.bacta.soe.data.couchbase.json;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UTF-8 encoding of an account document's JSON through the reused {@link Utf8Writer}, against a
+ * StringWriter and String.getBytes, as Gson's toJson would, and an OutputStreamWriter over a byte
+ * stream.  The text is written in the short runs a JsonWriter produces.  Run with
+ * {@code -prof gc} for the bytes allocated per document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Utf8WriterBenchmark {
+
+    @Param({"ascii", "accented"})
+    public String text;
+
+    private String[] runs;
+    private Utf8Writer utf8Writer;
+
+    @Setup
+    public void setup() {
+        String json = new String(new JsonCodecs(new Gson())
+                .encode(AccountDocuments.account(new Random(42), 20)), StandardCharsets.UTF_8);
+        if ("accented".equals(text)) {
+            json = json.replace('e', '\u00e9').replace('a', '\u4e2d');
+        }
+
+        runs = json.split("(?<=[,:\"{}\\[\\]])");
+        utf8Writer = new Utf8Writer(1024);
+    }
+
+    @Benchmark
+    public byte[] utf8Writer() {
+        utf8Writer.reset();
+        write(utf8Writer);
+        return utf8Writer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] stringWriter() {
+        StringWriter writer = new StringWriter();
+        write(writer);
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] outputStreamWriter() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+        write(writer);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private void write(Writer writer) {
+        try {
+            for (String run : runs) {
+                writer.write(run, 0, run.length());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
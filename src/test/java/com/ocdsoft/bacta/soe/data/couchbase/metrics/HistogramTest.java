@@ -0,0 +1,112 @@
+package com.ocdsoft.bacta.soe.data.couchbase.metrics;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class HistogramTest extends TestCase {
+
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 64; ++i) {
+            histogram.record(i);
+        }
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(64, snapshot.getCount());
+        assertEquals(63 * 64 / 2, snapshot.getSum());
+        assertEquals(31, snapshot.getValueAtPercentile(50));
+        assertEquals(63, snapshot.getMax());
+    }
+
+    public void testBucketsCoverEveryValue() {
+        long previous = -1;
+        for (int index = 0; index < Histogram.BUCKETS; ++index) {
+            long highest = Histogram.highestValue(index);
+            assertTrue(highest > previous);
+            assertEquals(index, Histogram.index(highest));
+            assertEquals(index, Histogram.index(previous + 1));
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    public void testPercentilesWithinRelativeError() {
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        Histogram histogram = new Histogram();
+
+        for (int i = 0; i < values.length; ++i) {
+            // Roughly log-normal, like request latencies in nanoseconds
+            values[i] = (long) Math.exp(12 + random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " vs " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " vs " + exact, reported <= exact + exact / 32);
+        }
+        assertTrue(snapshot.getMax() >= values[values.length - 1]);
+    }
+
+    public void testMinusGivesTheInterval() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 100; ++i) {
+            histogram.record(1000);
+        }
+        HistogramSnapshot earlier = histogram.snapshot();
+
+        for (int i = 0; i < 10; ++i) {
+            histogram.record(1000000);
+        }
+
+        HistogramSnapshot interval = histogram.snapshot().minus(earlier);
+        assertEquals(10, interval.getCount());
+        assertEquals(10000000, interval.getSum());
+        assertTrue(interval.getValueAtPercentile(1) >= 1000000);
+        assertEquals(0, HistogramSnapshot.EMPTY.getValueAtPercentile(99));
+    }
+
+    public void testDisabledMetricsRecordNothing() {
+        OperationMetrics metrics = ConnectorMetrics.DISABLED.operationByClass("Test", "disabled");
+        long start = metrics.start();
+        assertEquals(0, start);
+
+        metrics.stop(start, false, "object");
+        metrics.size(100, "object");
+        assertEquals(0, metrics.getCount());
+        assertEquals(0, metrics.getErrors());
+        assertTrue(ConnectorMetrics.DISABLED.snapshot().isEmpty());
+    }
+
+    public void testOperationsAreBrokenDownByClass() {
+        ConnectorMetrics registry = new ConnectorMetrics(true, false, 0);
+        OperationMetrics metrics = registry.operationByClass("Test", "get");
+        assertSame(metrics, registry.operationByClass("Test", "get"));
+
+        metrics.stop(metrics.start(), true, "string");
+        metrics.stop(metrics.start(), false, 42);
+        metrics.size(10, "string");
+
+        assertEquals(2, metrics.getCount());
+        assertEquals(1, metrics.getErrors());
+
+        int classes = 0;
+        for (OperationSnapshot snapshot : registry.snapshot()) {
+            if (snapshot.getObjectClass() == String.class) {
+                assertEquals(1, snapshot.getCount());
+                assertEquals(10, snapshot.getSizes().getSum());
+                ++classes;
+            } else if (snapshot.getObjectClass() == Integer.class) {
+                assertEquals(1, snapshot.getErrors());
+                ++classes;
+            }
+        }
+        assertEquals(2, classes);
+    }
+}
@@ -0,0 +1,109 @@
+package com.ocdsoft.bacta.soe.data.couchbase.preload;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PreloaderTest extends TestCase {
+
+    public void testEveryStoredKeyIsLoaded() throws Exception {
+        Map<String, CachedData> store = store(1000);
+        Map<String, String> loaded = new ConcurrentHashMap<>();
+
+        Preloader<String> preloader = new Preloader<>(keys -> CompletableFuture.supplyAsync(() -> fetch(store, keys)),
+                (key, document) -> new String(document.getData(), StandardCharsets.UTF_8), 64, 4, 4);
+
+        List<String> keys = new ArrayList<>(store.keySet());
+        keys.add("missing");
+        Preloader.Result result = preloader.load(keys.iterator(), object -> loaded.put(object, object));
+
+        assertEquals(1001, result.getRequested());
+        assertEquals(1000, result.getLoaded());
+        assertEquals(1, result.getMissing());
+        assertEquals(0, result.getFailedBatches());
+        assertEquals(1000, loaded.size());
+    }
+
+    public void testBatchesInFlightAreCapped() throws Exception {
+        Map<String, CachedData> store = store(500);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger mostInFlight = new AtomicInteger();
+
+        Preloader<String> preloader = new Preloader<>(keys -> {
+            mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                sleep(5);
+                inFlight.decrementAndGet();
+                return fetch(store, keys);
+            });
+        }, (key, document) -> key, 10, 2, 2);
+
+        Preloader.Result result = preloader.load(store.keySet().iterator(), key -> {
+        });
+
+        assertEquals(500, result.getLoaded());
+        assertTrue(mostInFlight.get() <= 2);
+    }
+
+    public void testFailedBatchesAndDecodesAreCounted() throws Exception {
+        Map<String, CachedData> store = store(100);
+        AtomicInteger batches = new AtomicInteger();
+
+        Preloader<String> preloader = new Preloader<>(keys -> {
+            if (batches.incrementAndGet() == 1) {
+                CompletableFuture<Map<String, CachedData>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("timeout"));
+                return failed;
+            }
+            return CompletableFuture.completedFuture(fetch(store, keys));
+        }, (key, document) -> {
+            if (key.equals("key-99")) {
+                throw new IllegalArgumentException("corrupt");
+            }
+            return key;
+        }, 10, 1, 1);
+
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            keys.add("key-" + i);
+        }
+
+        Preloader.Result result = preloader.load(keys.iterator(), key -> {
+        });
+        assertEquals(1, result.getFailedBatches());
+        assertEquals(1, result.getFailed());
+        assertEquals(89, result.getLoaded());
+    }
+
+    private static Map<String, CachedData> store(int size) {
+        Map<String, CachedData> store = new LinkedHashMap<>();
+        for (int i = 0; i < size; ++i) {
+            store.put("key-" + i, new CachedData(0, ("value-" + i).getBytes(StandardCharsets.UTF_8), CachedData.MAX_SIZE));
+        }
+        return store;
+    }
+
+    private static Map<String, CachedData> fetch(Map<String, CachedData> store, List<String> keys) {
+        Map<String, CachedData> found = new HashMap<>();
+        for (String key : keys) {
+            CachedData document = store.get(key);
+            if (document != null) {
+                found.put(key, document);
+            }
+        }
+        return found;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
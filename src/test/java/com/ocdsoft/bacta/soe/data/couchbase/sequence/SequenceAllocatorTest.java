@@ -0,0 +1,65 @@
+package com.ocdsoft.bacta.soe.data.couchbase.sequence;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SequenceAllocatorTest extends TestCase {
+
+    public void testSequencesUseTheirOwnBlockSize() {
+        CountingSource source = new CountingSource();
+        SequenceAllocator allocator = new SequenceAllocator("Test", source);
+        allocator.register("AccountId", 50);
+        allocator.register("ClusterId", 1);
+
+        for (int i = 1; i <= 10; ++i) {
+            assertEquals(i, allocator.nextInt("AccountId"));
+            assertEquals(i, allocator.nextInt("ClusterId"));
+        }
+
+        assertEquals(50L, (long) source.counters.get("AccountId"));
+        assertEquals(10L, (long) source.counters.get("ClusterId"));
+    }
+
+    public void testIntOverflowIsDetected() {
+        CountingSource source = new CountingSource();
+        source.counters.put("AccountId", (long) Integer.MAX_VALUE - 1);
+
+        SequenceAllocator allocator = new SequenceAllocator("Test", source);
+        allocator.register("AccountId", 1);
+
+        assertEquals(Integer.MAX_VALUE, allocator.nextInt("AccountId"));
+
+        try {
+            allocator.nextInt("AccountId");
+            fail("Expected overflow");
+        } catch (SequenceOverflowException e) {
+            assertEquals("AccountId", e.getKey());
+            assertEquals(Integer.MAX_VALUE + 1L, e.getValue());
+        }
+    }
+
+    public void testUnknownSequenceIsRejected() {
+        SequenceAllocator allocator = new SequenceAllocator("Test", new CountingSource());
+
+        try {
+            allocator.next("NetworkId");
+            fail("Expected unknown sequence");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static final class CountingSource implements SequenceSource {
+
+        final Map<String, Long> counters = new HashMap<>();
+
+        @Override
+        public synchronized long reserve(String key, int count) {
+            long value = counters.getOrDefault(key, 0L) + count;
+            counters.put(key, value);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.ocdsoft.bacta.soe.data.couchbase.session;
+
+import com.ocdsoft.bacta.engine.object.account.Account;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class SessionCacheTest extends TestCase {
+
+    private static final long EXPIRATION = System.currentTimeMillis() + 600000;
+
+    public void testDisabledCacheStartsNoSweeperAndExpiresAtOnce() {
+        List<TestAccount> expired = new ArrayList<>();
+        int sweepers = sweepers();
+        SessionCache<TestAccount> cache = new SessionCache<>(false, 10, expired::addAll);
+        assertTrue(sweepers() <= sweepers);
+
+        TestAccount account = account("user", "token");
+        cache.put(account);
+        assertNull(cache.get("token"));
+
+        cache.expire(account);
+        assertEquals(1, expired.size());
+        assertSame(account, expired.get(0));
+        cache.shutdown();
+    }
+
+    public void testRefreshKeepsSessionOnlyForTheSameToken() {
+        SessionCache<TestAccount> cache = new SessionCache<>(true, 60000, accounts -> { });
+        cache.put(account("user", "token"));
+
+        TestAccount updated = account("user", "token");
+        cache.refresh(updated);
+        assertSame(updated, cache.get("token"));
+
+        cache.refresh(account("user", "other"));
+        assertNull(cache.get("token"));
+        assertEquals(0, cache.size());
+        cache.shutdown();
+    }
+
+    public void testConcurrentPutAndInvalidateLeaveNoTokenBehind() throws InterruptedException {
+        final SessionCache<TestAccount> cache = new SessionCache<>(true, 60000, accounts -> { });
+        final CountDownLatch start = new CountDownLatch(1);
+        final int rounds = 20000;
+
+        Thread putter = new Thread(() -> {
+            await(start);
+            for (int i = 0; i < rounds; ++i) {
+                cache.put(account("user", "token-" + i));
+            }
+        });
+        Thread invalidator = new Thread(() -> {
+            await(start);
+            for (int i = 0; i < rounds; ++i) {
+                cache.invalidate("user");
+            }
+        });
+
+        putter.start();
+        invalidator.start();
+        start.countDown();
+        putter.join();
+        invalidator.join();
+
+        cache.invalidate("user");
+        assertEquals(0, cache.size());
+        cache.shutdown();
+    }
+
+    private static int sweepers() {
+        int sweepers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("Session-Sweeper".equals(thread.getName())) {
+                ++sweepers;
+            }
+        }
+        return sweepers;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static TestAccount account(String username, String authToken) {
+        TestAccount account = new TestAccount();
+        account.setUsername(username);
+        account.setAuthToken(authToken);
+        account.setAuthExpiration(EXPIRATION);
+        return account;
+    }
+
+    private static final class TestAccount extends Account {
+    }
+}
@@ -0,0 +1,80 @@
+package com.ocdsoft.bacta.soe.data.couchbase.session;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TimerWheelTest extends TestCase {
+
+    public void testTimersFireOnTheirTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 1000);
+        List<String> expired = new ArrayList<>();
+
+        wheel.schedule("a", 1015);
+        wheel.schedule("b", 1030);
+        wheel.schedule("already", 500);
+
+        wheel.advance(1010, expired::add);
+        assertEquals(1, expired.size());
+        assertEquals("already", expired.get(0));
+
+        wheel.advance(1019, expired::add);
+        assertEquals(1, expired.size());
+
+        wheel.advance(1020, expired::add);
+        assertEquals(2, expired.size());
+        assertEquals("a", expired.get(1));
+
+        wheel.advance(1030, expired::add);
+        assertEquals("b", expired.get(2));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testDistantTimersCascadeToTheRightTick() {
+        long tick = 10;
+        long start = 123456789L * tick;
+        TimerWheel<Long> wheel = new TimerWheel<>(tick, start);
+        Random random = new Random(3);
+
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            // Spread over every level, including past the span of the wheel
+            long deadline = start + 1 + (long) (Math.pow(random.nextDouble(), 4) * tick * (1L << 26));
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+
+        final long[] now = {start};
+        final int[] fired = {0};
+        while (wheel.size() > 0) {
+            now[0] += tick * (1 + random.nextInt(4096));
+            wheel.advance(now[0], deadline -> {
+                assertTrue("Fired early: " + deadline + " at " + now[0], deadline <= now[0]);
+                ++fired[0];
+            });
+        }
+
+        assertEquals(deadlines.size(), fired[0]);
+    }
+
+    public void testTimersAreNotLateByMoreThanATick() {
+        long tick = 5;
+        TimerWheel<Long> wheel = new TimerWheel<>(tick, 0);
+        Random random = new Random(11);
+
+        for (int i = 0; i < 2000; ++i) {
+            long deadline = 1 + random.nextInt(500000);
+            wheel.schedule(deadline, deadline);
+        }
+
+        for (long now = 0; wheel.size() > 0; now += tick) {
+            final long time = now;
+            wheel.advance(now, deadline -> {
+                assertTrue(deadline <= time);
+                assertTrue("Late: " + deadline + " at " + time, time - deadline < tick);
+            });
+        }
+    }
+}
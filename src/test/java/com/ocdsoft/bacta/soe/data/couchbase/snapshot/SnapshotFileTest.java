@@ -0,0 +1,150 @@
+package com.ocdsoft.bacta.soe.data.couchbase.snapshot;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SnapshotFileTest extends TestCase {
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("snapshot", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    public void testRecordsRoundTripAcrossBlocks() throws Exception {
+        try (SnapshotWriter writer = SnapshotWriter.create(file, 4096, 6)) {
+            for (int i = 0; i < 1000; ++i) {
+                writer.append("object-" + i, i, payload(i));
+            }
+        }
+
+        List<String> keys = new ArrayList<>();
+        int blocks = 0;
+        long raw = 0;
+
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            SnapshotReader.Block block;
+            while ((block = reader.next()) != null) {
+                ++blocks;
+                raw += block.getRawLength();
+                block.forEach((key, flags, data) -> {
+                    int i = Integer.parseInt(key.substring("object-".length()));
+                    assertEquals(i, flags);
+                    assertTrue(Arrays.equals(payload(i), data));
+                    keys.add(key);
+                });
+            }
+            assertFalse(reader.isDamaged());
+        }
+
+        assertEquals(1000, keys.size());
+        assertEquals("object-999", keys.get(999));
+        assertTrue(blocks > 1);
+        assertTrue("Blocks should compress", Files.size(file) < raw);
+    }
+
+    public void testIncompressibleBlocksAreStored() throws Exception {
+        Random random = new Random(7);
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+
+        try (SnapshotWriter writer = SnapshotWriter.create(file, 4096, 9)) {
+            writer.append("noise", 0, noise);
+        }
+
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            SnapshotReader.Block block = reader.next();
+            assertEquals(block.getRawLength(), block.getStoredLength());
+            block.forEach((key, flags, data) -> assertTrue(Arrays.equals(noise, data)));
+        }
+    }
+
+    public void testResumeDropsIncompleteBlockAndContinues() throws Exception {
+        try (SnapshotWriter writer = SnapshotWriter.create(file, 4096, 1)) {
+            for (int i = 0; i < 100; ++i) {
+                writer.append("object-" + i, 0, payload(i));
+            }
+        }
+
+        // A block cut short by a failure
+        long complete = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 0, 0, 0, 5, 0, 0, 1, 0 }));
+        }
+
+        try (SnapshotWriter writer = SnapshotWriter.resume(file, 4096, 1)) {
+            assertEquals("object-99", writer.getLastKey());
+            assertEquals(100, writer.getRecordCount());
+            assertEquals(complete, writer.getFileSize());
+
+            for (int i = 100; i < 150; ++i) {
+                writer.append("object-" + i, 0, payload(i));
+            }
+        }
+
+        int records = 0;
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            SnapshotReader.Block block;
+            while ((block = reader.next()) != null) {
+                records += block.getRecordCount();
+            }
+            assertFalse(reader.isDamaged());
+        }
+        assertEquals(150, records);
+    }
+
+    public void testSkipResumesAtBlock() throws Exception {
+        try (SnapshotWriter writer = SnapshotWriter.create(file, 4096, 1)) {
+            for (int i = 0; i < 500; ++i) {
+                writer.append("object-" + i, 0, payload(i));
+            }
+        }
+
+        int blocks = 0;
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            while (reader.next() != null) {
+                ++blocks;
+            }
+        }
+
+        try (SnapshotReader reader = SnapshotReader.open(file)) {
+            assertEquals(2, reader.skip(2));
+            int remaining = 0;
+            while (reader.next() != null) {
+                ++remaining;
+            }
+            assertEquals(blocks - 2, remaining);
+        }
+    }
+
+    public void testOtherFilesAreRejected() throws Exception {
+        Files.write(file, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+        try {
+            SnapshotReader.open(file).close();
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] payload(int i) {
+        return ("{\"id\":" + i + ",\"name\":\"object " + i + "\",\"template\":\"object/tangible/furniture/shared_chair.iff\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
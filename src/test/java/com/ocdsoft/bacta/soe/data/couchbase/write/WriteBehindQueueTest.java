@@ -0,0 +1,114 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WriteBehindQueueTest extends TestCase {
+
+    public void testUpdatesAreCoalescedByNetworkId() {
+        List<Update> writes = new CopyOnWriteArrayList<>();
+        WriteBehindQueue<Update> queue = new WriteBehindQueue<>(Update::getNetworkId, update -> {
+            writes.add(update);
+            return CompletableFuture.completedFuture(true);
+        }, 10, 100, 60000, 1000);
+
+        for (int version = 0; version < 5; ++version) {
+            queue.enqueue(new Update(1, version));
+            queue.enqueue(new Update(2, version));
+        }
+
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(8, queue.getCoalescedCount());
+        assertEquals(4, queue.getPending(1).version);
+        assertTrue(writes.isEmpty());
+
+        queue.shutdown();
+
+        assertEquals(2, writes.size());
+        for (Update update : writes) {
+            assertEquals(4, update.version);
+        }
+        assertEquals(2, queue.getWrittenCount());
+        assertNull(queue.getPending(1));
+    }
+
+    public void testFullBatchIsFlushedWithoutWaitingForInterval() throws Exception {
+        List<Update> writes = new CopyOnWriteArrayList<>();
+        WriteBehindQueue<Update> queue = new WriteBehindQueue<>(Update::getNetworkId, update -> {
+            writes.add(update);
+            return CompletableFuture.completedFuture(true);
+        }, 10, 100, 60000, 1000);
+
+        for (int id = 0; id < 10; ++id) {
+            queue.enqueue(new Update(id, 0));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writes.size() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(10, writes.size());
+        queue.shutdown();
+    }
+
+    public void testOfferNeverWaitsForCapacity() {
+        // The bucket never answers, so nothing leaves the queue
+        WriteBehindQueue<Update> queue = new WriteBehindQueue<>(Update::getNetworkId,
+                update -> new CompletableFuture<>(), 10, 10, 60000, 1000);
+
+        long start = System.nanoTime();
+        for (int id = 0; id < 50; ++id) {
+            queue.offer(new Update(id, 0));
+        }
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        for (int id = 0; id < 50; ++id) {
+            assertNotNull(queue.getPending(id));
+        }
+        queue.shutdown();
+    }
+
+    public void testFailedWriteStaysQueued() {
+        final AtomicBoolean failNext = new AtomicBoolean(true);
+        List<Update> writes = new CopyOnWriteArrayList<>();
+        WriteBehindQueue<Update> queue = new WriteBehindQueue<>(Update::getNetworkId, update -> {
+            if (failNext.getAndSet(false)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            writes.add(update);
+            return CompletableFuture.completedFuture(true);
+        }, 10, 100, 60000, 1000);
+
+        queue.enqueue(new Update(7, 0));
+        queue.shutdown();
+
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(7, queue.getPending(7).networkId);
+
+        // Writes after shutdown go straight through
+        queue.enqueue(new Update(8, 0));
+        assertEquals(1, writes.size());
+    }
+
+    private static final class Update {
+
+        final long networkId;
+        final int version;
+
+        Update(long networkId, int version) {
+            this.networkId = networkId;
+            this.version = version;
+        }
+
+        long getNetworkId() {
+            return networkId;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.ocdsoft.bacta.soe.data.couchbase.write;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+import java.nio.charset.StandardCharsets;
+
+public class WriteSuppressorTest extends TestCase {
+
+    public void testHashMatchesReferenceValues() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    public void testUnchangedDocumentIsSuppressedOnceWritten() {
+        WriteSuppressor suppressor = new WriteSuppressor(4);
+
+        WriteSuppressor.Write write = suppressor.begin(42, document(0, "{\"hp\":100}"));
+        assertNotNull(write);
+        write.complete(true);
+
+        assertNull(suppressor.begin(42, document(0, "{\"hp\":100}")));
+        assertNotNull(suppressor.begin(42, document(0, "{\"hp\":90}")));
+
+        WriteSuppressor.Stats stats = suppressor.getStats();
+        assertEquals(3, stats.getWrites());
+        assertEquals(1, stats.getSuppressed());
+        assertEquals(1, stats.getTracked());
+    }
+
+    public void testFlagsArePartOfTheFingerprint() {
+        WriteSuppressor suppressor = new WriteSuppressor(4);
+        suppressor.begin(1, document(0, "same")).complete(true);
+
+        assertNotNull(suppressor.begin(1, document(2, "same")));
+    }
+
+    public void testFailedWriteIsNotSuppressed() {
+        WriteSuppressor suppressor = new WriteSuppressor(4);
+        suppressor.begin(7, document(0, "state")).complete(false);
+
+        assertNotNull(suppressor.begin(7, document(0, "state")));
+    }
+
+    public void testWriteConfirmedAfterANewerOneBeganIsNotRecorded() {
+        WriteSuppressor suppressor = new WriteSuppressor(4);
+
+        WriteSuppressor.Write older = suppressor.begin(7, document(0, "old"));
+        WriteSuppressor.Write newer = suppressor.begin(7, document(0, "new"));
+        older.complete(true);
+
+        assertNotNull(suppressor.begin(7, document(0, "old")));
+        newer.complete(false);
+        assertNotNull(suppressor.begin(7, document(0, "new")));
+    }
+
+    public void testTableKeepsEveryKeyAsItGrows() {
+        FingerprintTable table = new FingerprintTable(8);
+        for (long key = 0; key < 100000; ++key) {
+            table.put(key * 31, ~key);
+        }
+
+        assertEquals(100000, table.size());
+        for (long key = 0; key < 100000; ++key) {
+            assertTrue(table.contains(key * 31, ~key));
+        }
+        assertFalse(table.contains(31, 0));
+        assertTrue(table.replace(0, -1, 5));
+        assertTrue(table.contains(0, 5));
+        assertFalse(table.replace(62, 0, 1));
+    }
+
+    private static long hash(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        return XxHash64.hash(data, 0, data.length, 0);
+    }
+
+    private static CachedData document(int flags, String json) {
+        return new CachedData(flags, json.getBytes(StandardCharsets.UTF_8), CachedData.MAX_SIZE);
+    }
+}